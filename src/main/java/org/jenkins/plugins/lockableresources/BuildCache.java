@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * See the "LICENSE.txt" file for full copyright and license information.
+ */
+package org.jenkins.plugins.lockableresources;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.init.InitMilestone;
+import hudson.model.Run;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Builds holding resources, by externalizable id. Resolving an id loads the build from disk, so it
+ * is done once for all resources held by the same build. Builds which can not be found (deleted,
+ * or their job was removed) are cached as well, otherwise every rendering of the resources page
+ * and every API call would look for them again.
+ *
+ * <p>The builds are resolved as SYSTEM, so the result does not depend on the permissions of the
+ * user asking first. Entries are dropped when a build is started or deleted, see {@link
+ * #invalidate(String)}, and expire after a while, in case a job reappears by other means.
+ *
+ * <p>Found builds are held weakly: the resources locked by a build hold it anyway, and the cache
+ * must not keep builds in memory Jenkins has let go of otherwise.
+ */
+final class BuildCache {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildCache.class.getName());
+
+    /** Cached for builds which can not be found, strongly reachable unlike the builds. */
+    private static final Object NOT_FOUND = new Object();
+
+    /** The build, or {@link #NOT_FOUND}, by externalizable id. */
+    private final Cache<String, Object> cache;
+
+    BuildCache(long maximumSize, long expireAfterWrite, @NonNull TimeUnit unit) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite, unit)
+                .weakValues()
+                .recordStats()
+                .build();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the build with given externalizable id, or {@code null} if there is no such build. */
+    @CheckForNull
+    Run<?, ?> get(@NonNull String externalizableId) {
+        Object cached = cache.getIfPresent(externalizableId);
+        if (cached != null) {
+            return cached != NOT_FOUND ? (Run<?, ?>) cached : null;
+        }
+        Run<?, ?> build = resolve(externalizableId);
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (build != null
+                || (jenkins != null && jenkins.getInitLevel().compareTo(InitMilestone.JOB_LOADED) >= 0)) {
+            // before the jobs are loaded, no build can be found yet
+            cache.put(externalizableId, build != null ? build : NOT_FOUND);
+        }
+        return build;
+    }
+
+    // ---------------------------------------------------------------------------
+    @CheckForNull
+    private static Run<?, ?> resolve(@NonNull String externalizableId) {
+        try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+            return Run.fromExternalizableId(externalizableId);
+        } catch (IllegalArgumentException x) {
+            LOGGER.log(Level.FINE, "Invalid build id " + externalizableId, x);
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Drops the entry of given build, which was started or deleted. */
+    void invalidate(@NonNull String externalizableId) {
+        cache.invalidate(externalizableId);
+    }
+
+    // ---------------------------------------------------------------------------
+    long size() {
+        return cache.size();
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    CacheStats stats() {
+        return cache.stats();
+    }
+}
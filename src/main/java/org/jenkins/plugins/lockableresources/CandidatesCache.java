@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * See the "LICENSE.txt" file for full copyright and license information.
+ */
+package org.jenkins.plugins.lockableresources;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Candidate resources of blocked freestyle queue items, by queue item id. Resolving the candidates
+ * (label expressions, match scripts) is expensive, so it is done once per item and cached until one
+ * of the candidates becomes free. Each entry is stamped with the version of the inputs it was
+ * resolved from (see {@link LockableResourcesManager#getMatchVersion()}) and is ignored once that
+ * version changed. The expiry only drops entries of items which left the queue.
+ *
+ * <p>Next to the cache there is a reverse index from resource name to the queue items having it as
+ * candidate, so freeing a resource invalidates exactly the dependent entries. Items without any
+ * candidate depend on every resource.
+ */
+final class CandidatesCache {
+
+    private final Cache<Long, Entry> cache;
+
+    /** Queue items by the names of their candidates. Guarded by {@code this}. */
+    private final Map<String, LongSet> itemsByResource = new HashMap<>();
+
+    /** Queue items without any candidate. Guarded by {@code this}. */
+    private final LongSet itemsWithoutCandidates = new LongSet();
+
+    CandidatesCache(long expireAfterWrite, @NonNull TimeUnit unit) {
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(expireAfterWrite, unit)
+                .recordStats()
+                .removalListener(this::removed)
+                .build();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the candidates of given item, if they were resolved for given version. */
+    @CheckForNull
+    List<LockableResource> get(long queueItemId, long version) {
+        Entry entry = cache.getIfPresent(queueItemId);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.version != version) {
+            cache.invalidate(queueItemId);
+            return null;
+        }
+        return entry.candidates;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Caches given candidates, resolved for given version. They must not be changed any more. */
+    synchronized void put(long queueItemId, @NonNull List<LockableResource> candidates, long version) {
+        index(queueItemId, candidates);
+        // the replaced entry (if any) is reported to removed()
+        cache.put(queueItemId, new Entry(candidates, version));
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Invalidates the entries of all queue items, which might get given resource now. */
+    void invalidate(@NonNull LockableResource resource) {
+        List<Long> dependents;
+        synchronized (this) {
+            LongSet items = itemsByResource.get(resource.getName());
+            if (items == null && itemsWithoutCandidates.isEmpty()) {
+                return;
+            }
+            dependents = new ArrayList<>(itemsWithoutCandidates.size() + (items != null ? items.size() : 0));
+            itemsWithoutCandidates.forEach(dependents::add);
+            if (items != null) {
+                items.forEach(dependents::add);
+            }
+        }
+        cache.invalidateAll(dependents);
+    }
+
+    // ---------------------------------------------------------------------------
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    // ---------------------------------------------------------------------------
+    long size() {
+        return cache.size();
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Removal listener, called for replaced, invalidated and expired entries. The entry might have
+     * been replaced by a new one already, which keeps its dependencies.
+     */
+    private void removed(RemovalNotification<Long, Entry> notification) {
+        Long queueItemId = notification.getKey();
+        Entry removed = notification.getValue();
+        if (queueItemId == null || removed == null) {
+            return;
+        }
+        synchronized (this) {
+            // not getIfPresent(), which would count as hit or miss in the published stats
+            Entry currentEntry = cache.asMap().get(queueItemId);
+            if (currentEntry == removed) {
+                return;
+            }
+            List<LockableResource> candidates = removed.candidates;
+            List<LockableResource> current = currentEntry != null ? currentEntry.candidates : null;
+            if (candidates.isEmpty()) {
+                if (current == null || !current.isEmpty()) {
+                    itemsWithoutCandidates.remove(queueItemId);
+                }
+                return;
+            }
+            List<LockableResource> obsolete = new ArrayList<>(candidates);
+            if (current != null) {
+                obsolete.removeAll(new HashSet<>(current));
+            }
+            unindex(queueItemId, obsolete);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private void index(long queueItemId, @NonNull List<LockableResource> candidates) {
+        if (candidates.isEmpty()) {
+            itemsWithoutCandidates.add(queueItemId);
+            return;
+        }
+        for (LockableResource candidate : candidates) {
+            itemsByResource
+                    .computeIfAbsent(candidate.getName(), k -> new LongSet())
+                    .add(queueItemId);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private void unindex(long queueItemId, @NonNull List<LockableResource> candidates) {
+        for (LockableResource candidate : candidates) {
+            LongSet items = itemsByResource.get(candidate.getName());
+            if (items != null) {
+                items.remove(queueItemId);
+                if (items.isEmpty()) {
+                    itemsByResource.remove(candidate.getName());
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Number of indexed dependencies, for tests. */
+    synchronized int indexSize() {
+        int size = itemsWithoutCandidates.size();
+        for (LongSet items : itemsByResource.values()) {
+            size += items.size();
+        }
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------
+    private static final class Entry {
+        final List<LockableResource> candidates;
+        final long version;
+
+        Entry(List<LockableResource> candidates, long version) {
+            this.candidates = candidates;
+            this.version = version;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    @Override
+    public String toString() {
+        return "CandidatesCache{size=" + cache.size() + ", " + cache.stats() + "}";
+    }
+}
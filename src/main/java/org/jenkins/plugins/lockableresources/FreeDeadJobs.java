@@ -5,23 +5,47 @@
  */
 package org.jenkins.plugins.lockableresources;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.init.InitMilestone;
 import hudson.init.Initializer;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.jenkins.plugins.lockableresources.util.Constants;
 
 /**
  * Sometimes after re-starts (jenkins crashed or what ever) are resources still locked by build, but
  * the build is no more running. This script will 'unlock' all resource assigned to dead builds
+ *
+ * <p>Loading the builds means reading their records from disk, so it is done in the background by a
+ * few threads, one job at a time per thread. Startup does not wait for it.
  */
 @ExcludeFromJacocoGeneratedReport
 public final class FreeDeadJobs {
     private static final Logger LOG = Logger.getLogger(FreeDeadJobs.class.getName());
 
+    /** Threads resolving the builds, see {@link Constants#SYSTEM_PROPERTY_FREE_DEAD_JOBS_PARALLELISM}. */
+    private static final int PARALLELISM = Math.max(
+            1,
+            SystemProperties.getInteger(
+                    Constants.SYSTEM_PROPERTY_FREE_DEAD_JOBS_PARALLELISM,
+                    Math.min(4, Runtime.getRuntime().availableProcessors())));
+
     private FreeDeadJobs() {}
 
     @Initializer(after = InitMilestone.JOB_LOADED)
@@ -38,29 +62,125 @@ public final class FreeDeadJobs {
             LOG.fine("Skipping post mortem resource cleanup because LockableResourcesManager is not registered yet");
             return;
         }
-        boolean freedAny = false;
-        synchronized (LockableResourcesManager.syncResources) {
-            List<LockableResource> orphan = new ArrayList<>();
-            LOG.log(Level.FINE, "lockable-resources-plugin free post mortem task run");
-            for (LockableResource resource : lrm.getResources()) {
-                if (resource.getBuild() != null && !resource.getBuild().isInProgress()) {
-                    orphan.add(resource);
+        LOG.log(Level.FINE, "lockable-resources-plugin free post mortem task run");
+        freeDeadOwners(lrm).exceptionally(x -> {
+            LOG.log(Level.WARNING, "lockable-resources-plugin free post mortem task failed", x);
+            return 0;
+        });
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Resolves the builds holding resources in the background and recycles the resources of builds,
+     * which are not running any more. Completes with the number of recycled resources.
+     */
+    @NonNull
+    static CompletableFuture<Integer> freeDeadOwners(@NonNull LockableResourcesManager lrm) {
+        // read from the snapshot, the lock is taken for the recycling only
+        Map<String, Map<LockableResource, String>> ownersByJob = new LinkedHashMap<>();
+        for (LockableResource resource : lrm.getReadOnlyResources()) {
+            String id = resource.getBuildExternalizableId();
+            if (id != null) {
+                int hash = id.lastIndexOf('#');
+                String job = hash > 0 ? id.substring(0, hash) : id;
+                ownersByJob.computeIfAbsent(job, k -> new LinkedHashMap<>()).put(resource, id);
+            }
+        }
+        if (ownersByJob.isEmpty()) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(PARALLELISM, ownersByJob.size()), r -> {
+            Thread t = new Thread(r, "lockable-resources-free-dead-jobs-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        List<CompletableFuture<Map<LockableResource, String>>> lookups = new ArrayList<>();
+        for (Map.Entry<String, Map<LockableResource, String>> entry : ownersByJob.entrySet()) {
+            lookups.add(CompletableFuture.supplyAsync(() -> findDeadOwners(entry.getKey(), entry.getValue()), pool));
+        }
+        return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0]))
+                .handle((ignored, x) -> {
+                    pool.shutdown();
+                    Map<LockableResource, String> dead = new LinkedHashMap<>();
+                    for (CompletableFuture<Map<LockableResource, String>> lookup : lookups) {
+                        // a failed lookup frees nothing
+                        dead.putAll(lookup.exceptionally(e -> {
+                                    LOG.log(Level.WARNING, "Failed to check the builds holding resources", e);
+                                    return Map.of();
+                                })
+                                .join());
+                    }
+                    return recycle(lrm, dead);
+                });
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Loads the builds of given job, which hold given resources, and returns the resources held by
+     * builds which are not running any more. Builds, which can not be loaded, are not touched.
+     */
+    @NonNull
+    private static Map<LockableResource, String> findDeadOwners(
+            @NonNull String jobName, @NonNull Map<LockableResource, String> owners) {
+        Map<LockableResource, String> dead = new LinkedHashMap<>();
+        try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+            Job<?, ?> job = Jenkins.get().getItemByFullName(jobName, Job.class);
+            if (job == null) {
+                return dead;
+            }
+            Map<String, Run<?, ?>> builds = new LinkedHashMap<>();
+            for (Map.Entry<LockableResource, String> owner : owners.entrySet()) {
+                String id = owner.getValue();
+                Run<?, ?> build = builds.containsKey(id) ? builds.get(id) : loadBuild(job, id);
+                builds.put(id, build);
+                if (build != null && !build.isInProgress()) {
+                    dead.put(owner.getKey(), id);
                 }
             }
+        }
+        return dead;
+    }
+
+    // ---------------------------------------------------------------------------
+    @CheckForNull
+    private static Run<?, ?> loadBuild(@NonNull Job<?, ?> job, @NonNull String id) {
+        try {
+            return job.getBuildByNumber(Integer.parseInt(id.substring(id.lastIndexOf('#') + 1)));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            LOG.fine("Invalid build id " + id);
+            return null;
+        }
+    }
 
-            for (LockableResource resource : orphan) {
+    // ---------------------------------------------------------------------------
+    /** Recycles given resources, unless they have been passed on meanwhile. */
+    private static int recycle(@NonNull LockableResourcesManager lrm, @NonNull Map<LockableResource, String> dead) {
+        if (dead.isEmpty()) {
+            return 0;
+        }
+        List<LockableResource> orphans = new ArrayList<>();
+        synchronized (LockableResourcesManager.syncResources) {
+            for (Map.Entry<LockableResource, String> entry : dead.entrySet()) {
+                LockableResource resource = entry.getKey();
+                if (lrm.fromName(resource.getName()) != resource
+                        || !entry.getValue().equals(resource.getBuildExternalizableId())) {
+                    continue;
+                }
                 LOG.log(
                         Level.INFO,
                         "lockable-resources-plugin reset resource "
                                 + resource.getName()
                                 + " due post mortem job: "
                                 + resource.getBuildName());
-                resource.recycle();
-                freedAny = true;
+                orphans.add(resource);
+            }
+            if (!orphans.isEmpty()) {
+                // schedules the queue maintenance, if any blocked item waits for them
+                lrm.recycle(orphans);
             }
         }
-        if (freedAny) {
-            LockableResourcesManager.scheduleQueueMaintenance();
-        }
+        return orphans.size();
     }
 }
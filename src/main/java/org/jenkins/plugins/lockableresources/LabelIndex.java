@@ -0,0 +1,423 @@
+/*
+ * The MIT License
+ *
+ * See the "LICENSE.txt" file for full copyright and license information.
+ */
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.model.labels.LabelExpression;
+import hudson.model.labels.LabelVisitor;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index from label atoms to the resources carrying them.
+ *
+ * <p>Every indexed resource gets a slot and every label atom maps to a {@link BitSet} of slots. Label
+ * expressions are compiled once into bitset operations, so matching a label against the whole pool
+ * costs a few word-parallel operations instead of one expression evaluation per resource.
+ *
+ * <p>Slots are handed out in insertion order and never reused, so the matching resources come back
+ * in the order of {@link LockableResourcesManager#getResources()}. The manager rebuilds the index
+ * when too many slots are unused (see {@link #unusedSlots()}).
+ *
+ * <p>Next to the labels the index tracks whether a resource is locked, reserved or queued, and keeps
+ * free / assigned counters per label and for the whole pool (see {@link #getCounts()}). Resources
+ * report their state changes the same way they report label changes.
+ *
+ * <p>Per label a resource is free when {@link LockableResource#isFree()}, i.e. neither locked, reserved
+ * nor queued. The pool counters count queued resources as free, same as the overview page always did.
+ *
+ * <p>The index is guarded by its own monitor, so label and state changes can be reported without
+ * holding {@link LockableResourcesManager#syncResources}.
+ */
+final class LabelIndex {
+
+    /** Upper bound of cached compiled expressions, parameterized labels may produce many of them. */
+    private static final int MAX_COMPILED_EXPRESSIONS = 1000;
+
+    private final Map<LockableResource, Integer> slots = new IdentityHashMap<>();
+    private final List<LockableResource> resourceBySlot = new ArrayList<>();
+    private final List<List<String>> labelsBySlot = new ArrayList<>();
+    private final BitSet usedSlots = new BitSet();
+    private final Map<String, BitSet> slotsByAtom = new HashMap<>();
+    private final Map<String, Query> compiled = new HashMap<>();
+
+    private final BitSet lockedSlots = new BitSet();
+    private final BitSet reservedSlots = new BitSet();
+    private final BitSet queuedSlots = new BitSet();
+    private final Map<String, LabelCounter> countersByAtom = new LinkedHashMap<>();
+    /** Resources locked, but not reserved (reserved wins, same as on the overview page). */
+    private int lockedCount;
+
+    private int reservedCount;
+
+    LabelIndex(@NonNull Collection<LockableResource> resources) {
+        for (LockableResource r : resources) {
+            if (r != null) {
+                add(r);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    synchronized void add(@NonNull LockableResource resource) {
+        if (slots.containsKey(resource)) {
+            update(resource);
+            return;
+        }
+        int slot = resourceBySlot.size();
+        slots.put(resource, slot);
+        resourceBySlot.add(resource);
+        labelsBySlot.add(Collections.emptyList());
+        usedSlots.set(slot);
+        markState(slot, resource);
+        index(slot, resource.getLabelsAsList());
+    }
+
+    // ---------------------------------------------------------------------------
+    synchronized void remove(@NonNull LockableResource resource) {
+        Integer slot = slots.remove(resource);
+        if (slot == null) {
+            return;
+        }
+        unindex(slot);
+        clearState(slot);
+        resourceBySlot.set(slot, null);
+        usedSlots.clear(slot);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Re-reads the labels of given resource. */
+    synchronized void update(@NonNull LockableResource resource) {
+        Integer slot = slots.get(resource);
+        if (slot == null) {
+            return;
+        }
+        unindex(slot);
+        index(slot, resource.getLabelsAsList());
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Re-reads the lock / reservation / queue state of given resource and updates the counters. */
+    synchronized void updateState(@NonNull LockableResource resource) {
+        Integer slot = slots.get(resource);
+        if (slot == null) {
+            return;
+        }
+        boolean wasBusy = isBusy(slot);
+        clearState(slot);
+        markState(slot, resource);
+        boolean busy = isBusy(slot);
+        if (wasBusy != busy) {
+            for (String label : labelsBySlot.get(slot)) {
+                countersByAtom.get(label).busy += busy ? 1 : -1;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Number of slots left behind by removed resources. */
+    synchronized int unusedSlots() {
+        return resourceBySlot.size() - slots.size();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns all labels carried by at least one indexed resource. */
+    @NonNull
+    synchronized Set<String> getLabels() {
+        return new HashSet<>(slotsByAtom.keySet());
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns resources matching given label. Same semantic as {@link LockableResource#isValidLabel(String)}:
+     * the resource contains the label literally or the label expression matches its labels.
+     */
+    @NonNull
+    synchronized List<LockableResource> getResourcesWithLabel(@CheckForNull String label) {
+        BitSet matching = evaluate(label);
+        List<LockableResource> found = new ArrayList<>(matching.cardinality());
+        for (int slot = matching.nextSetBit(0); slot >= 0; slot = matching.nextSetBit(slot + 1)) {
+            found.add(resourceBySlot.get(slot));
+        }
+        return found;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns whether given resource matches given label, or {@code null} when the resource is not
+     * indexed.
+     */
+    @CheckForNull
+    synchronized Boolean matches(@NonNull LockableResource resource, @CheckForNull String label) {
+        Integer slot = slots.get(resource);
+        return slot == null ? null : evaluate(label).get(slot);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns {@code true} when at least one resource matches given label. */
+    synchronized boolean hasResourceWithLabel(@CheckForNull String label) {
+        return !evaluate(label).isEmpty();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the queued resources. Their queue state expires lazily (see {@link LockableResource#isQueued()}),
+     * the caller checks them before reading the counters.
+     */
+    @NonNull
+    synchronized List<LockableResource> getQueuedResources() {
+        List<LockableResource> found = new ArrayList<>(queuedSlots.cardinality());
+        for (int slot = queuedSlots.nextSetBit(0); slot >= 0; slot = queuedSlots.nextSetBit(slot + 1)) {
+            found.add(resourceBySlot.get(slot));
+        }
+        return found;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the amount of free (neither locked, reserved nor queued) resources matching given label. */
+    synchronized int countFree(@CheckForNull String label) {
+        BitSet matching = evaluate(label);
+        matching.andNot(lockedSlots);
+        matching.andNot(reservedSlots);
+        matching.andNot(queuedSlots);
+        return matching.cardinality();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the amount of resources matching given label. */
+    synchronized int countAll(@CheckForNull String label) {
+        return evaluate(label).cardinality();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns a snapshot of the counters. Costs one copy per label, no resource is visited. */
+    @NonNull
+    synchronized ResourceCounts getCounts() {
+        Map<String, ResourceCounts.LabelCount> labels = new LinkedHashMap<>();
+        for (Map.Entry<String, LabelCounter> entry : countersByAtom.entrySet()) {
+            LabelCounter counter = entry.getValue();
+            labels.put(
+                    entry.getKey(),
+                    new ResourceCounts.LabelCount(entry.getKey(), counter.assigned - counter.busy, counter.assigned));
+        }
+        int total = slots.size();
+        return new ResourceCounts(
+                total, lockedCount, reservedCount, total - lockedCount - reservedCount, labels);
+    }
+
+    // ---------------------------------------------------------------------------
+    private void index(int slot, List<String> labels) {
+        List<String> indexed = labels == null ? Collections.emptyList() : new ArrayList<>(labels);
+        labelsBySlot.set(slot, indexed);
+        boolean busy = isBusy(slot);
+        for (String label : indexed) {
+            BitSet atomSlots = slotsByAtom.computeIfAbsent(label, k -> new BitSet());
+            if (atomSlots.get(slot)) {
+                continue; // the same label twice
+            }
+            atomSlots.set(slot);
+            LabelCounter counter = countersByAtom.computeIfAbsent(label, k -> new LabelCounter());
+            counter.assigned++;
+            if (busy) {
+                counter.busy++;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private void unindex(int slot) {
+        boolean busy = isBusy(slot);
+        for (String label : labelsBySlot.get(slot)) {
+            BitSet atomSlots = slotsByAtom.get(label);
+            if (atomSlots != null && atomSlots.get(slot)) {
+                atomSlots.clear(slot);
+                if (atomSlots.isEmpty()) {
+                    slotsByAtom.remove(label);
+                    countersByAtom.remove(label);
+                } else {
+                    LabelCounter counter = countersByAtom.get(label);
+                    counter.assigned--;
+                    if (busy) {
+                        counter.busy--;
+                    }
+                }
+            }
+        }
+        labelsBySlot.set(slot, Collections.emptyList());
+    }
+
+    // ---------------------------------------------------------------------------
+    private boolean isBusy(int slot) {
+        return lockedSlots.get(slot) || reservedSlots.get(slot) || queuedSlots.get(slot);
+    }
+
+    // ---------------------------------------------------------------------------
+    private void markState(int slot, @NonNull LockableResource resource) {
+        boolean reserved = resource.isReserved();
+        if (reserved) {
+            reservedSlots.set(slot);
+            reservedCount++;
+        }
+        if (resource.hasLockHolder()) {
+            lockedSlots.set(slot);
+            if (!reserved) {
+                lockedCount++;
+            }
+        }
+        if (resource.hasQueueItem()) {
+            queuedSlots.set(slot);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private void clearState(int slot) {
+        if (reservedSlots.get(slot)) {
+            reservedSlots.clear(slot);
+            reservedCount--;
+        } else if (lockedSlots.get(slot)) {
+            lockedCount--;
+        }
+        lockedSlots.clear(slot);
+        queuedSlots.clear(slot);
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    private BitSet evaluate(@CheckForNull String label) {
+        label = Util.fixEmptyAndTrim(Util.fixNull(label));
+        if (label == null) {
+            return new BitSet();
+        }
+
+        BitSet matching = atom(label);
+        if (matching.equals(usedSlots)) {
+            // every resource contains the label literally, the expression does not need to be parsed
+            return matching;
+        }
+
+        Query query = compiled.get(label);
+        if (query == null) {
+            // may throw, same as Label.parseExpression() called by LockableResource.isValidLabel()
+            query = Label.parseExpression(label).accept(new Compiler(), null);
+            if (compiled.size() >= MAX_COMPILED_EXPRESSIONS) {
+                compiled.clear();
+            }
+            compiled.put(label, query);
+        }
+        matching.or(query.evaluate());
+        return matching;
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    private BitSet atom(@NonNull String label) {
+        BitSet atomSlots = slotsByAtom.get(label);
+        return atomSlots == null ? new BitSet() : (BitSet) atomSlots.clone();
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    private BitSet not(@NonNull BitSet value) {
+        BitSet result = (BitSet) usedSlots.clone();
+        result.andNot(value);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Free / assigned counter of one label atom. */
+    private static final class LabelCounter {
+        /** Resources carrying the label. */
+        int assigned;
+        /** Resources carrying the label, which are locked or reserved. */
+        int busy;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Compiled label expression. Returns a new bitset of matching slots on every call. */
+    @FunctionalInterface
+    private interface Query {
+        BitSet evaluate();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Translates a parsed label expression into bitset operations over this index. */
+    private final class Compiler extends LabelVisitor<Query, Void> {
+
+        @Override
+        public Query onAtom(LabelAtom a, Void param) {
+            final String name = a.getName();
+            return () -> atom(name);
+        }
+
+        @Override
+        public Query onParen(LabelExpression.Paren p, Void param) {
+            return p.base.accept(this, param);
+        }
+
+        @Override
+        public Query onNot(LabelExpression.Not p, Void param) {
+            final Query base = p.base.accept(this, param);
+            return () -> not(base.evaluate());
+        }
+
+        @Override
+        public Query onAnd(LabelExpression.And p, Void param) {
+            final Query lhs = p.lhs.accept(this, param);
+            final Query rhs = p.rhs.accept(this, param);
+            return () -> {
+                BitSet result = lhs.evaluate();
+                result.and(rhs.evaluate());
+                return result;
+            };
+        }
+
+        @Override
+        public Query onOr(LabelExpression.Or p, Void param) {
+            final Query lhs = p.lhs.accept(this, param);
+            final Query rhs = p.rhs.accept(this, param);
+            return () -> {
+                BitSet result = lhs.evaluate();
+                result.or(rhs.evaluate());
+                return result;
+            };
+        }
+
+        @Override
+        public Query onIff(LabelExpression.Iff p, Void param) {
+            final Query lhs = p.lhs.accept(this, param);
+            final Query rhs = p.rhs.accept(this, param);
+            return () -> {
+                BitSet differ = lhs.evaluate();
+                differ.xor(rhs.evaluate());
+                return not(differ);
+            };
+        }
+
+        @Override
+        public Query onImplies(LabelExpression.Implies p, Void param) {
+            final Query lhs = p.lhs.accept(this, param);
+            final Query rhs = p.rhs.accept(this, param);
+            return () -> {
+                BitSet result = not(lhs.evaluate());
+                result.or(rhs.evaluate());
+                return result;
+            };
+        }
+    }
+}
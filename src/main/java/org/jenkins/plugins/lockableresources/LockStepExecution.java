@@ -5,8 +5,10 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.EnvVars;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -14,6 +16,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -35,6 +38,13 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Remo
 
     private static final Logger LOGGER = Logger.getLogger(LockStepExecution.class.getName());
 
+    /**
+     * Console messages decided by {@link #start()} under {@link LockableResourcesManager#syncResources},
+     * by step context, until they are written to the console. Once the step is queued, a releaser may
+     * proceed with it before {@link #start()} wrote them, so {@link #proceed} writes them first.
+     */
+    private static final Map<StepContext, PendingLogs> PENDING_LOGS = new ConcurrentHashMap<>();
+
     private final LockStep step;
 
     /** Non-null once a remote {@code lock()} flow has started; owns the acquire/poll/heartbeat/release machine. */
@@ -68,57 +78,77 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Remo
         }
         step.validate(lrm.isAllowEmptyOrNullValues());
 
-        synchronized (LockableResourcesManager.syncResources) {
-            LockableResourcesManager.printLogs("Trying to acquire lock on [" + step + "]", Level.FINE, LOGGER, logger);
-
-            getContext().get(FlowNode.class).addAction(new PauseAction("Lock"));
+        // the flow node and the build are written before the decision: once queued, a releaser may
+        // hand the resources over right away and its log entries and end of pause must come after these
+        LockableResourcesManager.printLogs("Trying to acquire lock on [" + step + "]", Level.FINE, LOGGER, logger);
+        getContext().get(FlowNode.class).addAction(new PauseAction("Lock"));
+
+        boolean acquire = !lrm.isAllowEmptyOrNullValues() || acquireLock();
+        if (acquire) {
+            List<String> resourceNames = new ArrayList<>();
+            for (LockStepResource resource : step.getResources()) {
+                List<String> resources = new ArrayList<>();
+                if (resource.resource != null) {
+                    resources.add(resource.resource);
+                    resourceNames.addAll(resources);
+                } else {
+                    resourceNames.add("N/A");
+                }
+                resourceHolderList.add(new LockableResourcesStruct(resources, resource.label, resource.quantity));
+            }
+            LockedResourcesBuildAction.addLog(run, resourceNames, "try", step.toString());
+        }
 
-            if (!lrm.isAllowEmptyOrNullValues() || acquireLock()) {
-                List<String> resourceNames = new ArrayList<>();
-                for (LockStepResource resource : step.getResources()) {
-                    List<String> resources = new ArrayList<>();
-                    if (resource.resource != null) {
-                        if (lrm.createResource(resource.resource)) {
+        // decide in memory only, the console messages are buffered and printed once the lock is released
+        PendingLogs pendingLogs = new PendingLogs();
+        PENDING_LOGS.put(getContext(), pendingLogs);
+        PrintStream decisionLogger = pendingLogs.stream;
+        boolean skip = false;
+        boolean lockError = false;
+        try {
+            synchronized (LockableResourcesManager.syncResources) {
+                if (acquire) {
+                    for (LockStepResource resource : step.getResources()) {
+                        if (resource.resource != null && lrm.createResource(resource.resource)) {
                             LockableResourcesManager.printLogs(
                                     "Resource [" + resource.resource + "] did not exist. Created.",
                                     Level.FINE,
                                     LOGGER,
-                                    logger);
+                                    decisionLogger);
                         }
-                        resources.add(resource.resource);
-                        resourceNames.addAll(resources);
+                    }
+                    // determine if there are enough resources available to proceed
+                    available = lrm.getAvailableResources(resourceHolderList, decisionLogger, resourceSelectStrategy);
+                    if (available == null || available.isEmpty()) {
+                        LOGGER.fine("No available resources: " + available);
+                        skip = onLockFailed(decisionLogger, run, resourceHolderList);
+                        lockedResources = null;
+                    } else if (!lrm.lock(available, run, step.reason)) {
+                        // this here is very defensive code, and you will probably never hit it. (hopefully)
+                        LOGGER.warning("Internal program error: Can not lock resources: " + available);
+                        skip = onLockFailed(decisionLogger, run, resourceHolderList);
+                        lockError = true;
+                        lockedResources = null;
                     } else {
-                        resourceNames.add("N/A");
+                        // since LockableResource contains transient variables, they cannot be correctly serialized
+                        // hence we use their unique resource names and properties
+                        for (LockableResource resource : available) {
+                            lockedResources.put(resource.getName(), resource.getProperties());
+                        }
                     }
-                    resourceHolderList.add(new LockableResourcesStruct(resources, resource.label, resource.quantity));
-                }
-                LockedResourcesBuildAction.addLog(run, resourceNames, "try", step.toString());
-                // determine if there are enough resources available to proceed
-                available = lrm.getAvailableResources(resourceHolderList, logger, resourceSelectStrategy);
-                if (available == null || available.isEmpty()) {
-                    LOGGER.fine("No available resources: " + available);
-                    onLockFailed(logger, resourceHolderList);
-                    return false;
-                }
-
-                if (!lrm.lock(available, run, step.reason)) {
-                    // this here is very defensive code, and you will probably never hit it. (hopefully)
-                    LOGGER.warning("Internal program error: Can not lock resources: " + available);
-                    onLockFailed(logger, resourceHolderList);
-                    return true;
-                }
-
-                // since LockableResource contains transient variables, they cannot be correctly serialized
-                // hence we use their unique resource names and properties
-                for (LockableResource resource : available) {
-                    lockedResources.put(resource.getName(), resource.getProperties());
                 }
             }
+        } finally {
+            // unless a releaser proceeded with the queued step meanwhile, and wrote them already
+            writePendingLogs(getContext(), logger);
+        }
 
+        if (lockedResources != null) {
             LockStepExecution.proceed(lockedResources, getContext(), step.toString(), step.variable);
+        } else if (skip) {
+            getContext().onSuccess(null);
         }
-
-        return false;
+        return lockError;
     }
 
     // ---------------------------------------------------------------------------
@@ -202,14 +232,19 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Remo
     /**
      * Executed when the lock() function fails. No available resources, or we failed to lock available
      * resources if the resource is known, we could output the active/blocking job/build
+     *
+     * <p>Called under {@link LockableResourcesManager#syncResources}, so the step is queued atomically
+     * with the failed attempt. Returns {@code true} when the step shall be skipped; the caller completes
+     * it once the lock is released.
      */
-    private void onLockFailed(PrintStream logger, List<LockableResourcesStruct> resourceHolderList) {
+    private boolean onLockFailed(
+            PrintStream logger, Run<?, ?> run, List<LockableResourcesStruct> resourceHolderList) {
 
         if (step.skipIfLocked) {
             this.printBlockCause(logger, resourceHolderList);
             LockableResourcesManager.printLogs(
                     "[" + step + "] is not free, skipping execution ...", Level.FINE, LOGGER, logger);
-            getContext().onSuccess(null);
+            return true;
         } else {
             this.printBlockCause(logger, resourceHolderList);
             String waitMsg = "[" + step + "] is not free, waiting for execution ...";
@@ -228,7 +263,10 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Remo
                     step.priority,
                     step.reason,
                     step.timeoutForAllocateResource,
-                    step.timeoutUnit);
+                    step.timeoutUnit,
+                    run,
+                    logger);
+            return false;
         }
     }
 
@@ -246,6 +284,33 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Remo
         }
     }
 
+    // ---------------------------------------------------------------------------
+    /**
+     * Writes the console messages of {@link #start()} for given step context to given logger, unless
+     * they have been written already. Returns once they are written, by whichever thread got them.
+     */
+    private static void writePendingLogs(StepContext context, PrintStream logger) {
+        PendingLogs pending = PENDING_LOGS.get(context);
+        if (pending == null) {
+            return;
+        }
+        synchronized (pending) {
+            // removed once written, so nobody misses them while they are written
+            if (PENDING_LOGS.get(context) == pending) {
+                pending.stream.flush();
+                byte[] bytes = pending.bytes.toByteArray();
+                logger.write(bytes, 0, bytes.length);
+                PENDING_LOGS.remove(context, pending);
+            }
+        }
+    }
+
+    /** Console messages buffered by {@link #start()}, see {@link #PENDING_LOGS}. */
+    private static final class PendingLogs {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream stream = new PrintStream(bytes, false, StandardCharsets.UTF_8);
+    }
+
     // ---------------------------------------------------------------------------
     @SuppressFBWarnings(value = "REC_CATCH_EXCEPTION", justification = "not sure which exceptions might be catch.")
     public static void proceed(
@@ -260,6 +325,8 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Remo
             build = context.get(Run.class);
             node = context.get(FlowNode.class);
             logger = context.get(TaskListener.class).getLogger();
+            // the step may be handed the resources before its start() wrote why it waits
+            writePendingLogs(context, logger);
             LockableResourcesManager.printLogs(
                     "Lock acquired on [" + resourceDescription + "]", Level.FINE, LOGGER, logger);
         } catch (Exception e) {
@@ -8,6 +8,11 @@ package org.jenkins.plugins.lockableresources;
 import static java.text.DateFormat.MEDIUM;
 import static java.text.DateFormat.SHORT;
 
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
@@ -28,23 +33,22 @@ import hudson.tasks.Mailer.UserProperty;
 import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.RandomAccess;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
-import jenkins.util.SystemProperties;
 import org.jenkins.plugins.lockableresources.remote.RemoteLockManager;
 import org.jenkins.plugins.lockableresources.remote.RemoteLockRecord;
-import org.jenkins.plugins.lockableresources.util.Constants;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.kohsuke.accmod.Restricted;
@@ -116,64 +120,15 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 
     private static final long serialVersionUID = 1L;
 
-    private static final long SCRIPT_CACHE_TTL_MS =
-            SystemProperties.getLong(Constants.SYSTEM_PROPERTY_SCRIPT_CACHE_TTL_MS, 30_000L);
-    private static final long LABEL_CACHE_TTL_MS =
-            SystemProperties.getLong(Constants.SYSTEM_PROPERTY_LABEL_CACHE_TTL_MS, 30_000L);
-
-    /** Per-resource cache: Groovy script text -> (result, timestamp). */
-    private transient volatile ConcurrentHashMap<String, CachedResult> scriptCache;
-    /** Per-resource cache: label expression -> (result, timestamp). */
-    private transient volatile ConcurrentHashMap<String, CachedResult> labelCache;
-
-    private static final class CachedResult {
-        final boolean value;
-        final long timestamp;
-
-        CachedResult(boolean value) {
-            this.value = value;
-            this.timestamp = System.currentTimeMillis();
-        }
-
-        boolean isExpired(long ttlMs) {
-            return (System.currentTimeMillis() - timestamp) > ttlMs;
-        }
-    }
-
-    private ConcurrentHashMap<String, CachedResult> getScriptCache() {
-        ConcurrentHashMap<String, CachedResult> c = scriptCache;
-        if (c == null) {
-            synchronized (this) {
-                c = scriptCache;
-                if (c == null) {
-                    scriptCache = c = new ConcurrentHashMap<>();
-                }
-            }
-        }
-        return c;
-    }
-
-    private ConcurrentHashMap<String, CachedResult> getLabelCache() {
-        ConcurrentHashMap<String, CachedResult> c = labelCache;
-        if (c == null) {
-            synchronized (this) {
-                c = labelCache;
-                if (c == null) {
-                    labelCache = c = new ConcurrentHashMap<>();
-                }
-            }
-        }
-        return c;
-    }
+    private transient boolean isNode = false;
 
-    void invalidateCaches() {
-        ConcurrentHashMap<String, CachedResult> sc = scriptCache;
-        if (sc != null) sc.clear();
-        ConcurrentHashMap<String, CachedResult> lc = labelCache;
-        if (lc != null) lc.clear();
-    }
+    /**
+     * Manager this resource is registered in. Label changes are reported to it, so that its label
+     * index stays in sync. {@code null} while the resource is not part of a manager.
+     */
+    private transient volatile LockableResourcesManager owner;
 
-    private transient boolean isNode = false;
+    private transient List<String> labelsView;
 
     /**
      * Was used within the initial implementation of Pipeline functionality using {@link LockStep},
@@ -207,6 +162,107 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         // todo check if the name contains only valid characters (no spaces, new lines ...)
     }
 
+    // ---------------------------------------------------------------------------
+    /**
+     * Copies the persisted state of given resource, see {@link #copyForSave()}. The copy is not
+     * registered anywhere.
+     */
+    private LockableResource(@NonNull LockableResource source) {
+        this.name = source.name;
+        this.description = source.description;
+        this.labelsAsList = new ArrayList<>(source.labelsAsList);
+        this.reservedBy = source.reservedBy;
+        this.reservedTimestamp = source.reservedTimestamp;
+        this.note = source.note;
+        this.lockReason = source.lockReason;
+        this.stolen = source.stolen;
+        this.ephemeral = source.ephemeral;
+        this.properties = new ArrayList<>(source.properties);
+        this.queueItemId = source.queueItemId;
+        this.queueItemProject = source.queueItemProject;
+        this.buildExternalizableId = source.buildExternalizableId;
+        this.queuingStarted = source.queuingStarted;
+        this.queuedContexts = new ArrayList<>(source.queuedContexts);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns a detached copy of the persisted state, which can be serialized while this resource
+     * keeps changing. Called under {@link LockableResourcesManager#syncResources}.
+     */
+    @NonNull
+    LockableResource copyForSave() {
+        return new LockableResource(this);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns a detached copy of the configuration only, without the runtime state (lock,
+     * reservation, queue), which is saved separately. See {@link StateJournal}. Only the configuration
+     * fields are copied, so runtime fields added later do not end up in the configuration file.
+     */
+    @NonNull
+    LockableResource copyConfiguration() {
+        LockableResource copy = new LockableResource(this.name);
+        copy.description = this.description;
+        copy.labelsAsList = new ArrayList<>(this.labelsAsList);
+        copy.note = this.note;
+        copy.properties = new ArrayList<>(this.properties);
+        return copy;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns {@code true} when this resource has runtime state to be saved: it is locked, reserved,
+     * queued or ephemeral.
+     */
+    boolean hasState() {
+        return ephemeral
+                || reservedBy != null
+                || reservedTimestamp != null
+                || buildExternalizableId != null
+                || queueItemId != NOT_QUEUED
+                || queuingStarted != 0
+                || stolen
+                || (lockReason != null && !lockReason.isEmpty());
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns {@code true} when this resource has the same runtime state as given saved copy. No
+     * copy stands for no runtime state at all, see {@link #hasState()}.
+     */
+    boolean hasSameState(@CheckForNull LockableResource saved) {
+        if (saved == null) {
+            return !hasState();
+        }
+        return Objects.equals(reservedBy, saved.reservedBy)
+                && Objects.equals(reservedTimestamp, saved.reservedTimestamp)
+                && Objects.equals(Util.fixEmpty(lockReason), Util.fixEmpty(saved.lockReason))
+                && stolen == saved.stolen
+                && queueItemId == saved.queueItemId
+                && Objects.equals(queueItemProject, saved.queueItemProject)
+                && Objects.equals(buildExternalizableId, saved.buildExternalizableId)
+                && queuingStarted == saved.queuingStarted;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Takes over the saved runtime state of given resource, or resets it when {@code null}. Does not
+     * notify anybody, called while loading only.
+     */
+    void restoreState(@CheckForNull LockableResource saved) {
+        this.reservedBy = saved != null ? saved.reservedBy : null;
+        this.reservedTimestamp = saved != null ? saved.reservedTimestamp : null;
+        this.lockReason = saved != null ? saved.lockReason : "";
+        this.stolen = saved != null && saved.stolen;
+        this.queueItemId = saved != null ? saved.queueItemId : NOT_QUEUED;
+        this.queueItemProject = saved != null ? saved.queueItemProject : null;
+        this.buildExternalizableId = saved != null ? saved.buildExternalizableId : null;
+        this.build = null;
+        this.queuingStarted = saved != null ? saved.queuingStarted : 0;
+    }
+
     protected Object readResolve() {
         if (queuedContexts == null) { // this field was added after the initial version if this class
             queuedContexts = new ArrayList<>();
@@ -214,6 +270,9 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         if (properties == null) {
             properties = new ArrayList<>();
         }
+        if (labelsAsList == null) {
+            labelsAsList = new ArrayList<>();
+        }
         this.repairLabels();
         return this;
     }
@@ -257,7 +316,11 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 
     @DataBoundSetter
     public void setDescription(@Nullable String description) {
+        String previous = this.description;
         this.description = Util.fixNull(description);
+        if (!this.description.equals(previous)) {
+            matchInputsChanged("resourceDescription");
+        }
     }
 
     @Exported
@@ -267,7 +330,11 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 
     @DataBoundSetter
     public void setNote(@Nullable String note) {
+        String previous = this.note;
         this.note = Util.fixNull(note);
+        if (!this.note.equals(previous)) {
+            matchInputsChanged("resourceNote");
+        }
     }
 
     /**
@@ -287,12 +354,34 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
      * @param lockReason The reason for locking, or null to clear.
      */
     public void setLockReason(@Nullable String lockReason) {
+        String previous = this.lockReason;
         this.lockReason = Util.fixNull(lockReason);
+        if (!this.lockReason.equals(previous)) {
+            matchInputsChanged("resourceLockReason");
+            persistedStateChanged();
+        }
+    }
+
+    /** Reports a change of given variable visible to match scripts, see {@link #createScriptBinding}. */
+    private void matchInputsChanged(String variable) {
+        LockableResourcesManager lrm = this.owner;
+        if (lrm != null) {
+            lrm.matchInputsChanged(this, variable);
+        }
+    }
+
+    /** Reports a change of the persisted state, which is not reported otherwise, to the manager. */
+    private void persistedStateChanged() {
+        LockableResourcesManager lrm = this.owner;
+        if (lrm != null) {
+            lrm.resourceChanged(this);
+        }
     }
 
     @DataBoundSetter
     public void setEphemeral(boolean ephemeral) {
         this.ephemeral = ephemeral;
+        persistedStateChanged();
     }
 
     @Exported
@@ -344,14 +433,46 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     public void setLabelsFromString(@Nullable String labels) {
         labels = Util.fixNull(labels);
         // todo use label parser from Jenkins.Label to allow the same syntax
-        this.labelsAsList = new ArrayList<>();
+        List<String> newLabels = new ArrayList<>();
         for (String label : labels.split("\\s+")) {
             if (label == null || label.isEmpty()) {
                 continue;
             }
-            this.labelsAsList.add(label);
+            newLabels.add(label);
         }
-        invalidateCaches();
+        // publish the complete list only, the label index may read it concurrently
+        this.labelsAsList = newLabels;
+        labelsChanged();
+    }
+
+    private void labelsChanged() {
+        LockableResourcesManager lrm = this.owner;
+        if (lrm != null) {
+            lrm.labelsChanged(this);
+        }
+    }
+
+    /**
+     * Reports a change of the lock, reservation or queue state to the manager, which keeps counters
+     * of it and wakes up queued contexts waiting for this resource.
+     */
+    private void stateChanged() {
+        LockableResourcesManager lrm = this.owner;
+        if (lrm != null) {
+            lrm.resourceStateChanged(this);
+        }
+    }
+
+    /** Reports the project which queued this resource to the manager, which indexes it. */
+    private void queueChanged(@CheckForNull String previousProject) {
+        LockableResourcesManager lrm = this.owner;
+        if (lrm != null) {
+            lrm.queueChanged(this, previousProject, this.queueItemProject);
+        }
+    }
+
+    void setOwner(@CheckForNull LockableResourcesManager owner) {
+        this.owner = owner;
     }
 
     /**
@@ -361,7 +482,48 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
      */
     @Exported
     public List<String> getLabelsAsList() {
-        return this.labelsAsList;
+        List<String> view = this.labelsView;
+        if (view == null) {
+            this.labelsView = view = new LabelsView();
+        }
+        return view;
+    }
+
+    /**
+     * Modifiable view of {@link #labelsAsList}. Changes made through it are reported the same way as
+     * {@link #setLabelsFromString(String)} does, so the label index of the manager stays in sync.
+     */
+    private final class LabelsView extends AbstractList<String> implements RandomAccess {
+
+        @Override
+        public String get(int index) {
+            return labelsAsList.get(index);
+        }
+
+        @Override
+        public int size() {
+            return labelsAsList.size();
+        }
+
+        @Override
+        public String set(int index, String element) {
+            String previous = labelsAsList.set(index, element);
+            labelsChanged();
+            return previous;
+        }
+
+        @Override
+        public void add(int index, String element) {
+            labelsAsList.add(index, element);
+            labelsChanged();
+        }
+
+        @Override
+        public String remove(int index) {
+            String removed = labelsAsList.remove(index);
+            labelsChanged();
+            return removed;
+        }
     }
 
     /**
@@ -401,19 +563,17 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
             return true;
         }
 
-        if (LABEL_CACHE_TTL_MS > 0) {
-            ConcurrentHashMap<String, CachedResult> cache = getLabelCache();
-            CachedResult cached = cache.get(candidate);
-            if (cached != null && !cached.isExpired(LABEL_CACHE_TTL_MS)) {
-                return cached.value;
-            }
-            boolean result = evaluateLabelExpression(candidate);
-            cache.put(candidate, new CachedResult(result));
-            return result;
+        // resources of the manager are matched by its label index, which compiles the expression
+        // once for the whole pool
+        LockableResourcesManager lrm = this.owner;
+        Boolean indexed = lrm != null ? lrm.matchesLabel(this, candidate) : null;
+        if (indexed != null) {
+            return indexed;
         }
         return evaluateLabelExpression(candidate);
     }
 
+    // ----------------------------------------------------------------------------
     private boolean evaluateLabelExpression(@NonNull String candidate) {
         final Label labelExpression = Label.parseExpression(candidate);
         Set<LabelAtom> atomLabels = new HashSet<>();
@@ -442,6 +602,7 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     @DataBoundSetter
     public void setProperties(@Nullable List<LockableResourceProperty> properties) {
         this.properties = (properties == null ? new ArrayList<>() : properties);
+        persistedStateChanged();
     }
 
     /**
@@ -456,71 +617,27 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     @Restricted(NoExternalUse.class)
     public boolean scriptMatches(@NonNull SecureGroovyScript script, @CheckForNull Map<String, Object> params)
             throws ExecutionException {
-        if (SCRIPT_CACHE_TTL_MS > 0) {
-            String cacheKey = buildScriptCacheKey(script.getScript(), params);
-            ConcurrentHashMap<String, CachedResult> cache = getScriptCache();
-            CachedResult cached = cache.get(cacheKey);
-            if (cached != null && !cached.isExpired(SCRIPT_CACHE_TTL_MS)) {
-                return cached.value;
-            }
-            boolean result = evaluateScript(script, params);
-            cache.put(cacheKey, new CachedResult(result));
-            return result;
-        }
-        return evaluateScript(script, params);
-    }
-
-    /**
-     * Builds the per-resource script-cache key.
-     *
-     * <p>The cached match result depends not only on the script text but also on the build
-     * parameters bound into the script's execution (for example a {@code TARGET_ENVIRONMENT}
-     * parameter referenced by the script). Different jobs commonly share an identical match script
-     * and differ only by their parameters, so the parameters must form part of the key. Keying on
-     * the script text alone causes the first build's result to be reused for every other build,
-     * making them all resolve to the same resource and serialise behind it.
-     *
-     * @param scriptText the Groovy match script text
-     * @param params the parameter bindings supplied to the script (may be {@code null})
-     * @return a key combining the script text with a deterministic encoding of the parameters
-     */
-    private static String buildScriptCacheKey(String scriptText, @CheckForNull Map<String, Object> params) {
-        if (params == null || params.isEmpty()) {
-            return scriptText;
-        }
-        // Sort by key for a deterministic, order-independent encoding.
-        StringBuilder sb = new StringBuilder(scriptText);
-        for (Map.Entry<String, Object> entry : new TreeMap<>(params).entrySet()) {
-            sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        // the result is shared with all resources agreeing in the variables the script reads
+        LockableResourcesManager lrm = this.owner;
+        if (lrm == null) {
+            lrm = LockableResourcesManager.get();
         }
-        return sb.toString();
+        return !lrm.getMatchScripts()
+                .match(Collections.singletonList(this), script, params, lrm.getMatchVersion(script))
+                .isEmpty();
     }
 
-    private boolean evaluateScript(@NonNull SecureGroovyScript script, @CheckForNull Map<String, Object> params)
-            throws ExecutionException {
-        Binding binding = new Binding(params);
+    /** Variables a match script can use to check this resource, next to given build parameters. */
+    @NonNull
+    Binding createScriptBinding(@CheckForNull Map<String, Object> params) {
+        // own copy, the binding writes its variables into the map
+        Binding binding = new Binding(params != null ? new HashMap<>(params) : new HashMap<>());
         binding.setVariable("resourceName", name);
         binding.setVariable("resourceDescription", description);
         binding.setVariable("resourceLabels", this.getLabelsAsList());
         binding.setVariable("resourceNote", note);
         binding.setVariable("resourceLockReason", lockReason);
-        try {
-            Object result = script.evaluate(Jenkins.get().getPluginManager().uberClassLoader, binding, null);
-            if (LOGGER.isLoggable(Level.FINE)) {
-                LOGGER.fine("Checked resource "
-                        + name
-                        + " for "
-                        + script.getScript()
-                        + " with "
-                        + binding
-                        + " -> "
-                        + result);
-            }
-            return (Boolean) result;
-        } catch (Exception e) {
-            throw new ExecutionException(
-                    "Cannot get boolean result out of groovy expression. See system log for more info", e);
-        }
+        return binding;
     }
 
     @Exported
@@ -531,6 +648,7 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     @DataBoundSetter
     public void setReservedTimestamp(@Nullable final Date reservedTimestamp) {
         this.reservedTimestamp = reservedTimestamp == null ? null : new Date(reservedTimestamp.getTime());
+        persistedStateChanged();
     }
 
     @Exported
@@ -598,9 +716,17 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     }
 
     public void unqueue() {
+        boolean wasQueued = queueItemId != NOT_QUEUED;
+        String previousProject = queueItemProject;
         queueItemId = NOT_QUEUED;
         queueItemProject = null;
         queuingStarted = 0;
+        if (wasQueued) {
+            stateChanged();
+        }
+        if (previousProject != null) {
+            queueChanged(previousProject);
+        }
     }
 
     @Exported
@@ -640,6 +766,7 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 
     public void setRemoteLockedBy(String lockId) {
         this.remoteLockedBy = lockId;
+        stateChanged();
     }
 
     /**
@@ -694,13 +821,35 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         return null;
     }
 
+    /**
+     * Returns {@code true} when the resource is held by a build or by a remote lock. Unlike
+     * {@link #isLocked()} the build is not resolved, so this is cheap enough to be called from
+     * setters.
+     */
+    boolean hasLockHolder() {
+        return build != null || buildExternalizableId != null || remoteLockedBy != null;
+    }
+
     public Run<?, ?> getBuild() {
-        if (build == null && buildExternalizableId != null) {
-            build = Run.fromExternalizableId(buildExternalizableId);
+        String id = buildExternalizableId;
+        if (build == null && id != null) {
+            // shared with the other resources of the build, and remembered when it is missing
+            LockableResourcesManager lrm = this.owner;
+            if (lrm == null) {
+                lrm = LockableResourcesManager.get();
+            }
+            build = lrm.getBuildCache().get(id);
         }
         return build;
     }
 
+    // ---------------------------------------------------------------------------
+    /** Id of the build holding this resource, which might not be loaded yet. See {@link #getBuild()}. */
+    @CheckForNull
+    String getBuildExternalizableId() {
+        return buildExternalizableId;
+    }
+
     // ---------------------------------------------------------------------------
     @Exported
     public String getBuildName() {
@@ -720,6 +869,7 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
             this.buildExternalizableId = null;
             setReservedTimestamp(null);
         }
+        stateChanged();
     }
 
     public Task getTask() {
@@ -744,11 +894,22 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     public void setQueued(long queueItemId) {
         this.queueItemId = queueItemId;
         this.queuingStarted = System.currentTimeMillis() / 1000;
+        stateChanged();
+    }
+
+    /**
+     * Returns {@code true} when a queue item holds this resource. Unlike {@link #isQueued()} the queuing
+     * timeout is not checked, so this can be called while the manager reads the state.
+     */
+    boolean hasQueueItem() {
+        return queueItemId != NOT_QUEUED;
     }
 
     public void setQueued(long queueItemId, String queueProjectName) {
+        String previousProject = this.queueItemProject;
         this.setQueued(queueItemId);
         this.queueItemProject = queueProjectName;
+        queueChanged(previousProject);
     }
 
     private void validateQueuingTimeout() {
@@ -761,10 +922,12 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     @DataBoundSetter
     public void setReservedBy(String userName) {
         this.reservedBy = Util.fixEmptyAndTrim(userName);
+        stateChanged();
     }
 
     public void setStolen() {
         this.stolen = true;
+        persistedStateChanged();
     }
 
     @Exported
@@ -794,7 +957,6 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         this.unqueue();
         this.setBuild(null);
         this.setLockReason(null);
-        invalidateCaches();
     }
 
     /**
@@ -864,6 +1026,179 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         return true;
     }
 
+    /**
+     * Compact XML form, picked up by {@link hudson.util.XStream2} by its name. Default values (empty
+     * strings and lists, {@code false}, not queued) are left out, labels are written as one
+     * space-separated string and properties as attributes. Reads the reflection based form of older
+     * versions as well.
+     */
+    @Restricted(NoExternalUse.class)
+    public static final class ConverterImpl implements Converter {
+
+        private static final String PROPERTY = "property";
+
+        @Override
+        public boolean canConvert(Class type) {
+            return type == LockableResource.class;
+        }
+
+        // ---------------------------------------------------------------------------
+        @Override
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            LockableResource resource = (LockableResource) source;
+            write(writer, "name", resource.name);
+            write(writer, "description", resource.description);
+            write(writer, "labels", String.join(" ", resource.labelsAsList));
+            write(writer, "note", resource.note);
+            write(writer, "reservedBy", resource.reservedBy);
+            if (resource.reservedTimestamp != null) {
+                writer.startNode("reservedTimestamp");
+                context.convertAnother(resource.reservedTimestamp);
+                writer.endNode();
+            }
+            write(writer, "lockReason", resource.lockReason);
+            if (resource.stolen) {
+                write(writer, "stolen", "true");
+            }
+            if (resource.ephemeral) {
+                write(writer, "ephemeral", "true");
+            }
+            if (!resource.properties.isEmpty()) {
+                writer.startNode("properties");
+                for (LockableResourceProperty property : resource.properties) {
+                    writer.startNode(PROPERTY);
+                    if (property.getName() != null) {
+                        writer.addAttribute("name", property.getName());
+                    }
+                    if (property.getValue() != null) {
+                        writer.addAttribute("value", property.getValue());
+                    }
+                    writer.endNode();
+                }
+                writer.endNode();
+            }
+            if (resource.queueItemId != NOT_QUEUED) {
+                write(writer, "queueItemId", Long.toString(resource.queueItemId));
+            }
+            write(writer, "queueItemProject", resource.queueItemProject);
+            write(writer, "buildExternalizableId", resource.buildExternalizableId);
+            if (resource.queuingStarted != 0) {
+                write(writer, "queuingStarted", Long.toString(resource.queuingStarted));
+            }
+            if (resource.queuedContexts != null && !resource.queuedContexts.isEmpty()) {
+                writer.startNode("queuedContexts");
+                context.convertAnother(resource.queuedContexts);
+                writer.endNode();
+            }
+        }
+
+        // ---------------------------------------------------------------------------
+        /** Writes given value, unless it is {@code null} or empty. */
+        private static void write(HierarchicalStreamWriter writer, String node, @CheckForNull String value) {
+            if (value != null && !value.isEmpty()) {
+                writer.startNode(node);
+                writer.setValue(value);
+                writer.endNode();
+            }
+        }
+
+        // ---------------------------------------------------------------------------
+        @Override
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            // the name is final, so it has to be known first
+            Map<String, String> values = new HashMap<>();
+            Date reservedTimestamp = null;
+            List<String> labelsAsList = null;
+            List<LockableResourceProperty> properties = new ArrayList<>();
+            List<StepContext> queuedContexts = null;
+            while (reader.hasMoreChildren()) {
+                reader.moveDown();
+                String node = reader.getNodeName();
+                switch (node) {
+                    case "reservedTimestamp":
+                        reservedTimestamp = (Date) context.convertAnother(null, Date.class);
+                        break;
+                    case "labelsAsList":
+                        // older versions
+                        labelsAsList = new ArrayList<>();
+                        while (reader.hasMoreChildren()) {
+                            reader.moveDown();
+                            labelsAsList.add(reader.getValue());
+                            reader.moveUp();
+                        }
+                        break;
+                    case "properties":
+                        while (reader.hasMoreChildren()) {
+                            reader.moveDown();
+                            properties.add(readProperty(reader, context));
+                            reader.moveUp();
+                        }
+                        break;
+                    case "queuedContexts": {
+                        @SuppressWarnings("unchecked")
+                        List<StepContext> contexts = (List<StepContext>) context.convertAnother(null, ArrayList.class);
+                        queuedContexts = contexts;
+                        break;
+                    }
+                    default:
+                        values.put(node, reader.getValue());
+                        break;
+                }
+                reader.moveUp();
+            }
+
+            LockableResource resource = new LockableResource(values.remove("name"));
+            resource.description = Util.fixNull(values.remove("description"));
+            // labels is the compact form, as well as the one of very old versions
+            resource.labels = values.remove("labels");
+            if (labelsAsList != null) {
+                resource.labelsAsList = labelsAsList;
+            }
+            resource.note = Util.fixNull(values.remove("note"));
+            resource.reservedBy = Util.fixEmpty(values.remove("reservedBy"));
+            resource.reservedTimestamp = reservedTimestamp;
+            resource.lockReason = Util.fixNull(values.remove("lockReason"));
+            resource.stolen = Boolean.parseBoolean(values.remove("stolen"));
+            resource.ephemeral = Boolean.parseBoolean(values.remove("ephemeral"));
+            resource.properties = properties;
+            resource.queueItemId = parseLong(values.remove("queueItemId"), NOT_QUEUED);
+            resource.queueItemProject = Util.fixEmpty(values.remove("queueItemProject"));
+            resource.buildExternalizableId = Util.fixEmpty(values.remove("buildExternalizableId"));
+            resource.queuingStarted = parseLong(values.remove("queuingStarted"), 0);
+            resource.queuedContexts = queuedContexts;
+            if (!values.isEmpty()) {
+                LOGGER.fine("Ignoring unknown fields " + values.keySet() + " of resource " + resource);
+            }
+            return resource.readResolve();
+        }
+
+        // ---------------------------------------------------------------------------
+        /** Reads the compact form of a property, or the reflection based one of older versions. */
+        private static LockableResourceProperty readProperty(
+                HierarchicalStreamReader reader, UnmarshallingContext context) {
+            if (!PROPERTY.equals(reader.getNodeName())) {
+                return (LockableResourceProperty) context.convertAnother(null, LockableResourceProperty.class);
+            }
+            LockableResourceProperty property = new LockableResourceProperty();
+            property.setName(reader.getAttribute("name"));
+            property.setValue(reader.getAttribute("value"));
+            return property;
+        }
+
+        // ---------------------------------------------------------------------------
+        private static long parseLong(@CheckForNull String value, long defaultValue) {
+            if (value == null || value.isEmpty()) {
+                return defaultValue;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Ignoring invalid number " + value);
+                return defaultValue;
+            }
+        }
+    }
+
     @Extension
     public static class DescriptorImpl extends Descriptor<LockableResource> {
 
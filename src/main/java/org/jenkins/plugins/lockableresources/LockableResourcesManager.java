@@ -5,8 +5,7 @@
  */
 package org.jenkins.plugins.lockableresources;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
@@ -14,28 +13,43 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.BulkChange;
 import hudson.Extension;
 import hudson.Util;
+import hudson.XmlFile;
 import hudson.console.ModelHyperlinkNote;
 import hudson.init.Terminator;
 import hudson.model.Descriptor;
 import hudson.model.Run;
+import hudson.model.queue.QueueTaskDispatcher;
 import hudson.util.FormValidation;
+import hudson.util.XStream2;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -43,8 +57,10 @@ import java.util.stream.Collectors;
 import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
 import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
 import net.sf.json.JSONObject;
 import org.jenkins.plugins.lockableresources.actions.LockedResourcesBuildAction;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesQueueTaskDispatcher;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
 import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
 import org.jenkins.plugins.lockableresources.remote.RemoteQueueEntry;
@@ -64,18 +80,66 @@ import org.kohsuke.stapler.verb.POST;
 @Symbol("lockableResourcesManager")
 public class LockableResourcesManager extends GlobalConfiguration {
 
-    /** Object to synchronized operations over LRM */
+    /**
+     * Object to synchronized operations over LRM. Only writers take it: read-only accessors are served
+     * from the {@link #snapshot} and the label index, so UI and REST traffic does not delay lock
+     * grants.
+     */
     public static final Object syncResources = new Object();
 
     private List<LockableResource> resources;
 
+    /**
+     * Name index over {@link #resources}, so that {@link #fromName(String)} does not walk the whole
+     * list. Every path that changes the resource list keeps it in sync. Guarded by
+     * {@link #syncResources}.
+     */
+    private transient Map<String, LockableResource> resourcesByName;
+
+    /**
+     * Label index over {@link #resources}, used to match labels and label expressions without
+     * evaluating them for every single resource. Kept in sync like {@link #resourcesByName}; label
+     * changes are reported by the resources themselves (see {@link #labelsChanged(LockableResource)}).
+     * Replaced under {@link #syncResources}.
+     */
+    private transient volatile LabelIndex labelIndex;
+
+    /**
+     * Resources queued by freestyle builds, by project full name and resource name. Queue changes
+     * are reported by the resources (see {@link #queueChanged(LockableResource, String, String)}),
+     * which might happen without holding {@link #syncResources}. Entries are verified on read, since
+     * a queue reservation also expires silently. Built under {@link #syncResources}.
+     */
+    private transient volatile Map<String, Map<String, LockableResource>> queuedByProject;
+
+    /**
+     * Immutable view of {@link #resources} and of the queue for read-only callers. A new one is
+     * published under {@link #syncResources} after each change of the resource list or of the queue;
+     * readers just pick up the current reference.
+     */
+    private transient volatile Snapshot snapshot;
+
     /**
      * Remote connections are persisted as a list for GlobalConfiguration/XStream compatibility.
      */
     private List<RemoteConnection> remotes;
 
-    private final transient Cache<Long, List<LockableResource>> cachedCandidates =
-            CacheBuilder.newBuilder().expireAfterWrite(5, TimeUnit.MINUTES).build();
+    /** Candidates of blocked freestyle items, valid for one {@link #getMatchVersion() match version}. */
+    private final transient CandidatesCache cachedCandidates = new CandidatesCache(5, TimeUnit.MINUTES);
+
+    /** Builds holding resources, see {@link LockableResource#getBuild()}. */
+    private final transient BuildCache builds = new BuildCache(10_000, 30, TimeUnit.MINUTES);
+
+    /** See {@link #getMatchVersion()}. */
+    private final transient AtomicLong matchVersion = new AtomicLong();
+
+    /**
+     * Versions of the resource variables only match scripts read (description, note, lock reason),
+     * by variable name. See {@link #getMatchVersion(SecureGroovyScript)}.
+     */
+    private final transient Map<String, AtomicLong> scriptInputVersions = new ConcurrentHashMap<>();
+
+    private final transient ResourceMatchScripts matchScripts = new ResourceMatchScripts();
     private static final Logger LOGGER = Logger.getLogger(LockableResourcesManager.class.getName());
 
     private boolean allowEmptyOrNullValues;
@@ -90,19 +154,98 @@ public class LockableResourcesManager extends GlobalConfiguration {
     /**
      * Only used when this lockable resource is tried to be locked by {@link LockStep}, otherwise
      * (freestyle builds) regular Jenkins queue is used.
+     *
+     * <p>Loaded form of the queued contexts in {@link #waitQueue}, restored from the state file (see
+     * {@link StateJournal}). Older versions saved it in the configuration file.
+     */
+    private List<QueuedContextStruct> queuedContexts = new ArrayList<>();
+
+    /**
+     * Queued pipeline contexts and remote acquire requests, ordered by priority. Built from
+     * {@link #queuedContexts} on first use, guarded by {@link #syncResources}.
      */
-    private final List<QueuedContextStruct> queuedContexts = new ArrayList<>();
+    private transient WaitQueue waitQueue;
 
     /**
-     * Remote acquire requests waiting for resources. Transient: does not survive Jenkins restart
-     * (remote locks are expected to be released before restart per operator runbook).
-     * All access must be under {@link #syncResources}.
+     * Index of the queued contexts by the resource names and labels they wait for, so that freeing
+     * a resource re-evaluates only the contexts it could satisfy. Built lazily, guarded by
+     * {@link #syncResources}.
      */
-    private transient List<RemoteQueueEntry> remoteQueueEntries;
+    private transient WaitersIndex waitersIndex;
+
+    /**
+     * {@code true} when the last walk through the queued contexts found no context which could
+     * proceed. Until something changes, only the contexts woken by {@link #wokenResources} need to be
+     * resolved again. Guarded by {@link #syncResources}.
+     */
+    private transient boolean queueSettled;
+
+    /**
+     * Resources freed, added or relabeled since the queue has settled. Filled from the resource
+     * setters, which might be called without holding {@link #syncResources}.
+     */
+    private final transient Set<LockableResource> wokenResources = ConcurrentHashMap.newKeySet();
+
+    /** Woken resources taken over by the running walk through the queue. Guarded by {@link #syncResources}. */
+    private final transient Set<LockableResource> wakingResources = new HashSet<>();
 
     // cache to enable / disable saving lockable-resources state
     private int enableSave = -1;
 
+    /** See {@link #getJournal()}. */
+    private transient StateJournal journal;
+
+    /**
+     * Id stamped on the state file, the state file is restored only when it carries the id of the
+     * loaded configuration. A configuration restored from a backup or from SCM, or saved by an older
+     * version meanwhile, does not match a state file written later on. See {@link #restoreState()}.
+     */
+    private String stateId;
+
+    /** Names of the resources changed since the last save. Marked without holding {@link #syncResources}. */
+    private final transient Set<String> dirtyResources = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Runtime state of the resources as last captured for the state file, by name. Resources without
+     * runtime state are left out. Guarded by {@link #syncResources}.
+     */
+    private final transient Map<String, LockableResource> savedStates = new HashMap<>();
+
+    /** State changes since the last save, to adapt the coalesce window. */
+    private final transient AtomicInteger saveRequests = new AtomicInteger();
+
+    /** Current coalesce window, between {@link #saveCoalesceMs} and {@link #saveCoalesceMaxMs}. */
+    private transient volatile long coalesceMs;
+
+    private final transient SaveStats.Recorder saveStats = new SaveStats.Recorder();
+
+    /** The next save has to write the configuration file, see {@link #save()}. */
+    private transient volatile boolean configSaveRequested;
+
+    /** The next save has to rewrite the state file with the full state. */
+    private transient volatile boolean snapshotRequested;
+
+    /**
+     * Generation of the full state, increased whenever the state file is rewritten. Guarded by
+     * {@link #syncResources}.
+     */
+    private transient long stateGeneration;
+
+    /**
+     * Serializes the writes of the configuration file and of the state file, which happen outside of
+     * {@link #syncResources}. Taken after {@link #syncResources}, if at all.
+     */
+    private final transient Object saveLock = new Object();
+
+    /** States captured under {@link #syncResources}, in capture order, waiting to be written. */
+    private final transient Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Generation of the full state on disk, -1 after a failed write, until the state file is
+     * rewritten. Deltas of other generations are not appended. Guarded by {@link #saveLock}.
+     */
+    private transient long writtenGeneration;
+
     /** When true the remote lock REST API (/remote/v1/*) is active on this server. */
     private boolean remoteApiEnabled = false;
 
@@ -134,6 +277,24 @@ public class LockableResourcesManager extends GlobalConfiguration {
             SystemProperties.getBoolean(Constants.SYSTEM_PROPERTY_ASYNC_SAVE, true);
     private static final long saveCoalesceMs =
             SystemProperties.getLong(Constants.SYSTEM_PROPERTY_SAVE_COALESCE_MS, 1000L);
+    private static final long saveCoalesceMaxMs = Math.max(
+            saveCoalesceMs, SystemProperties.getLong(Constants.SYSTEM_PROPERTY_SAVE_COALESCE_MAX_MS, 5000L));
+    private static final long queueMaintenanceDelayMs =
+            SystemProperties.getLong(Constants.SYSTEM_PROPERTY_QUEUE_MAINTENANCE_DELAY_MS, 100L);
+
+    /** A Jenkins queue maintenance is scheduled, see {@link #scheduleQueueMaintenance()}. */
+    private static final AtomicBoolean queueMaintenancePending = new AtomicBoolean();
+
+    /** A walk through the woken queued contexts is scheduled, see {@link #scheduleWakeUp()}. */
+    private static final AtomicBoolean wakeUpPending = new AtomicBoolean();
+
+    private static final AtomicLong queueMaintenanceRequests = new AtomicLong();
+    private static final AtomicLong queueMaintenanceIssued = new AtomicLong();
+    private static final AtomicLong queueMaintenanceSkipped = new AtomicLong();
+    private static final boolean journalEnabled =
+            SystemProperties.getBoolean(Constants.SYSTEM_PROPERTY_JOURNAL, true);
+    private static final long journalCompactBytes =
+            SystemProperties.getLong(Constants.SYSTEM_PROPERTY_JOURNAL_COMPACT_BYTES, 4L * 1024 * 1024);
 
     private transient volatile AtomicBoolean savePending;
     private transient volatile ScheduledExecutorService saveExecutor;
@@ -183,6 +344,30 @@ public class LockableResourcesManager extends GlobalConfiguration {
         load();
     }
 
+    @Override
+    public void load() {
+        super.load();
+        synchronized (syncResources) {
+            restoreState();
+            // the resource list has been replaced
+            matchVersion.incrementAndGet();
+            this.resourcesByName = null;
+            this.labelIndex = null;
+            this.queuedByProject = null;
+            this.snapshot = null;
+            // the queue has been replaced, remote entries are not persisted and stay
+            WaitQueue previous = this.waitQueue;
+            this.waitQueue = null;
+            if (previous != null) {
+                for (RemoteQueueEntry entry : previous.getAllRemotes()) {
+                    getWaitQueue().addRemote(entry);
+                }
+            }
+            this.waitersIndex = null;
+            this.queueSettled = false;
+        }
+    }
+
     /**
      * Called by XStream after deserialization to restore defaults for newly added fields.
      */
@@ -290,9 +475,69 @@ public class LockableResourcesManager extends GlobalConfiguration {
     }
 
     // ---------------------------------------------------------------------------
-    /** Get all resources Includes declared, ephemeral and node resources */
+    /**
+     * Get all resources Includes declared, ephemeral and node resources. The list is mutable, changes
+     * made through it are reported to the indexes, see {@link ResourcesView}.
+     */
     public List<LockableResource> getResources() {
-        return this.resources;
+        return new ResourcesView();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * The resource list as returned by {@link #getResources()}. Other plugins and scripts change it
+     * directly, so each change drops the name and label indexes and publishes a new snapshot. The
+     * changes made by this class go to {@link #resources} and update the indexes incrementally.
+     */
+    private final class ResourcesView extends AbstractList<LockableResource> implements RandomAccess {
+
+        @Override
+        public LockableResource get(int index) {
+            return resources.get(index);
+        }
+
+        @Override
+        public int size() {
+            return resources.size();
+        }
+
+        @Override
+        public LockableResource set(int index, LockableResource resource) {
+            synchronized (syncResources) {
+                LockableResource previous = resources.set(index, resource);
+                resourcesModified();
+                return previous;
+            }
+        }
+
+        @Override
+        public void add(int index, LockableResource resource) {
+            synchronized (syncResources) {
+                resources.add(index, resource);
+                modCount++;
+                resourcesModified();
+            }
+        }
+
+        @Override
+        public LockableResource remove(int index) {
+            synchronized (syncResources) {
+                LockableResource removed = resources.remove(index);
+                modCount++;
+                resourcesModified();
+                return removed;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called after a change through {@link #getResources()}. Must be called under {@link #syncResources}. */
+    private void resourcesModified() {
+        this.resourcesByName = null;
+        // also lets the resources know this manager, and rebuilds the queued resources by project
+        this.labelIndex = null;
+        this.queuedByProject = null;
+        publishResources();
     }
 
     // ---------------------------------------------------------------------------
@@ -353,24 +598,20 @@ public class LockableResourcesManager extends GlobalConfiguration {
      */
     @Restricted(NoExternalUse.class)
     public List<LockableResource> getReadOnlyResources() {
-        synchronized (syncResources) {
-            return new ArrayList<>(Collections.unmodifiableCollection(this.resources));
-        }
+        return new ArrayList<>(getSnapshot().resources);
     }
 
     // ---------------------------------------------------------------------------
     /** Get declared resources, means only defined in config file (xml or JCaC yaml). */
     @Restricted(NoExternalUse.class)
     public List<LockableResource> getDeclaredResources() {
-        synchronized (syncResources) {
-            ArrayList<LockableResource> declaredResources = new ArrayList<>();
-            for (LockableResource r : this.resources) {
-                if (!r.isEphemeral() && !r.isNodeResource()) {
-                    declaredResources.add(r);
-                }
+        ArrayList<LockableResource> declaredResources = new ArrayList<>();
+        for (LockableResource r : getSnapshot().resources) {
+            if (!r.isEphemeral() && !r.isNodeResource()) {
+                declaredResources.add(r);
             }
-            return declaredResources;
         }
+        return declaredResources;
     }
 
     // ---------------------------------------------------------------------------
@@ -426,6 +667,11 @@ public class LockableResourcesManager extends GlobalConfiguration {
             }
 
             this.resources = mergedResources;
+            this.resourcesByName = null;
+            this.labelIndex = null;
+            this.queuedByProject = null;
+            this.queueSettled = false;
+            publishResources();
             save();
         }
     }
@@ -434,16 +680,36 @@ public class LockableResourcesManager extends GlobalConfiguration {
     /** Get all resources used by project. */
     @Restricted(NoExternalUse.class)
     public List<LockableResource> getResourcesFromProject(String fullName) {
-        synchronized (syncResources) {
-            List<LockableResource> matching = new ArrayList<>();
-            for (LockableResource r : this.resources) {
-                String rName = r.getQueueItemProject();
-                if (rName != null && rName.equals(fullName)) {
-                    matching.add(r);
-                }
+        Map<String, Map<String, LockableResource>> index = this.queuedByProject;
+        if (index == null) {
+            synchronized (syncResources) {
+                index = getQueuedByProject();
             }
+        }
+        return getQueuedResources(index, fullName);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the resources queued by given project. Resources which are not queued by it any more
+     * (expired queue reservation) are dropped from the index on the way.
+     */
+    private List<LockableResource> getQueuedResources(
+            Map<String, Map<String, LockableResource>> index, @CheckForNull String project) {
+        List<LockableResource> matching = new ArrayList<>();
+        Map<String, LockableResource> queued = project == null ? null : index.get(project);
+        if (queued == null) {
             return matching;
         }
+        for (LockableResource r : new ArrayList<>(queued.values())) {
+            // getQueueItemProject() expires an outdated queue reservation
+            if (project.equals(r.getQueueItemProject())) {
+                matching.add(r);
+            } else {
+                queued.remove(r.getName(), r);
+            }
+        }
+        return matching;
     }
 
     // ---------------------------------------------------------------------------
@@ -456,15 +722,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
             return false;
         }
 
-        synchronized (syncResources) {
-            for (LockableResource r : this.getResources()) {
-                if (r != null && r.isValidLabel(label)) {
-                    return true;
-                }
-            }
-        }
-
-        return false;
+        return getLabelIndexForRead().hasResourceWithLabel(label);
     }
 
     // ---------------------------------------------------------------------------
@@ -472,44 +730,95 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @NonNull
     @Restricted(NoExternalUse.class)
     public Set<String> getAllLabels() {
-        Set<String> labels = new HashSet<>();
-        for (LockableResource r : this.getReadOnlyResources()) {
-            if (r == null) {
-                continue;
-            }
-            List<String> toAdd = r.getLabelsAsList();
-            if (toAdd.isEmpty()) {
-                continue;
-            }
-            labels.addAll(toAdd);
-        }
-        return labels;
+        return getLabelIndexForRead().getLabels();
     }
 
     // ---------------------------------------------------------------------------
-    /** Get amount of free resources contained given *label*
-     *   This method is deprecated (no where used) and is not tested.
+    /**
+     * Get amount of free (neither locked, reserved nor queued) resources matching given *label*. Served
+     * from the label index without taking {@link #syncResources}.
      */
     @Restricted(NoExternalUse.class)
-    @Deprecated
-    @ExcludeFromJacocoGeneratedReport
     public int getFreeResourceAmount(String label) {
-        int free = 0;
         label = Util.fixEmpty(label);
-
         if (label == null) {
-            return free;
+            return 0;
         }
+        return getLabelIndexForCounts().countFree(label);
+    }
 
-        for (LockableResource r : this.getResourcesWithLabel(label)) {
-            if (r == null) {
-                continue;
-            }
-            if (r.isFree()) {
-                free++;
-            }
+    // ---------------------------------------------------------------------------
+    /**
+     * Get amount of resources matching given *label*. Served from the label index without taking
+     * {@link #syncResources}.
+     */
+    @Restricted(NoExternalUse.class)
+    public int getAssignedResourceAmount(String label) {
+        label = Util.fixEmpty(label);
+        if (label == null) {
+            return 0;
         }
-        return free;
+        return getLabelIndexForRead().countAll(label);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the free / locked / reserved counters of the whole pool and of every label. The
+     * counters are maintained on each lock, unlock, reservation and label change, so this neither
+     * walks the resources nor takes {@link #syncResources}.
+     */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public ResourceCounts getResourceCounts() {
+        return getLabelIndexForCounts().getCounts();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns hit / miss / eviction statistics of the candidates cache used for freestyle queue
+     * items (see {@link #tryQueue}).
+     */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public CacheStats getCandidatesCacheStats() {
+        return cachedCandidates.stats();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Hit / miss statistics of the build lookups of {@link LockableResource#getBuild()}. */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public CacheStats getBuildCacheStats() {
+        return builds.stats();
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    BuildCache getBuildCache() {
+        return builds;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Forgets what is known about given build: it was started, so an earlier lookup might have
+     * missed it, or it was deleted.
+     */
+    @Restricted(NoExternalUse.class)
+    public void forgetBuild(@NonNull Run<?, ?> build) {
+        builds.invalidate(build.getExternalizableId());
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    ResourceMatchScripts getMatchScripts() {
+        return matchScripts;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Compile and evaluation timings of the resource match scripts, by script hash. */
+    @NonNull
+    Map<String, ResourceMatchScripts.Timings> getMatchScriptTimings() {
+        return matchScripts.getTimings();
     }
 
     // ---------------------------------------------------------------------------
@@ -531,9 +840,20 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @NonNull
     @Restricted(NoExternalUse.class)
     public List<LockableResource> getResourcesWithLabel(final String label) {
-        synchronized (syncResources) {
-            return _getResourcesWithLabel(label, this.getResources());
+        if (Util.fixEmpty(label) == null) {
+            return new ArrayList<>();
         }
+        return getLabelIndexForRead().getResourcesWithLabel(label);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns whether given resource matches given *label*, or {@code null} when it is not a resource
+     * of this manager. Backs {@link LockableResource#isValidLabel(String)}.
+     */
+    @CheckForNull
+    Boolean matchesLabel(@NonNull LockableResource resource, @NonNull String label) {
+        return getLabelIndexForRead().matches(resource, label);
     }
 
     // ---------------------------------------------------------------------------
@@ -559,21 +879,20 @@ public class LockableResourcesManager extends GlobalConfiguration {
      * @param script Script
      * @param params Additional parameters
      * @return List of the matching resources
-     * @throws ExecutionException Script execution failed for one of the resources. It is considered
-     *     as a fatal failure since the requirement list may be incomplete
+     * @throws ExecutionException Script execution failed for one of the resources or did not finish
+     *     within its time budget. It is considered as a fatal failure since the requirement list may
+     *     be incomplete
      * @since 2.0
      */
     @NonNull
     @Restricted(NoExternalUse.class)
     public List<LockableResource> getResourcesMatchingScript(
             @NonNull SecureGroovyScript script, @CheckForNull Map<String, Object> params) throws ExecutionException {
-        List<LockableResource> found = new ArrayList<>();
-        synchronized (syncResources) {
-            for (LockableResource r : this.resources) {
-                if (r.scriptMatches(script, params)) found.add(r);
-            }
-        }
-        return found;
+        // Evaluated on a snapshot without holding syncResources, a slow script must not block
+        // lock and unlock. Callers re-validate the result against the current state.
+        // read first, a change in between outdates the results right away
+        long version = getMatchVersion(script);
+        return matchScripts.match(getSnapshot().resources, script, params, version);
     }
 
     // ---------------------------------------------------------------------------
@@ -586,9 +905,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
         if (resourceName != null) {
 
             synchronized (syncResources) {
-                for (LockableResource r : this.getResources()) {
-                    if (resourceName.equals(r.getName())) return r;
-                }
+                return getResourcesByName().get(resourceName);
             }
         } else {
             LOGGER.warning("Internal failure, fromName is empty or null:" + getStack());
@@ -619,6 +936,329 @@ public class LockableResourcesManager extends GlobalConfiguration {
         return list;
     }
 
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the name index, building it when needed. Every change of the resource list updates it
+     * or drops it (see {@link ResourcesView}). Must be called under {@link #syncResources}.
+     */
+    private Map<String, LockableResource> getResourcesByName() {
+        Map<String, LockableResource> index = this.resourcesByName;
+        if (index == null) {
+            index = new HashMap<>(Math.max(16, this.resources.size() * 2));
+            for (LockableResource r : this.resources) {
+                // first one wins, the same as the former linear search
+                index.putIfAbsent(r.getName(), r);
+            }
+            this.resourcesByName = index;
+        }
+        return index;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the label index, (re)building it when needed. Same as {@link #getResourcesByName()} the
+     * index is built when it has been dropped, and rebuilt when too many resources have been removed
+     * from it. Must be called under {@link #syncResources}.
+     */
+    private LabelIndex getLabelIndex() {
+        LabelIndex index = this.labelIndex;
+        if (index == null || index.unusedSlots() > Math.max(64, this.resources.size())) {
+            for (LockableResource r : this.resources) {
+                r.setOwner(this);
+            }
+            index = new LabelIndex(this.resources);
+            this.labelIndex = index;
+            // resources which did not know this manager have not reported their queue state
+            this.queuedByProject = null;
+        }
+        return index;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the index of queued resources by project, building it when needed. Must be called
+     * under {@link #syncResources}.
+     */
+    private Map<String, Map<String, LockableResource>> getQueuedByProject() {
+        // resources report queue changes to their owner, which is set by the label index
+        getLabelIndex();
+        Map<String, Map<String, LockableResource>> index = this.queuedByProject;
+        if (index == null) {
+            index = new ConcurrentHashMap<>();
+            for (LockableResource r : this.resources) {
+                String project = r.getQueueItemProject();
+                if (project != null) {
+                    index.computeIfAbsent(project, k -> new ConcurrentHashMap<>()).put(r.getName(), r);
+                }
+            }
+            this.queuedByProject = index;
+        }
+        return index;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called by {@link LockableResource} when it gets queued by a freestyle build, or unqueued. */
+    void queueChanged(
+            @NonNull LockableResource resource, @CheckForNull String previousProject, @CheckForNull String project) {
+        resourceChanged(resource);
+        if (previousProject != null && project == null) {
+            // Nobody else reports an unqueued resource (failed or cancelled queue item, expired
+            // reservation), the pipelines waiting for it would wait for the periodic check otherwise
+            wokenResources.add(resource);
+            scheduleWakeUp();
+        }
+        Map<String, Map<String, LockableResource>> index = this.queuedByProject;
+        if (index == null) {
+            return;
+        }
+        if (previousProject != null && !previousProject.equals(project)) {
+            index.computeIfPresent(previousProject, (k, queued) -> {
+                queued.remove(resource.getName(), resource);
+                return queued.isEmpty() ? null : queued;
+            });
+        }
+        if (project != null) {
+            index.compute(project, (k, queued) -> {
+                if (queued == null) {
+                    queued = new ConcurrentHashMap<>();
+                }
+                queued.put(resource.getName(), resource);
+                return queued;
+            });
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the label index for read-only callers. The label index has its own monitor, so
+     * {@link #syncResources} is taken only when the index needs to be (re)built.
+     */
+    private LabelIndex getLabelIndexForRead() {
+        LabelIndex index = this.labelIndex;
+        if (index == null) {
+            synchronized (syncResources) {
+                index = getLabelIndex();
+            }
+        }
+        return index;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the label index for callers reading the free counters. The queued state of a resource
+     * expires lazily on access, so the queued resources are checked first to not count them as busy
+     * after the timeout.
+     */
+    private LabelIndex getLabelIndexForCounts() {
+        LabelIndex index = getLabelIndexForRead();
+        for (LockableResource resource : index.getQueuedResources()) {
+            resource.isQueued();
+        }
+        return index;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the current snapshot for read-only callers, without taking {@link #syncResources}
+     * unless no snapshot has been published yet. Every change of the resource list publishes a new
+     * one, including the changes through {@link #getResources()}.
+     */
+    @NonNull
+    private Snapshot getSnapshot() {
+        Snapshot current = this.snapshot;
+        if (current == null) {
+            synchronized (syncResources) {
+                current = this.snapshot;
+                if (current == null) {
+                    matchVersion.incrementAndGet();
+                    current = new Snapshot(1, this.resources, null);
+                    this.snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Publishes a new snapshot after the resource list changed. Must be called under {@link #syncResources}. */
+    private void publishResources() {
+        matchVersion.incrementAndGet();
+        Snapshot current = this.snapshot;
+        this.snapshot = current == null
+                ? new Snapshot(1, this.resources, null)
+                : new Snapshot(current.version + 1, this.resources, current.queuedContexts);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Publishes a new snapshot after the queue changed. Must be called under {@link #syncResources}.
+     * The copy of the queue is made by the first reader asking for it, see
+     * {@link #getCurrentQueuedContext()}, so queue changes stay cheap.
+     */
+    private void publishQueue() {
+        Snapshot current = this.snapshot;
+        this.snapshot = current == null
+                ? new Snapshot(1, this.resources, null)
+                : new Snapshot(current.version + 1, current.resources, current.resourceNames, null);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Version of the current snapshot. It is increased with every change of the resource list or of
+     * the queue.
+     */
+    @Restricted(NoExternalUse.class)
+    public long getSnapshotVersion() {
+        return getSnapshot().version;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Immutable, version-stamped copy of the resource list and of the queue. The resources
+     * themselves are shared, so their state (locked, reserved, ...) is always the current one. The
+     * queue is copied lazily, {@code null} until somebody asks for it.
+     */
+    private static final class Snapshot {
+        final long version;
+        final List<LockableResource> resources;
+        final List<String> resourceNames;
+        final List<QueuedContextStruct> queuedContexts;
+
+        Snapshot(
+                long version,
+                List<LockableResource> resources,
+                @CheckForNull List<QueuedContextStruct> queuedContexts) {
+            this(version, Collections.unmodifiableList(new ArrayList<>(resources)), null, queuedContexts);
+        }
+
+        Snapshot(
+                long version,
+                List<LockableResource> resources,
+                @CheckForNull List<String> resourceNames,
+                @CheckForNull List<QueuedContextStruct> queuedContexts) {
+            this.version = version;
+            this.resources = resources;
+            this.resourceNames = resourceNames != null
+                    ? resourceNames
+                    : Collections.unmodifiableList(getResourcesNames(resources));
+            this.queuedContexts = queuedContexts;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called by {@link LockableResource#setLabelsFromString(String)} to keep the label index in sync. */
+    void labelsChanged(@NonNull LockableResource resource) {
+        configurationChanged(resource);
+        LabelIndex index = this.labelIndex;
+        if (index != null) {
+            index.update(resource);
+        }
+        matchVersion.incrementAndGet();
+        // might match other queued contexts now
+        wokenResources.add(resource);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Called by {@link LockableResource} when its description, note or lock reason changed, given as
+     * the script variable (see {@link LockableResource#createScriptBinding}). Only the cached
+     * candidates of scripts reading that variable are outdated.
+     */
+    void matchInputsChanged(@NonNull LockableResource resource, @NonNull String variable) {
+        configurationChanged(resource);
+        scriptInputVersions
+                .computeIfAbsent(variable, k -> new AtomicLong())
+                .incrementAndGet();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Called by {@link LockableResource} when its runtime state changed. The next save appends it to
+     * the state file.
+     */
+    void resourceChanged(@NonNull LockableResource resource) {
+        dirtyResources.add(resource.getName());
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Called when the configuration of given resource changed, which is saved by {@link #save()}.
+     * Ephemeral resources are not part of the configuration file, they are saved with the runtime
+     * state.
+     */
+    private void configurationChanged(@NonNull LockableResource resource) {
+        if (resource.isEphemeral()) {
+            resourceChanged(resource);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Version of everything the candidates of a queue item are resolved from: the resource list,
+     * the labels and the other variables visible to match scripts. Cached candidates are valid as
+     * long as it does not change.
+     */
+    long getMatchVersion() {
+        return matchVersion.get();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * As {@link #getMatchVersion()}, for candidates resolved by given script (or label, if {@code
+     * null}). Also covers the changes of the variables the script reads; locking and unlocking
+     * change the lock reason, and must not outdate the candidates of scripts not reading it.
+     */
+    long getMatchVersion(@CheckForNull SecureGroovyScript script) {
+        long version = matchVersion.get();
+        if (script != null) {
+            for (String variable : ResourceMatchScripts.getReadVariables(script.getScript())) {
+                AtomicLong changes = scriptInputVersions.get(variable);
+                if (changes != null) {
+                    // all counters only grow, so does their sum
+                    version += changes.get();
+                }
+            }
+        }
+        return version;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called by {@link LockableResource} when it gets locked, unlocked, reserved or unreserved. */
+    void resourceStateChanged(@NonNull LockableResource resource) {
+        resourceChanged(resource);
+        LabelIndex index = this.labelIndex;
+        if (index != null) {
+            index.updateState(resource);
+        }
+        if (!resource.hasLockHolder() && !resource.isReserved() && !resource.hasQueueItem()) {
+            wokenResources.add(resource);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the queue, building it when needed. Must be called under {@link #syncResources}. */
+    private WaitQueue getWaitQueue() {
+        WaitQueue queue = this.waitQueue;
+        if (queue == null) {
+            queue = new WaitQueue(this.queuedContexts != null ? this.queuedContexts : Collections.emptyList());
+            this.waitQueue = queue;
+        }
+        return queue;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the waiters index, building it when needed. Must be called under {@link #syncResources}. */
+    private WaitersIndex getWaitersIndex() {
+        WaitQueue queue = getWaitQueue();
+        WaitersIndex index = this.waitersIndex;
+        if (index == null || index.size() != queue.size()) {
+            index = new WaitersIndex(queue.getAll());
+            this.waitersIndex = index;
+            this.queueSettled = false;
+        }
+        return index;
+    }
+
     // ---------------------------------------------------------------------------
     private String getStack() {
         StringBuilder buf = new StringBuilder();
@@ -638,6 +1278,10 @@ public class LockableResourcesManager extends GlobalConfiguration {
 
     // ---------------------------------------------------------------------------
     public boolean queue(List<LockableResource> resources, long queueItemId, String queueProjectName) {
+        synchronized (syncResources) {
+            // make sure the resources report it
+            getQueuedByProject();
+        }
         for (LockableResource r : resources) {
             if (r.isReserved() || r.isQueued(queueItemId) || r.isLocked()) {
                 return false;
@@ -702,18 +1346,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
         // this flag is cleared during un-reservation.
         if ((candidate.isReserved() || candidate.isStolen()) && !unreserving) return false;
 
-        if (cachedCandidates.size() == 0) return true;
-
-        // Take a snapshot of keys to avoid ConcurrentModificationException.
-        // Only invalidate entries that actually contain the freed resource,
-        // preserving cache for other queue items (important at scale with 1000+ items).
-        Set<Long> keys = new HashSet<>(cachedCandidates.asMap().keySet());
-        for (Long queueItemId : keys) {
-            List<LockableResource> candidates = cachedCandidates.getIfPresent(queueItemId);
-            if (candidates != null && (candidates.isEmpty() || candidates.contains(candidate))) {
-                cachedCandidates.invalidate(queueItemId);
-            }
-        }
+        // Only invalidate entries that actually contain the freed resource (looked up in the reverse
+        // index), preserving cache for other queue items (important at scale with 1000+ items).
+        cachedCandidates.invalidate(candidate);
 
         return true;
     }
@@ -756,19 +1391,22 @@ public class LockableResourcesManager extends GlobalConfiguration {
         // modified. Create a mutable copy below when modifications are needed.
         List<LockableResource> candidates = null;
         if (candidatesByScript || (requiredResources.label != null && !requiredResources.label.isEmpty())) {
-            candidates = cachedCandidates.getIfPresent(queueItemId);
+            // read before resolving, a change in between outdates the entry right away
+            long version = getMatchVersion(systemGroovyScript);
+            candidates = cachedCandidates.get(queueItemId, version);
             if (candidates == null) {
                 candidates = (systemGroovyScript == null)
                         ? getResourcesWithLabel(requiredResources.label)
                         : getResourcesMatchingScript(systemGroovyScript, params);
                 // Store as unmodifiable to prevent accidental modification of cached data
-                cachedCandidates.put(queueItemId, Collections.unmodifiableList(candidates));
+                cachedCandidates.put(queueItemId, Collections.unmodifiableList(candidates), version);
             }
         }
 
         List<LockableResource> selected = new ArrayList<>();
         synchronized (syncResources) {
-            if (!checkCurrentResourcesStatus(selected, queueItemProject, queueItemId, log)) {
+            List<LockableResource> queuedByProject = getQueuedResources(getQueuedByProject(), queueItemProject);
+            if (!checkCurrentResourcesStatus(selected, queuedByProject, queueItemProject, queueItemId, log)) {
                 // The project has another buildable item waiting -> bail out
                 log.log(
                         Level.FINEST,
@@ -799,9 +1437,8 @@ public class LockableResourcesManager extends GlobalConfiguration {
                         "{0} found {1} resource(s) to queue. Waiting for correct amount: {2}.",
                         new Object[] {queueItemProject, selected.size(), required_amount});
                 // just to be sure, clean up
-                for (LockableResource x : this.resources) {
-                    if (x.getQueueItemProject() != null
-                            && x.getQueueItemProject().equals(queueItemProject)) x.unqueue();
+                for (LockableResource x : queuedByProject) {
+                    x.unqueue();
                 }
                 return null;
             }
@@ -813,6 +1450,23 @@ public class LockableResourcesManager extends GlobalConfiguration {
         return selected;
     }
 
+    // ---------------------------------------------------------------------------
+    /**
+     * Releases the resources queued by given Jenkins queue item, which left the queue without
+     * starting a build (cancelled). They would stay queued until the reservation expires otherwise.
+     */
+    @Restricted(NoExternalUse.class)
+    public void unqueueItem(@NonNull String queueItemProject, long queueItemId) {
+        synchronized (syncResources) {
+            for (LockableResource r : getQueuedResources(getQueuedByProject(), queueItemProject)) {
+                if (r.isQueuedByTask(queueItemId)) {
+                    LOGGER.fine("Unqueue resource of cancelled queue item " + queueItemId + ": " + r);
+                    r.unqueue();
+                }
+            }
+        }
+    }
+
     // ---------------------------------------------------------------------------
     /**
      * Returns the amount of resources required by the task.
@@ -833,22 +1487,23 @@ public class LockableResourcesManager extends GlobalConfiguration {
     // Adds already selected (in previous queue round) resources to 'selected'
     // Return false if another item queued for this project -> bail out
     private boolean checkCurrentResourcesStatus(
-            List<LockableResource> selected, String project, long taskId, Logger log) {
-        for (LockableResource r : this.resources) {
-            // This project might already have something in queue
-            String rProject = r.getQueueItemProject();
-            if (rProject != null && rProject.equals(project)) {
-                if (r.isQueuedByTask(taskId)) {
-                    // this item has queued the resource earlier
-                    selected.add(r);
-                } else {
-                    // The project has another buildable item waiting -> bail out
-                    log.log(
-                            Level.FINEST,
-                            "{0} has another build that already queued resource {1}. Continue queueing.",
-                            new Object[] {project, r});
-                    return false;
-                }
+            List<LockableResource> selected,
+            List<LockableResource> queuedByProject,
+            String project,
+            long taskId,
+            Logger log) {
+        // This project might already have something in queue
+        for (LockableResource r : queuedByProject) {
+            if (r.isQueuedByTask(taskId)) {
+                // this item has queued the resource earlier
+                selected.add(r);
+            } else {
+                // The project has another buildable item waiting -> bail out
+                log.log(
+                        Level.FINEST,
+                        "{0} has another build that already queued resource {1}. Continue queueing.",
+                        new Object[] {project, r});
+                return false;
             }
         }
         return true;
@@ -912,7 +1567,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
 
         LockedResourcesBuildAction.findAndInitAction(build).addUsedResources(getResourcesNames(resourcesToLock));
 
-        save();
+        saveState();
 
         return true;
     }
@@ -974,9 +1629,12 @@ public class LockableResourcesManager extends GlobalConfiguration {
         if (resourceNamesToUnLock == null || resourceNamesToUnLock.isEmpty()) {
             return;
         }
+        List<LockableResource> resourcesToUnLock;
         synchronized (syncResources) {
-            unlockResources(this.fromNames(resourceNamesToUnLock), build);
+            resourcesToUnLock = this.fromNames(resourceNamesToUnLock);
         }
+        // not under the lock, so that a step handed the resources over proceeds outside of it
+        unlockResources(resourcesToUnLock, build);
     }
 
     // ---------------------------------------------------------------------------
@@ -989,16 +1647,152 @@ public class LockableResourcesManager extends GlobalConfiguration {
         if (resourcesToUnLock == null || resourcesToUnLock.isEmpty()) {
             return;
         }
-        synchronized (syncResources) {
-            this.freeResources(resourcesToUnLock, build);
+        List<LockableResource> freed;
+        List<Runnable> handedOver = new ArrayList<>(1);
+        // a caller holding the lock (steal, recycle) would proceed with the next step under it
+        boolean mayHandOff = !Thread.holdsLock(syncResources);
+        try {
+            synchronized (syncResources) {
+                freed = mayHandOff ? handOff(resourcesToUnLock, build, handedOver) : resourcesToUnLock;
+                this.freeResources(freed, build);
 
-            while (proceedNextContext()) {
-                // process as many contexts as possible
+                while (proceedNextContext()) {
+                    // process as many contexts as possible
+                }
+
+                saveState();
+            }
+        } finally {
+            // the step starts its body outside of the lock, like lock() does
+            for (Runnable proceed : handedOver) {
+                proceed.run();
+            }
+        }
+        scheduleQueueMaintenance(freed);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Hands the resources released by given build directly over to the next queued context, if it
+     * is the one {@link #proceedNextContext()} would pick and it waits for resources by name only.
+     * The handed resources never become free: their owner changes in one step, so they are not
+     * uncached, not woken, ephemeral ones are not removed and re-created, and the next save writes
+     * them once.
+     *
+     * <p>Only done when the queue has settled, so only the contexts woken by the released resources
+     * are candidates, and when no remote request is queued. Returns the released resources which
+     * were not handed over, to be freed as usual. The step is not proceeded with here: that is added
+     * to given list, to be run once {@link #syncResources} is released. Must be called under it.
+     */
+    @NonNull
+    private List<LockableResource> handOff(
+            List<LockableResource> released, Run<?, ?> build, List<Runnable> handedOver) {
+        WaitQueue queue = getWaitQueue();
+        WaitersIndex waiters = getWaitersIndex();
+        if (build == null || !this.queueSettled || !wokenResources.isEmpty() || queue.remoteSize() > 0) {
+            return released;
+        }
+
+        Set<LockableResource> handable = new HashSet<>();
+        for (LockableResource resource : released) {
+            if (build.equals(resource.getBuild())
+                    && !resource.isReserved()
+                    && (allowEphemeralResources || !resource.isEphemeral())) {
+                handable.add(resource);
+            }
+        }
+        if (handable.isEmpty()) {
+            return released;
+        }
+
+        // the same order as the walk through the queue, which skips the contexts it can not satisfy
+        QueuedContextStruct next = null;
+        List<LockableResource> required = null;
+        for (QueuedContextStruct entry : queue.inOrder(waiters.wakeUp(handable))) {
+            if (!entry.isValid() || entry.isTimedOut()) {
+                // let the walk through the queue clean up
+                return released;
+            }
+            required = getRequiredByName(entry);
+            if (required == null) {
+                return released;
+            }
+            if (required.stream().allMatch(r -> handable.contains(r) || r.isFree())) {
+                next = entry;
+                break;
+            }
+        }
+        Run<?, ?> nextBuild = next != null ? next.getBuild() : null;
+        if (nextBuild == null) {
+            return released;
+        }
+
+        List<LockableResource> handed = new ArrayList<>();
+        String reason = Util.fixEmpty(next.getReason());
+        for (LockableResource resource : required) {
+            if (handable.contains(resource)) {
+                handed.add(resource);
+            }
+            resource.unqueue();
+            resource.setBuild(nextBuild);
+            resource.setLockReason(reason);
+        }
+        LockedResourcesBuildAction.findAndInitAction(build).removeUsedResources(getResourcesNames(handed));
+        LockedResourcesBuildAction.findAndInitAction(nextBuild).addUsedResources(getResourcesNames(required));
+
+        next.candidates = getResourcesNames(required);
+        queue.remove(next);
+        waiters.remove(next);
+        publishQueue();
+        LOGGER.fine("Hand " + handed + " over to next context: " + next);
+
+        LinkedHashMap<String, List<LockableResourceProperty>> lockedResources = new LinkedHashMap<>();
+        for (LockableResource resource : required) {
+            lockedResources.put(resource.getName(), resource.getProperties());
+        }
+        QueuedContextStruct handedTo = next;
+        handedOver.add(() -> LockStepExecution.proceed(
+                lockedResources,
+                handedTo.getContext(),
+                handedTo.getResourceDescription(),
+                handedTo.getVariableName()));
+
+        List<LockableResource> remaining = new ArrayList<>(released);
+        remaining.removeAll(handed);
+        return remaining;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the resources given queued context waits for, if it names all of them and they exist.
+     * Returns {@code null} for labels and match scripts, which select among the free resources.
+     */
+    @CheckForNull
+    private List<LockableResource> getRequiredByName(@NonNull QueuedContextStruct entry) {
+        List<LockableResourcesStruct> structs = entry.getResources();
+        if (structs == null || structs.isEmpty()) {
+            return null;
+        }
+        Set<String> names = new LinkedHashSet<>();
+        for (LockableResourcesStruct struct : structs) {
+            if (struct == null
+                    || struct.getResourceMatchScriptText() != null
+                    || (struct.label != null && !struct.label.isBlank())
+                    || struct.required == null
+                    || struct.required.isEmpty()) {
+                return null;
+            }
+            names.addAll(getResourcesNames(struct.required));
+        }
+        List<LockableResource> required = new ArrayList<>(names.size());
+        for (String name : names) {
+            LockableResource resource = fromName(name);
+            if (resource == null) {
+                return null;
             }
-
-            save();
+            required.add(resource);
         }
-        scheduleQueueMaintenance();
+        return required;
     }
 
     private boolean proceedNextContext() {
@@ -1065,7 +1859,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
             LOGGER.warning("Cannot lock remote resources: " + entry.getLockId());
             return false;
         }
-        getRemoteQueueEntries().remove(entry);
+        getWaitQueue().removeRemote(entry.getLockId());
         // onAcquired marks the record ACQUIRED and builds lockEnvVars (incl. resource properties),
         // using the shared LockStepExecution.buildLockEnvVars - same as local lock().
         entry.onAcquired(resources);
@@ -1091,9 +1885,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
     /** Returns names (IDs) off all existing resources (inclusive ephemeral) */
     @Restricted(NoExternalUse.class)
     public List<String> getAllResourcesNames() {
-        synchronized (syncResources) {
-            return getResourcesNames(this.resources);
-        }
+        return new ArrayList<>(getSnapshot().resourceNames);
     }
 
     // ---------------------------------------------------------------------------
@@ -1104,16 +1896,35 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @CheckForNull
     private QueuedContextStruct getNextQueuedContext() {
 
-        LOGGER.fine("current queue size: " + this.queuedContexts.size());
-        LOGGER.finest("current queue: " + this.queuedContexts);
+        WaitQueue queue = getWaitQueue();
+        LOGGER.fine("current queue size: " + queue.size());
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("current queue: " + queue.getAll());
+        }
         List<QueuedContextStruct> toRemove = new ArrayList<>();
         QueuedContextStruct nextEntry = null;
         long earliestDeadline = Long.MAX_VALUE;
 
-        // the first one added lock is the oldest one, and this wins
+        // When the queue has settled, only the contexts depending on freed resources can proceed
+        // now. Otherwise (first walk, timeouts, configuration changes) every context is checked.
+        WaitersIndex waiters = getWaitersIndex();
+        for (Iterator<LockableResource> iter = wokenResources.iterator(); iter.hasNext(); ) {
+            wakingResources.add(iter.next());
+            iter.remove();
+        }
+        final boolean fullScan = !this.queueSettled;
+        final Set<QueuedContextStruct> woken = fullScan ? null : waiters.wakeUp(wakingResources);
+        if (woken != null && woken.isEmpty()) {
+            LOGGER.finest("No queued context depends on the freed resources " + wakingResources);
+            wakingResources.clear();
+            return null;
+        }
 
-        for (int idx = 0; idx < this.queuedContexts.size() && nextEntry == null; idx++) {
-            QueuedContextStruct entry = this.queuedContexts.get(idx);
+        // the first one added lock is the oldest one, and this wins. The contexts which still wait
+        // for resources, which have not been freed, are not checked at all.
+        List<QueuedContextStruct> entries = woken == null ? queue.getAll() : queue.inOrder(woken);
+        for (int idx = 0; idx < entries.size() && nextEntry == null; idx++) {
+            QueuedContextStruct entry = entries.get(idx);
             // check queue list first
             if (!entry.isValid()) {
                 LOGGER.fine("well be removed: " + idx + " " + entry);
@@ -1148,11 +1959,26 @@ public class LockableResourcesManager extends GlobalConfiguration {
         }
 
         if (!toRemove.isEmpty()) {
-            this.queuedContexts.removeAll(toRemove);
+            for (QueuedContextStruct entry : toRemove) {
+                queue.remove(entry);
+                waiters.remove(entry);
+            }
+            publishQueue();
         }
 
-        // reschedule for the next earliest deadline
-        scheduleTimeoutAt(earliestDeadline);
+        if (fullScan) {
+            // reschedule for the next earliest deadline
+            scheduleTimeoutAt(earliestDeadline);
+        }
+
+        if (nextEntry == null) {
+            // nothing can proceed, until some resource is freed again. Make sure all resources know
+            // this manager (the label index sets it), otherwise they would not report it.
+            getLabelIndex();
+            this.queueSettled = true;
+            waiters.settled();
+            wakingResources.clear();
+        }
 
         return nextEntry;
     }
@@ -1177,11 +2003,14 @@ public class LockableResourcesManager extends GlobalConfiguration {
      */
     @CheckForNull
     private RemoteQueueEntry getNextRemoteEntry() {
-        List<RemoteQueueEntry> list = getRemoteQueueEntries();
+        WaitQueue queue = getWaitQueue();
+        if (queue.remoteSize() == 0) {
+            return null;
+        }
         List<RemoteQueueEntry> toRemove = new ArrayList<>();
         RemoteQueueEntry result = null;
 
-        for (RemoteQueueEntry entry : list) {
+        for (RemoteQueueEntry entry : queue.getAllRemotes()) {
             if (!entry.isValid()) {
                 toRemove.add(entry);
                 continue;
@@ -1203,8 +2032,8 @@ public class LockableResourcesManager extends GlobalConfiguration {
             }
         }
 
-        if (!toRemove.isEmpty()) {
-            list.removeAll(toRemove);
+        for (RemoteQueueEntry entry : toRemove) {
+            queue.removeRemote(entry.getLockId());
         }
         return result;
     }
@@ -1213,9 +2042,21 @@ public class LockableResourcesManager extends GlobalConfiguration {
     /** Returns current queue */
     @Restricted(NoExternalUse.class) // used by jelly
     public List<QueuedContextStruct> getCurrentQueuedContext() {
-        synchronized (syncResources) {
-            return Collections.unmodifiableList(this.queuedContexts);
+        Snapshot current = getSnapshot();
+        if (current.queuedContexts == null) {
+            synchronized (syncResources) {
+                current = getSnapshot();
+                if (current.queuedContexts == null) {
+                    current = new Snapshot(
+                            current.version,
+                            current.resources,
+                            current.resourceNames,
+                            Collections.unmodifiableList(getWaitQueue().getAll()));
+                    this.snapshot = current;
+                }
+            }
         }
+        return current.queuedContexts;
     }
 
     // ---------------------------------------------------------------------------
@@ -1289,17 +2130,29 @@ public class LockableResourcesManager extends GlobalConfiguration {
                 LOGGER.finest("We will add existing resource: " + resource + getStack());
                 return false;
             }
+            Map<String, LockableResource> index = getResourcesByName();
+            LabelIndex labels = getLabelIndex();
             this.resources.add(resource);
+            index.put(resource.getName(), resource);
+            resource.setOwner(this);
+            labels.add(resource);
+            wokenResources.add(resource);
+            resourceChanged(resource);
+            publishResources();
             LOGGER.fine("Resource added : " + resource);
 
-            // Invalidate cache and process waiting pipeline jobs while still holding the lock
-            cachedCandidates.invalidateAll();
+            // Process waiting pipeline jobs while still holding the lock. Cached candidates are
+            // outdated by the new match version (see publishResources()).
             while (proceedNextContext()) {
                 // process as many contexts as possible
             }
 
             if (doSave) {
-                this.save();
+                if (resource.isEphemeral()) {
+                    saveState();
+                } else {
+                    save();
+                }
             }
         }
         // Notify Jenkins queue for freestyle jobs (must be outside synchronized block)
@@ -1339,7 +2192,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
             for (LockableResource r : resources) {
                 r.reserve(userName, reason);
             }
-            save();
+            saveState();
         }
         LOGGER.info("reserve() succeeded user='" + userName + "' resources=" + getResourcesNames(resources));
         return true;
@@ -1378,7 +2231,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
                 r.setReservedTimestamp(date);
                 r.setLockReason(reason);
             }
-            save();
+            saveState();
         }
         return true;
     }
@@ -1399,7 +2252,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
                 r.setReservedBy(userName);
                 r.setReservedTimestamp(date);
             }
-            save();
+            saveState();
         }
     }
 
@@ -1409,7 +2262,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
             uncacheIfFreeing(l, false, true);
             l.unReserve();
         }
-        save();
+        saveState();
     }
 
     // ---------------------------------------------------------------------------
@@ -1425,9 +2278,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
 
             proceedNextContext();
 
-            save();
+            saveState();
         }
-        scheduleQueueMaintenance();
+        scheduleQueueMaintenance(resources);
     }
 
     // ---------------------------------------------------------------------------
@@ -1449,9 +2302,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
                 // process as many contexts as possible
             }
 
-            save();
+            saveState();
         }
-        scheduleQueueMaintenance();
+        scheduleQueueMaintenance(resources);
     }
 
     // ---------------------------------------------------------------------------
@@ -1476,26 +2329,21 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @Restricted(NoExternalUse.class) // used by jelly
     public void changeQueueOrder(final String queueId, final int newPosition) throws IOException {
         synchronized (syncResources) {
-            if (newPosition < 0 || newPosition >= this.queuedContexts.size()) {
-                throw new IOException(
-                        Messages.error_queuePositionOutOfRange(newPosition + 1, this.queuedContexts.size()));
-            }
-
-            int oldIndex = -1;
-            for (int i = 0; i < this.queuedContexts.size(); i++) {
-                QueuedContextStruct entry = this.queuedContexts.get(i);
-                if (entry.getId().equals(queueId)) {
-                    oldIndex = i;
-                    break;
-                }
+            WaitQueue queue = getWaitQueue();
+            if (newPosition < 0 || newPosition >= queue.size()) {
+                throw new IOException(Messages.error_queuePositionOutOfRange(newPosition + 1, queue.size()));
             }
 
-            if (oldIndex < 0) {
+            QueuedContextStruct entry = queue.getById(queueId);
+            if (entry == null) {
                 // no more exists !?
                 throw new IOException(Messages.error_queueDoesNotExist(queueId));
             }
 
-            Collections.swap(this.queuedContexts, oldIndex, newPosition);
+            queue.swap(entry, newPosition);
+            publishQueue();
+            // the journal records added and removed contexts only, the full state is saved
+            saveState();
         }
     }
 
@@ -1528,7 +2376,22 @@ public class LockableResourcesManager extends GlobalConfiguration {
     /** Function removes all given resources */
     public void removeResources(List<LockableResource> toBeRemoved) {
         synchronized (syncResources) {
-            this.resources.removeAll(toBeRemoved);
+            if (!toBeRemoved.isEmpty()) {
+                Map<String, LockableResource> index = getResourcesByName();
+                LabelIndex labels = getLabelIndex();
+                // resources are equal by name, so a hash set gives the same result as the list
+                // without the O(n*m) contains() calls
+                this.resources.removeAll(new HashSet<>(toBeRemoved));
+                for (LockableResource r : toBeRemoved) {
+                    dirtyResources.add(r.getName());
+                    LockableResource removed = index.remove(r.getName());
+                    labels.remove(removed != null ? removed : r);
+                    if (removed != null) {
+                        queueChanged(removed, removed.getQueueItemProject(), null);
+                    }
+                }
+                publishResources();
+            }
         }
         scheduleQueueMaintenance();
     }
@@ -1731,7 +2594,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
     private String getQueueCause(final LockableResource resource) {
         Map<Run<?, ?>, Integer> usage = new HashMap<>();
 
-        for (QueuedContextStruct entry : this.queuedContexts) {
+        for (QueuedContextStruct entry : getWaitQueue().getAll()) {
 
             Run<?, ?> build = entry.getBuild();
             if (build == null) {
@@ -1819,15 +2682,47 @@ public class LockableResourcesManager extends GlobalConfiguration {
             String reason,
             long timeoutForAllocateResource,
             String timeoutUnit) {
+        queueContext(
+                context,
+                requiredResources,
+                resourceDescription,
+                variableName,
+                inversePrecedence,
+                priority,
+                reason,
+                timeoutForAllocateResource,
+                timeoutUnit,
+                null,
+                null);
+    }
+
+    // ---------------------------------------------------------------------------
+    /*
+     * As above, for the given build of the context, and printing the queue position to given logger.
+     * The lock step passes its buffered logger, so nothing is written to the build console while
+     * syncResources is held. The build is indexed, so it does not need to be resolved from the context
+     * when it ends, see unqueueBuild().
+     */
+    @Restricted(NoExternalUse.class)
+    public void queueContext(
+            StepContext context,
+            List<LockableResourcesStruct> requiredResources,
+            String resourceDescription,
+            String variableName,
+            boolean inversePrecedence,
+            int priority,
+            String reason,
+            long timeoutForAllocateResource,
+            String timeoutUnit,
+            @CheckForNull Run<?, ?> build,
+            @Nullable PrintStream logger) {
         synchronized (syncResources) {
-            for (QueuedContextStruct entry : this.queuedContexts) {
-                if (entry.getContext() == context) {
-                    LOGGER.warning("queueContext, duplicated, " + requiredResources);
-                    return;
-                }
+            WaitQueue queue = getWaitQueue();
+            if (queue.get(context) != null) {
+                LOGGER.warning("queueContext, duplicated, " + requiredResources);
+                return;
             }
 
-            int queueIndex = 0;
             QueuedContextStruct newQueueItem = new QueuedContextStruct(
                     context,
                     requiredResources,
@@ -1837,27 +2732,28 @@ public class LockableResourcesManager extends GlobalConfiguration {
                     reason,
                     timeoutForAllocateResource,
                     timeoutUnit);
-
-            if (!inversePrecedence || priority != 0) {
-                queueIndex = this.queuedContexts.size() - 1;
-                for (; queueIndex >= 0; queueIndex--) {
-                    QueuedContextStruct entry = this.queuedContexts.get(queueIndex);
-                    final int rc = entry.compare(newQueueItem);
-                    if (rc > 0) {
-                        continue;
-                    }
-                    break;
-                }
-                queueIndex++;
+            if (build != null) {
+                newQueueItem.setBuild(build);
             }
 
-            this.queuedContexts.add(queueIndex, newQueueItem);
-            printLogs(
-                    requiredResources + " added into queue at position " + queueIndex,
-                    newQueueItem.getLogger(),
-                    Level.FINE);
+            // inverse precedence: the newest one wins, as long as no priority is involved
+            WaitersIndex waiters = getWaitersIndex();
+            if (queue.size() == 0 && queue.remoteSize() == 0) {
+                // nobody waited, so the queue has settled: the new context is resolved with the
+                // resources it waits for (see WaitersIndex), and the next release may hand them over
+                this.queueSettled = true;
+            }
+            queue.add(newQueueItem, inversePrecedence && priority == 0);
+            waiters.add(newQueueItem);
+            publishQueue();
+            String message = requiredResources + " added into queue";
+            if (LOGGER.isLoggable(Level.FINE)) {
+                // O(n), not worth it for the build console only
+                message += " at position " + queue.indexOf(newQueueItem);
+            }
+            printLogs(message, logger != null ? logger : newQueueItem.getLogger(), Level.FINE);
 
-            save();
+            saveState();
 
             // If this entry has a timeout and its deadline is earlier than the
             // currently scheduled one, (re)schedule so it fires on time.
@@ -1871,29 +2767,54 @@ public class LockableResourcesManager extends GlobalConfiguration {
     // ---------------------------------------------------------------------------
     public boolean unqueueContext(StepContext context) {
         synchronized (syncResources) {
-            for (Iterator<QueuedContextStruct> iter = this.queuedContexts.listIterator(); iter.hasNext(); ) {
-                if (iter.next().getContext() == context) {
-                    iter.remove();
-                    save();
-                    return true;
-                }
+            WaitersIndex waiters = getWaitersIndex();
+            QueuedContextStruct entry = getWaitQueue().remove(context);
+            if (entry != null) {
+                waiters.remove(entry);
+                publishQueue();
+                saveState();
+                return true;
             }
         }
         return false;
     }
 
     // ---------------------------------------------------------------------------
-    // Remote queue support
-    // ---------------------------------------------------------------------------
-
-    /** Lazy init accessor - always call under {@link #syncResources}. */
-    private List<RemoteQueueEntry> getRemoteQueueEntries() {
-        if (remoteQueueEntries == null) {
-            remoteQueueEntries = new ArrayList<>();
+    /**
+     * Removes the queued contexts of given build, which completed or was deleted. The contexts are
+     * not asked for their build again, see {@link QueuedContextStruct#isValid()}.
+     */
+    @Restricted(NoExternalUse.class)
+    public void unqueueBuild(@NonNull Run<?, ?> build) {
+        synchronized (syncResources) {
+            WaitQueue queue = getWaitQueue();
+            if (queue.size() == 0) {
+                return;
+            }
+            // only the contexts queued without their build are asked for it
+            List<QueuedContextStruct> candidates = queue.getByBuild(build.getExternalizableId());
+            for (QueuedContextStruct entry : queue.getWithoutBuild()) {
+                if (entry.getBuild() == build) {
+                    candidates.add(entry);
+                }
+            }
+            for (QueuedContextStruct entry : candidates) {
+                LOGGER.fine("Removing queued context of ended build " + entry);
+                entry.buildEnded();
+                queue.remove(entry);
+                getWaitersIndex().remove(entry);
+            }
+            if (!candidates.isEmpty()) {
+                publishQueue();
+                saveState();
+            }
         }
-        return remoteQueueEntries;
     }
 
+    // ---------------------------------------------------------------------------
+    // Remote queue support
+    // ---------------------------------------------------------------------------
+
     /**
      * Returns a read-only snapshot of current remote queue entries.
      * Used by the management UI to show remote API waiters alongside local queue entries.
@@ -1901,7 +2822,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @Restricted(NoExternalUse.class)
     public List<RemoteQueueEntry> getCurrentRemoteQueueEntries() {
         synchronized (syncResources) {
-            return Collections.unmodifiableList(new ArrayList<>(getRemoteQueueEntries()));
+            return Collections.unmodifiableList(getWaitQueue().getAllRemotes());
         }
     }
 
@@ -1912,18 +2833,15 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @Restricted(NoExternalUse.class)
     public void queueRemote(@NonNull RemoteQueueEntry entry) {
         synchronized (syncResources) {
-            List<RemoteQueueEntry> list = getRemoteQueueEntries();
-            int insertAt = list.size();
-            for (int i = list.size() - 1; i >= 0; i--) {
-                if (list.get(i).getPriority() < entry.getPriority()) {
-                    insertAt = i;
-                } else {
-                    break;
-                }
+            WaitQueue queue = getWaitQueue();
+            if (!queue.addRemote(entry)) {
+                LOGGER.warning("Remote acquire queued already: lockId=" + entry.getLockId());
+                return;
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Remote acquire queued: lockId=" + entry.getLockId() + " priority=" + entry.getPriority()
+                        + " position=" + queue.indexOfRemote(entry));
             }
-            list.add(insertAt, entry);
-            LOGGER.fine("Remote acquire queued: lockId=" + entry.getLockId() + " priority=" + entry.getPriority()
-                    + " position=" + insertAt);
         }
     }
 
@@ -1935,8 +2853,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @Restricted(NoExternalUse.class)
     public void unqueueRemote(@NonNull String lockId) {
         synchronized (syncResources) {
-            List<RemoteQueueEntry> list = getRemoteQueueEntries();
-            list.removeIf(e -> lockId.equals(e.getLockId()));
+            getWaitQueue().removeRemote(lockId);
         }
     }
 
@@ -1959,7 +2876,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
             r.unqueue();
             r.setRemoteLockedBy(lockId);
         }
-        save();
+        saveState();
         return true;
     }
 
@@ -1969,19 +2886,21 @@ public class LockableResourcesManager extends GlobalConfiguration {
      */
     @Restricted(NoExternalUse.class)
     public void unlockRemoteResources(@NonNull List<String> resourceNames, @NonNull String lockId) {
+        List<LockableResource> freed = new ArrayList<>();
         synchronized (syncResources) {
             for (String name : resourceNames) {
                 LockableResource r = fromName(name);
                 if (r != null && lockId.equals(r.getRemoteLockedBy())) {
                     r.setRemoteLockedBy(null);
+                    freed.add(r);
                 }
             }
             while (proceedNextContext()) {
                 // drain all newly satisfiable waiters
             }
-            save();
+            saveState();
         }
-        scheduleQueueMaintenance();
+        scheduleQueueMaintenance(freed);
     }
 
     // ---------------------------------------------------------------------------
@@ -2006,12 +2925,75 @@ public class LockableResourcesManager extends GlobalConfiguration {
      * holding the plugin lock while Jenkins acquires the Queue lock.
      */
     public static void scheduleQueueMaintenance() {
+        queueMaintenanceRequests.incrementAndGet();
+        if (queueMaintenanceDelayMs <= 0) {
+            runQueueMaintenance();
+        } else if (queueMaintenancePending.compareAndSet(false, true)) {
+            // a burst of releases (parallel branches ending together) gets one maintenance
+            Timer.get()
+                    .schedule(
+                            () -> {
+                                queueMaintenancePending.set(false);
+                                runQueueMaintenance();
+                            },
+                            queueMaintenanceDelayMs,
+                            TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Lets the queued contexts woken outside of lock and unlock proceed. Runs asynchronously, as the
+     * caller might hold the Jenkins queue lock; a burst of wake-ups gets one walk through the queue.
+     */
+    private void scheduleWakeUp() {
+        if (wakeUpPending.compareAndSet(false, true)) {
+            Timer.get().submit(() -> {
+                wakeUpPending.set(false);
+                synchronized (syncResources) {
+                    while (proceedNextContext()) {
+                        // process as many contexts as possible
+                    }
+                }
+            });
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Same as {@link #scheduleQueueMaintenance()}, unless no blocked freestyle item waits for any of
+     * given freed resources: there is nothing to dispatch then. Items which have not been checked
+     * yet get their own maintenance anyway.
+     */
+    private static void scheduleQueueMaintenance(@NonNull Collection<LockableResource> freed) {
+        LockableResourcesQueueTaskDispatcher dispatcher =
+                QueueTaskDispatcher.all().get(LockableResourcesQueueTaskDispatcher.class);
+        if (dispatcher != null && !dispatcher.mightWaitFor(freed)) {
+            queueMaintenanceRequests.incrementAndGet();
+            queueMaintenanceSkipped.incrementAndGet();
+            return;
+        }
+        scheduleQueueMaintenance();
+    }
+
+    // ---------------------------------------------------------------------------
+    private static void runQueueMaintenance() {
         Jenkins j = Jenkins.getInstanceOrNull();
         if (j != null) {
+            queueMaintenanceIssued.incrementAndGet();
             j.getQueue().scheduleMaintenance();
         }
     }
 
+    // ---------------------------------------------------------------------------
+    /** Counters of the Jenkins queue maintenances requested by this plugin, since startup. */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public static QueueMaintenanceStats getQueueMaintenanceStats() {
+        return new QueueMaintenanceStats(
+                queueMaintenanceRequests.get(), queueMaintenanceIssued.get(), queueMaintenanceSkipped.get());
+    }
+
     // ---------------------------------------------------------------------------
     /**
      * Refresh the queue to allow waiting jobs to re-evaluate available resources.
@@ -2021,17 +3003,21 @@ public class LockableResourcesManager extends GlobalConfiguration {
      * <p>
      * It performs the following actions:
      * <ol>
-     *   <li>Invalidates the cached resource candidates</li>
+     *   <li>Outdates the cached resource candidates and match script results, scripts might read
+     *       state outside of the resources</li>
      *   <li>Processes waiting pipeline job contexts</li>
      *   <li>Triggers Jenkins queue maintenance for freestyle jobs</li>
      * </ol>
      */
     public void refreshQueue() {
-        // Invalidate cached candidates so waiting jobs re-evaluate with current labels
-        cachedCandidates.invalidateAll();
+        // Label changes are tracked by the match version already, but match scripts can read state
+        // not tracked at all (nodes, other items, ...)
+        matchVersion.incrementAndGet();
+        matchScripts.invalidateResults();
 
         // Process waiting pipeline jobs (also handles timeouts)
         synchronized (syncResources) {
+            this.queueSettled = false;
             while (proceedNextContext()) {
                 // process as many contexts as possible
             }
@@ -2050,7 +3036,10 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @Restricted(NoExternalUse.class)
     public void checkTimeouts() {
         synchronized (syncResources) {
-            // proceedNextContext → getNextQueuedContext handles timeouts + rescheduling
+            // proceedNextContext → getNextQueuedContext handles timeouts + rescheduling. Walk through
+            // the whole queue, this is also the safety net for state changes nobody has reported
+            // (like an expired freestyle queue reservation, or a finished build)
+            this.queueSettled = false;
             while (proceedNextContext()) {
                 // process as many contexts as possible
             }
@@ -2087,6 +3076,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
                             synchronized (syncResources) {
                                 nextTimeoutDeadline = 0;
                                 nextTimeoutTask = null;
+                                queueSettled = false;
                                 while (proceedNextContext()) {
                                     // process as many contexts as possible
                                 }
@@ -2116,19 +3106,38 @@ public class LockableResourcesManager extends GlobalConfiguration {
             synchronized (this) {
                 se = saveExecutor;
                 if (se == null) {
-                    saveExecutor = se = Executors.newSingleThreadScheduledExecutor(r -> {
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
                         Thread t = new Thread(r, "lockable-resources-async-save");
                         t.setDaemon(true);
                         return t;
                     });
+                    // flushPendingSave() writes the scheduled save itself
+                    executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+                    saveExecutor = se = executor;
                 }
             }
         }
         return se;
     }
 
+    /** Saves the configuration, and the runtime state changed since the last save. */
     @Override
     public void save() {
+        configSaveRequested = true;
+        scheduleSave();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Saves the runtime state changed since the last save, the configuration file is left alone: the
+     * changed resources and queue entries are appended to the state file, see {@link StateJournal}.
+     */
+    void saveState() {
+        scheduleSave();
+    }
+
+    // ---------------------------------------------------------------------------
+    private void scheduleSave() {
         if (enableSave == -1) {
             // read system property and cache it.
             enableSave = SystemProperties.getBoolean(Constants.SYSTEM_PROPERTY_DISABLE_SAVE) ? 0 : 1;
@@ -2139,29 +3148,407 @@ public class LockableResourcesManager extends GlobalConfiguration {
         if (BulkChange.contains(this)) return;
 
         if (asyncSaveEnabled && saveCoalesceMs > 0) {
+            saveRequests.incrementAndGet();
             if (getSavePending().compareAndSet(false, true)) {
-                getSaveExecutor().schedule(this::doSave, saveCoalesceMs, TimeUnit.MILLISECONDS);
+                try {
+                    getSaveExecutor().schedule(this::doSave, getCoalesceMs(), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException x) {
+                    // shut down by flushPendingSave(), e.g. a failed append retried with the full state
+                    doSave();
+                }
             }
         } else {
             doSave();
         }
     }
 
+    // ---------------------------------------------------------------------------
+    private long getCoalesceMs() {
+        long current = coalesceMs;
+        return current > 0 ? current : saveCoalesceMs;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Adapts the coalesce window to the rate of state changes: it is doubled while several changes
+     * come in per window, and halved again when they calm down.
+     */
+    private void adaptCoalesceWindow() {
+        int requests = saveRequests.getAndSet(0);
+        long current = getCoalesceMs();
+        coalesceMs = requests > 1
+                ? Math.min(saveCoalesceMaxMs, current * 2)
+                : Math.max(saveCoalesceMs, current / 2);
+    }
+
+    // ---------------------------------------------------------------------------
     private void doSave() {
         getSavePending().set(false);
+        adaptCoalesceWindow();
+        boolean captured = false;
         synchronized (syncResources) {
-            try {
-                getConfigFile().write(this);
-            } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "Failed to save " + getConfigFile(), e);
+            // copies the persisted state only, serialization and I/O happen outside of the lock
+            PendingWrite write = captureState();
+            if (write != null) {
+                pendingWrites.add(write);
+                captured = true;
+            }
+            // after the state: the configuration no longer holds the state once it is written
+            if (configSaveRequested) {
+                configSaveRequested = false;
+                pendingWrites.add(new PendingWrite(new Configuration(this), null, false, 0));
+                captured = true;
+            }
+        }
+        if (!captured) {
+            // nothing changed, or changed back
+            saveStats.skipped();
+        }
+        if (!writePending()) {
+            // the next save writes the full state
+            scheduleSave();
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Captures the runtime state to be saved: the changes since the last save, or the full state
+     * when it is requested, the journal is disabled, or the queue has been reordered. Returns
+     * {@code null} when nothing changed. Called under {@link #syncResources}.
+     */
+    @CheckForNull
+    private PendingWrite captureState() {
+        if (journalEnabled && !snapshotRequested) {
+            StateJournal.Delta delta = captureDelta();
+            if (delta != null) {
+                return delta.isEmpty() ? null : new PendingWrite(null, delta, false, stateGeneration);
+            }
+        }
+        return captureFullState();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Captures the changes since the last save. Returns {@code null} when the queue has been
+     * reordered, which is not tracked by deltas.
+     */
+    @CheckForNull
+    private StateJournal.Delta captureDelta() {
+        WaitQueue queue = this.waitQueue;
+        if (queue != null && queue.isReordered()) {
+            return null;
+        }
+
+        StateJournal.Delta delta = new StateJournal.Delta();
+        Map<String, LockableResource> index = getResourcesByName();
+        for (Iterator<String> iter = dirtyResources.iterator(); iter.hasNext(); ) {
+            String name = iter.next();
+            // removed first, a change made meanwhile is marked again
+            iter.remove();
+            LockableResource resource = index.get(name);
+            if (resource == null) {
+                savedStates.remove(name);
+                delta.resourceRemoved(name);
+                continue;
+            }
+            LockableResource saved = savedStates.get(name);
+            if (!resource.isEphemeral() && resource.hasSameState(saved)) {
+                // e.g. locked and unlocked again since the last save
+                continue;
+            }
+            LockableResource copy = resource.copyForSave();
+            rememberSaved(copy);
+            delta.resourceChanged(copy);
+        }
+        if (queue != null && !queue.getChangedIds().isEmpty()) {
+            List<QueuedContextStruct> all = queue.getAll();
+            Set<String> changed = queue.getChangedIds();
+            for (int position = 0; position < all.size(); position++) {
+                if (changed.contains(all.get(position).getId())) {
+                    delta.queued(all.get(position), position);
+                }
+            }
+            for (String id : changed) {
+                if (queue.getById(id) == null) {
+                    delta.unqueued(id);
+                }
+            }
+            queue.clearChanges();
+        }
+        return delta;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Captures the full state, which starts a new generation of the state file. */
+    @NonNull
+    private PendingWrite captureFullState() {
+        snapshotRequested = false;
+        dirtyResources.clear();
+        List<QueuedContextStruct> queue;
+        if (this.waitQueue != null) {
+            queue = this.waitQueue.getAll();
+            this.waitQueue.clearChanges();
+        } else {
+            queue = this.queuedContexts != null ? this.queuedContexts : Collections.emptyList();
+        }
+        stateGeneration++;
+        StateJournal.Delta state = StateJournal.fullState(stateId, this.resources, queue);
+        savedStates.clear();
+        for (LockableResource saved : state.getResources()) {
+            rememberSaved(saved);
+        }
+        return new PendingWrite(null, state, true, stateGeneration);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Remembers given copy as the saved state of its resource. Called under {@link #syncResources}. */
+    private void rememberSaved(@NonNull LockableResource copy) {
+        if (copy.hasState()) {
+            savedStates.put(copy.getName(), copy);
+        } else {
+            savedStates.remove(copy.getName());
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Writes the captured configuration and states in the order they were captured. Returns
+     * {@code false} when a delta could not be appended to the state file. Called outside of
+     * {@link #syncResources}, except for synchronous saves of callers holding it.
+     */
+    private boolean writePending() {
+        boolean appended = true;
+        synchronized (saveLock) {
+            long start = System.nanoTime();
+            long bytes = 0;
+            boolean written = false;
+            for (PendingWrite write; (write = pendingWrites.poll()) != null; ) {
+                written = true;
+                if (write.configuration != null && writtenGeneration < 0) {
+                    // the state file does not hold the state, keep it in the configuration file for now
+                    configSaveRequested = true;
+                } else if (write.configuration != null) {
+                    bytes += writeConfiguration(write.configuration);
+                } else if (write.state != null && write.full) {
+                    bytes += startState(write.state, write.generation);
+                } else if (write.state != null && write.generation == writtenGeneration) {
+                    long length = getJournal().length();
+                    appended &= appendToJournal(write.state);
+                    bytes += Math.max(0, getJournal().length() - length);
+                }
+                // else the state file is not usable, the requested full state covers the delta
+            }
+            if (written) {
+                saveStats.saved(start, bytes);
+            }
+        }
+        return appended;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Counters of the saves since startup, see {@link SaveStats}. */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public SaveStats getSaveStats() {
+        return saveStats.snapshot(getCoalesceMs());
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Writes given copy of the configuration. Returns the bytes written. Guarded by {@link #saveLock}. */
+    private long writeConfiguration(@NonNull Configuration copy) {
+        try {
+            XmlFile file = new XmlFile(Configuration.XSTREAM, getConfigFile().getFile());
+            file.write(copy);
+            return file.getFile().length();
+        } catch (IOException e) {
+            configSaveRequested = true;
+            LOGGER.log(Level.WARNING, "Failed to save " + getConfigFile(), e);
+            return 0;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Appends given delta to the state file. Guarded by {@link #saveLock}. */
+    private boolean appendToJournal(@NonNull StateJournal.Delta delta) {
+        StateJournal stateJournal = getJournal();
+        try {
+            stateJournal.append(delta);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to append to " + stateJournal.getFile() + ", saving all", e);
+            writtenGeneration = -1;
+            snapshotRequested = true;
+            return false;
+        }
+        if (stateJournal.length() >= journalCompactBytes) {
+            // compacts the state file
+            snapshotRequested = true;
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Rewrites the state file with given full state. Returns the bytes written. Guarded by {@link #saveLock}. */
+    private long startState(@NonNull StateJournal.Delta state, long generation) {
+        StateJournal stateJournal = getJournal();
+        try {
+            stateJournal.start(state);
+            writtenGeneration = generation;
+            return stateJournal.length();
+        } catch (IOException | RuntimeException e) {
+            // do not append to a state file, which misses changes
+            writtenGeneration = -1;
+            snapshotRequested = true;
+            LOGGER.log(Level.WARNING, "Failed to save " + stateJournal.getFile(), e);
+            return 0;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Configuration or runtime state captured by {@link #doSave()}: a copy of the configuration, the
+     * full state, or a delta.
+     */
+    private static final class PendingWrite {
+        @CheckForNull
+        final Configuration configuration;
+
+        @CheckForNull
+        final StateJournal.Delta state;
+
+        /** {@link #state} is the full state, not a delta. */
+        final boolean full;
+
+        final long generation;
+
+        PendingWrite(
+                @CheckForNull Configuration configuration,
+                @CheckForNull StateJournal.Delta state,
+                boolean full,
+                long generation) {
+            this.configuration = configuration;
+            this.state = state;
+            this.full = full;
+            this.generation = generation;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Detached copy of the configuration of a manager, written to the configuration file while the
+     * manager keeps changing: the declared resources and the settings, besides the id linking the
+     * state file. Built from those fields only: the runtime state (locks, reservations, ephemeral
+     * resources, the queue and the cached save switch) is left out, it is saved in the state file.
+     * The fields are named like the ones of the manager, and the copy is written under the name of
+     * the manager, so {@link #load()} reads it as before.
+     */
+    @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "Read by XStream.")
+    private static final class Configuration {
+        static final XStream2 XSTREAM = new XStream2();
+
+        static {
+            XSTREAM.alias(LockableResourcesManager.class.getName(), Configuration.class);
+        }
+
+        private final List<LockableResource> resources;
+        private final List<RemoteConnection> remotes;
+        private final boolean allowEmptyOrNullValues;
+        private final boolean allowEphemeralResources;
+        private final String stateId;
+        private final boolean remoteApiEnabled;
+        private final String exposeLabel;
+        private final String clientId;
+        private final String forcedServerId;
+
+        /** Called under {@link #syncResources}. */
+        Configuration(@NonNull LockableResourcesManager source) {
+            resources = new ArrayList<>(source.resources.size());
+            for (LockableResource resource : source.resources) {
+                if (!resource.isEphemeral()) {
+                    resources.add(resource.copyConfiguration());
+                }
             }
+            remotes = source.remotes != null ? new ArrayList<>(source.remotes) : null;
+            allowEmptyOrNullValues = source.allowEmptyOrNullValues;
+            allowEphemeralResources = source.allowEphemeralResources;
+            stateId = source.stateId;
+            remoteApiEnabled = source.remoteApiEnabled;
+            exposeLabel = source.exposeLabel;
+            clientId = source.clientId;
+            forcedServerId = source.forcedServerId;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** State file next to the configuration file. */
+    @NonNull
+    StateJournal getJournal() {
+        if (journal == null) {
+            File configFile = getConfigFile().getFile();
+            String name = configFile.getName().replaceFirst("\\.xml$", "");
+            journal = new StateJournal(
+                    new File(configFile.getParentFile(), name + ".state"), getConfigFile().getXStream());
+        }
+        return journal;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Restores the runtime state saved in the state file on top of the loaded configuration. Without
+     * a state file carrying the {@link #stateId} of the configuration (first start, or configuration
+     * saved by an older version, restored from a backup or from SCM), the state found in the
+     * configuration file is kept, and the state file is written by the next save, before the
+     * configuration. Called by {@link #load()} under {@link #syncResources}.
+     */
+    private void restoreState() {
+        dirtyResources.clear();
+        savedStates.clear();
+        List<StateJournal.Delta> deltas;
+        synchronized (saveLock) {
+            deltas = getJournal().read();
+            if (deltas != null && (stateId == null || !stateId.equals(deltas.get(0).getStateId()))) {
+                LOGGER.warning("Ignoring " + getJournal().getFile() + ", it was not saved along with "
+                        + getConfigFile() + ", keeping the state found in the latter");
+                deltas = null;
+            }
+            writtenGeneration = deltas != null ? stateGeneration : -1;
+        }
+        if (deltas == null) {
+            if (stateId == null) {
+                stateId = UUID.randomUUID().toString();
+            }
+            snapshotRequested = true;
+            // drops the state from the configuration file
+            configSaveRequested = true;
+            return;
+        }
+        if (this.resources == null) {
+            this.resources = new ArrayList<>();
+        }
+        List<QueuedContextStruct> queue = new ArrayList<>();
+        StateJournal.restore(deltas, this.resources, queue);
+        this.queuedContexts = queue;
+        for (LockableResource resource : this.resources) {
+            rememberSaved(resource.copyForSave());
+        }
+        LOGGER.fine("Restored " + deltas.size() + " record(s) from " + getJournal().getFile());
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Writes a pending save right away. */
+    void flushSave() {
+        AtomicBoolean pending = this.savePending;
+        if (pending != null && pending.compareAndSet(true, false)) {
+            doSave();
+        } else {
+            // captured by a save still running
+            writePending();
         }
     }
 
     // ---------------------------------------------------------------------------
     /**
      * Flush any pending async save during Jenkins shutdown so that lock state
-     * is never lost on an orderly restart.
+     * is never lost on an orderly restart. Saves requested later on are written synchronously.
      */
     @Terminator
     public static void flushPendingSave() {
@@ -2171,12 +3558,18 @@ public class LockableResourcesManager extends GlobalConfiguration {
         }
         ScheduledExecutorService se = lrm.saveExecutor;
         if (se != null) {
-            se.shutdownNow();
-        }
-        if (lrm.savePending != null && lrm.savePending.compareAndSet(true, false)) {
-            lrm.doSave();
-            LOGGER.fine("Flushed pending async save during shutdown");
+            // drops the scheduled save, but lets a running one finish its write
+            se.shutdown();
+            try {
+                if (!se.awaitTermination(30, TimeUnit.SECONDS)) {
+                    LOGGER.warning("Async save did not finish in time during shutdown");
+                }
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
         }
+        lrm.flushSave();
+        LOGGER.fine("Flushed pending async save during shutdown");
     }
 
     // ---------------------------------------------------------------------------
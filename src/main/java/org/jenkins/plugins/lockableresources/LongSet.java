@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * See the "LICENSE.txt" file for full copyright and license information.
+ */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Set of {@code long} values without boxing, used for the queue item ids of {@link CandidatesCache}.
+ * Open addressing with linear probing, kept at most half full. Not thread safe.
+ */
+final class LongSet {
+
+    /** Marks a free slot. The value itself is tracked by {@link #hasFree}. */
+    private static final long FREE = 0;
+
+    private long[] slots = new long[4];
+
+    /** Number of used slots. */
+    private int used;
+
+    private boolean hasFree;
+
+    // ---------------------------------------------------------------------------
+    /** Adds given value, returns {@code false} when it is contained already. */
+    boolean add(long value) {
+        if (value == FREE) {
+            boolean added = !hasFree;
+            hasFree = true;
+            return added;
+        }
+        if ((used + 1) * 2 > slots.length) {
+            resize(slots.length * 2);
+        }
+        int mask = slots.length - 1;
+        for (int i = slot(value, mask); ; i = (i + 1) & mask) {
+            if (slots[i] == FREE) {
+                slots[i] = value;
+                used++;
+                return true;
+            }
+            if (slots[i] == value) {
+                return false;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Removes given value, returns {@code false} when it is not contained. */
+    boolean remove(long value) {
+        if (value == FREE) {
+            boolean removed = hasFree;
+            hasFree = false;
+            return removed;
+        }
+        int mask = slots.length - 1;
+        int i = slot(value, mask);
+        while (slots[i] != value) {
+            if (slots[i] == FREE) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = FREE;
+        used--;
+        // shift the following values of the run back, so that lookups do not stop at the hole
+        for (int j = (i + 1) & mask; slots[j] != FREE; j = (j + 1) & mask) {
+            int home = slot(slots[j], mask);
+            boolean stays = i <= j ? i < home && home <= j : i < home || home <= j;
+            if (!stays) {
+                slots[i] = slots[j];
+                slots[j] = FREE;
+                i = j;
+            }
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------
+    boolean contains(long value) {
+        if (value == FREE) {
+            return hasFree;
+        }
+        int mask = slots.length - 1;
+        for (int i = slot(value, mask); slots[i] != FREE; i = (i + 1) & mask) {
+            if (slots[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------
+    int size() {
+        return used + (hasFree ? 1 : 0);
+    }
+
+    // ---------------------------------------------------------------------------
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Passes each value to given action, in no particular order. */
+    void forEach(LongConsumer action) {
+        if (hasFree) {
+            action.accept(FREE);
+        }
+        for (long value : slots) {
+            if (value != FREE) {
+                action.accept(value);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private void resize(int capacity) {
+        long[] previous = slots;
+        slots = new long[capacity];
+        int mask = capacity - 1;
+        for (long value : previous) {
+            if (value != FREE) {
+                int i = slot(value, mask);
+                while (slots[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = value;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Home slot of given value. Consecutive ids are spread over the table. */
+    private static int slot(long value, int mask) {
+        return Long.hashCode(value * 0x9E3779B97F4A7C15L) & mask;
+    }
+}
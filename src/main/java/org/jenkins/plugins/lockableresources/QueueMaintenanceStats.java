@@ -0,0 +1,56 @@
+/*
+ * The MIT License
+ *
+ * See the "LICENSE.txt" file for full copyright and license information.
+ */
+package org.jenkins.plugins.lockableresources;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Snapshot of the Jenkins queue maintenance counters, see {@link
+ * LockableResourcesManager#getQueueMaintenanceStats()}. Freeing resources requests a maintenance,
+ * so that blocked freestyle items get them. Requests within a short window are coalesced into one
+ * maintenance, and requests freeing resources no blocked item waits for are skipped.
+ */
+@ExportedBean
+@Restricted(NoExternalUse.class)
+public final class QueueMaintenanceStats {
+
+    private final long requests;
+    private final long issued;
+    private final long skipped;
+
+    QueueMaintenanceStats(long requests, long issued, long skipped) {
+        this.requests = requests;
+        this.issued = issued;
+        this.skipped = skipped;
+    }
+
+    /** Maintenance requests since startup. */
+    @Exported
+    public long getRequests() {
+        return requests;
+    }
+
+    /** Maintenances scheduled in Jenkins since startup. */
+    @Exported
+    public long getIssued() {
+        return issued;
+    }
+
+    /** Requests skipped, since no blocked item waits for the freed resources. */
+    @Exported
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /** Requests merged into a maintenance requested before. */
+    @Exported
+    public long getCoalesced() {
+        return Math.max(0, requests - issued - skipped);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * See the "LICENSE.txt" file for full copyright and license information.
+ */
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.Collections;
+import java.util.Map;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Snapshot of the resource counters kept by {@link LockableResourcesManager}, see
+ * {@link LockableResourcesManager#getResourceCounts()}.
+ *
+ * <p>A reserved resource is counted as reserved, even when it is locked too. The pool counters count
+ * queued resources as free, since the queued state is transient and nearly invisible in practice. The
+ * label counters do not, same as {@link LockableResourcesManager#getFreeResourceAmount(String)}.
+ */
+@Restricted(NoExternalUse.class)
+public final class ResourceCounts {
+
+    private final int total;
+    private final int locked;
+    private final int reserved;
+    private final int free;
+    private final Map<String, LabelCount> labels;
+
+    ResourceCounts(int total, int locked, int reserved, int free, @NonNull Map<String, LabelCount> labels) {
+        this.total = total;
+        this.locked = locked;
+        this.reserved = reserved;
+        this.free = free;
+        this.labels = Collections.unmodifiableMap(labels);
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getLocked() {
+        return locked;
+    }
+
+    public int getReserved() {
+        return reserved;
+    }
+
+    public int getFree() {
+        return free;
+    }
+
+    /** Returns counters of all labels, in the order the labels have been seen first. */
+    @NonNull
+    public Map<String, LabelCount> getLabels() {
+        return labels;
+    }
+
+    /** Returns counters of given label, or {@code null} when no resource carries it. */
+    @CheckForNull
+    public LabelCount getLabel(@CheckForNull String label) {
+        return label == null ? null : labels.get(label);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Counters of one label. */
+    public static final class LabelCount {
+        private final String name;
+        private final int free;
+        private final int assigned;
+
+        LabelCount(String name, int free, int assigned) {
+            this.name = name;
+            this.free = free;
+            this.assigned = assigned;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Resources carrying the label, which are neither locked nor reserved. */
+        public int getFree() {
+            return free;
+        }
+
+        /** Resources carrying the label. */
+        public int getAssigned() {
+            return assigned;
+        }
+    }
+}
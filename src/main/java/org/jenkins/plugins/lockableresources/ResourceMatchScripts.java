@@ -0,0 +1,583 @@
+/*
+ * The MIT License
+ *
+ * See the "LICENSE.txt" file for full copyright and license information.
+ */
+package org.jenkins.plugins.lockableresources;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import groovy.transform.ThreadInterrupt;
+import hudson.Util;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.jenkins.plugins.lockableresources.util.Constants;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.RejectedAccessException;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.GroovySandbox;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.ClassLoaderWhitelist;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.ProxyWhitelist;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.StaticWhitelist;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
+import org.springframework.security.core.Authentication;
+
+/**
+ * Evaluates resource match scripts ({@code resourceMatchScript} of freestyle jobs) against a set of
+ * resources.
+ *
+ * <p>{@link SecureGroovyScript#evaluate} compiles the script and sets up the sandbox for each call,
+ * so evaluating it once per resource is expensive. Here each script is compiled once and the
+ * compiled class is cached, keyed by the script hash, the sandbox flag and the class loader. The
+ * resources are grouped into classes by the values of the variables the script reads, and one
+ * resource of each class without cached result is evaluated. Those are evaluated in one go, split
+ * into chunks evaluated in parallel on a small dedicated pool, as the calling user. One evaluation
+ * has a time budget, a script exceeding it is interrupted and fails like a broken script.
+ *
+ * <p>Unsandboxed scripts are checked for approval on each evaluation, so revoking an approval takes
+ * effect immediately. Scripts with additional classpath entries are evaluated through
+ * {@link SecureGroovyScript#evaluate}, which takes care of approving those entries.
+ */
+final class ResourceMatchScripts {
+
+    private static final Logger LOGGER = Logger.getLogger(ResourceMatchScripts.class.getName());
+
+    /**
+     * Caching can be disabled by setting it to 0 or less, other values have no effect: the results
+     * are kept as long as their match version holds, see {@link #match}.
+     */
+    private static final long SCRIPT_CACHE_TTL_MS =
+            SystemProperties.getLong(Constants.SYSTEM_PROPERTY_SCRIPT_CACHE_TTL_MS, 30_000L);
+
+    /** Variables describing the resource, see {@link LockableResource#createScriptBinding}. */
+    private static final List<String> RESOURCE_VARIABLES = Collections.unmodifiableList(Arrays.asList(
+            "resourceName", "resourceDescription", "resourceLabels", "resourceNote", "resourceLockReason"));
+
+    /** Ways a script can read its variables without naming them (or hide their names). */
+    private static final Pattern DYNAMIC_ACCESS = Pattern.compile(
+            "\\b(this|binding|getBinding|getProperty|getVariable|getVariables|variables|properties|owner|delegate"
+                    + "|thisObject|evaluate|invokeMethod|metaClass)\\b|\\\\u");
+
+    /** Compiled scripts. Keeps the class loaders of the scripts alive, so it is bounded. */
+    private final Cache<String, Class<? extends Script>> compiled = CacheBuilder.newBuilder()
+            .maximumSize(100)
+            .expireAfterAccess(30, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * Results by script (and parameters) and class of resources, see {@link #match}. The class key
+     * consists of the values the script reads. The results of a script are dropped as soon as its
+     * match version changes (see {@link LockableResourcesManager#getMatchVersion(SecureGroovyScript)}),
+     * they do not expire by time. Bounded by size only.
+     */
+    private final Cache<String, VersionedResults> results =
+            CacheBuilder.newBuilder().maximumSize(1_000).build();
+
+    /** Timings by script hash, bounded like {@link #compiled}: scripts might be generated. */
+    private final Cache<String, Timings> timings = CacheBuilder.newBuilder()
+            .maximumSize(100)
+            .expireAfterAccess(30, TimeUnit.MINUTES)
+            .build();
+
+    /** Maximum number of threads evaluating scripts. */
+    private static final int PARALLELISM = Math.max(
+            1,
+            SystemProperties.getInteger(
+                    Constants.SYSTEM_PROPERTY_SCRIPT_MATCH_PARALLELISM,
+                    Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    /**
+     * Time budget (ms) of one evaluation over all resources, 0 or less means no limit. The compiled
+     * scripts check for the interrupt on each loop and method start (see {@link #compile}), so even a
+     * busy loop stops once the budget is exceeded.
+     */
+    private static final long TIMEOUT_MS =
+            SystemProperties.getLong(Constants.SYSTEM_PROPERTY_SCRIPT_MATCH_TIMEOUT_MS, 10_000L);
+
+    /** The interrupt checks added by {@link ThreadInterrupt}, allowed in the sandbox. */
+    private static final Whitelist INTERRUPT_CHECKS = createInterruptChecksWhitelist();
+
+    /** Smaller chunks are not worth another thread. */
+    private static final int MIN_CHUNK_SIZE = 16;
+
+    private static volatile ExecutorService pool;
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the resources matching given script, in the order of given resources.
+     *
+     * <p>Resources agreeing in all the variables the script reads form one class, the script is
+     * evaluated once per class. The results are cached per class as well, so a pool of identical
+     * resources costs one evaluation. They are reused as long as given match version of the script
+     * holds, read by the caller before it took the resources.
+     *
+     * @throws ExecutionException Script execution failed for one of the resources (or is not
+     *     approved).
+     */
+    @NonNull
+    List<LockableResource> match(
+            @NonNull List<LockableResource> resources,
+            @NonNull SecureGroovyScript script,
+            @CheckForNull Map<String, Object> params,
+            long version)
+            throws ExecutionException {
+        List<String> variables = getReadVariables(script.getScript());
+        Map<String, Boolean> classResults = getClassResults(buildScriptCacheKey(script.getScript(), params), version);
+
+        String[] classes = new String[resources.size()];
+        Map<String, LockableResource> toEvaluate = new LinkedHashMap<>();
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = getClassKey(resources.get(i), variables);
+            if (!classResults.containsKey(classes[i])) {
+                toEvaluate.putIfAbsent(classes[i], resources.get(i));
+            }
+        }
+
+        if (!toEvaluate.isEmpty()) {
+            boolean[] evaluated = evaluate(new ArrayList<>(toEvaluate.values()), script, params);
+            int j = 0;
+            for (String classKey : toEvaluate.keySet()) {
+                classResults.put(classKey, evaluated[j++]);
+            }
+        }
+
+        List<LockableResource> found = new ArrayList<>();
+        for (int i = 0; i < classes.length; i++) {
+            if (classResults.get(classes[i])) {
+                found.add(resources.get(i));
+            }
+        }
+        return found;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the cached results by class of given script of given match version, replacing older
+     * ones. Results computed for an outdated version are not cached.
+     */
+    @NonNull
+    private Map<String, Boolean> getClassResults(@NonNull String cacheKey, long version) {
+        if (SCRIPT_CACHE_TTL_MS <= 0) {
+            return new HashMap<>();
+        }
+        VersionedResults cached = results.asMap()
+                .compute(cacheKey, (k, v) -> v != null && v.version >= version ? v : new VersionedResults(version));
+        return cached.version == version ? cached.byClass : new HashMap<>();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Results of one script by class of resources, valid for one match version. */
+    private static final class VersionedResults {
+        final long version;
+        final Map<String, Boolean> byClass = new ConcurrentHashMap<>();
+
+        VersionedResults(long version) {
+            this.version = version;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Drops all cached results. Scripts may read state outside of their binding (nodes, other
+     * items), changes of such state are not tracked.
+     */
+    void invalidateResults() {
+        results.invalidateAll();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the resource variables (see {@link LockableResource#createScriptBinding}) given script
+     * reads. A script which might access its variables dynamically reads all of them.
+     */
+    @NonNull
+    static List<String> getReadVariables(@NonNull String scriptText) {
+        if (DYNAMIC_ACCESS.matcher(scriptText).find()) {
+            return RESOURCE_VARIABLES;
+        }
+        List<String> read = new ArrayList<>();
+        for (String variable : RESOURCE_VARIABLES) {
+            if (Pattern.compile("\\b" + variable + "\\b").matcher(scriptText).find()) {
+                read.add(variable);
+            }
+        }
+        return read;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Key of the class of given resource: the values of given variables. */
+    @NonNull
+    static String getClassKey(@NonNull LockableResource resource, @NonNull List<String> variables) {
+        StringBuilder key = new StringBuilder();
+        for (String variable : variables) {
+            Object value;
+            switch (variable) {
+                case "resourceName":
+                    value = resource.getName();
+                    break;
+                case "resourceDescription":
+                    value = resource.getDescription();
+                    break;
+                case "resourceLabels":
+                    value = String.join(" ", resource.getLabelsAsList());
+                    break;
+                case "resourceNote":
+                    value = resource.getNote();
+                    break;
+                case "resourceLockReason":
+                    value = resource.getLockReason();
+                    break;
+                default:
+                    throw new IllegalArgumentException(variable);
+            }
+            // null and "null" must differ
+            key.append(value == null ? "\u0000" : value).append('\u0001');
+        }
+        return key.toString();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Builds the key of the cached results of a script.
+     *
+     * <p>The cached match result depends not only on the script text but also on the build
+     * parameters bound into the script's execution (for example a {@code TARGET_ENVIRONMENT}
+     * parameter referenced by the script). Different jobs commonly share an identical match script
+     * and differ only by their parameters, so the parameters must form part of the key. Keying on
+     * the script text alone causes the first build's result to be reused for every other build,
+     * making them all resolve to the same resource and serialise behind it.
+     *
+     * @param scriptText the Groovy match script text
+     * @param params the parameter bindings supplied to the script (may be {@code null})
+     * @return a key combining the script text with a deterministic encoding of the parameters
+     */
+    static String buildScriptCacheKey(String scriptText, @CheckForNull Map<String, Object> params) {
+        if (params == null || params.isEmpty()) {
+            return scriptText;
+        }
+        // Sort by key for a deterministic, order-independent encoding.
+        StringBuilder sb = new StringBuilder(scriptText);
+        for (Map.Entry<String, Object> entry : new TreeMap<>(params).entrySet()) {
+            sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Evaluates given script for each of given resources. The resources are split into chunks,
+     * which are evaluated on the {@link #getPool() pool} within the {@link #TIMEOUT_MS time budget}.
+     *
+     * @throws ExecutionException Script execution failed for one of the resources, is not approved or
+     *     did not finish in time.
+     */
+    @NonNull
+    boolean[] evaluate(
+            @NonNull List<LockableResource> resources,
+            @NonNull SecureGroovyScript script,
+            @CheckForNull Map<String, Object> params)
+            throws ExecutionException {
+        boolean[] results = new boolean[resources.size()];
+        ClassLoader loader = Jenkins.get().getPluginManager().uberClassLoader;
+        if (!script.getClasspath().isEmpty()) {
+            evaluateInChunks(resources.size(), (from, to, cancelled) -> {
+                for (int i = from; i < to && !isCancelled(cancelled); i++) {
+                    Binding binding = resources.get(i).createScriptBinding(params);
+                    results[i] = toBoolean(evaluateUncompiled(script, loader, binding));
+                }
+            });
+            return results;
+        }
+
+        Timings stats = getTimings(script);
+        Class<? extends Script> scriptClass;
+        try {
+            String text = script.isSandbox()
+                    ? script.getScript()
+                    // throws UnapprovedUsageException
+                    : ScriptApproval.get().using(script.getScript(), GroovyLanguage.get());
+            scriptClass = compile(text, script.isSandbox(), loader, stats);
+        } catch (Exception x) {
+            throw new ExecutionException(
+                    "Cannot get boolean result out of groovy expression. See system log for more info", x);
+        }
+
+        long start = System.nanoTime();
+        evaluateInChunks(resources.size(), (from, to, cancelled) -> {
+            if (!script.isSandbox()) {
+                run(scriptClass, resources, params, results, from, to, cancelled);
+                return;
+            }
+            // the sandbox scope is bound to the current thread, so each chunk enters its own
+            GroovySandbox sandbox = new GroovySandbox()
+                    .withWhitelist(new ProxyWhitelist(
+                            new ClassLoaderWhitelist(scriptClass.getClassLoader()), INTERRUPT_CHECKS, Whitelist.all()));
+            try (GroovySandbox.Scope scope = sandbox.enter()) {
+                run(scriptClass, resources, params, results, from, to, cancelled);
+            } catch (RejectedAccessException x) {
+                // records the signature as pending approval
+                throw ScriptApproval.get().accessRejected(x, ApprovalContext.create());
+            }
+        });
+        stats.evaluated(resources.size(), System.nanoTime() - start);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Checked " + resources.size() + " resource(s) for " + script.getScript() + ": " + stats);
+        }
+        return results;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Splits the indexes {@code [0, count)} into chunks and evaluates them in parallel, as the
+     * calling user. Waits for all of them, but not longer than {@link #TIMEOUT_MS}. On failure or
+     * timeout the remaining chunks are cancelled and the running ones interrupted.
+     */
+    private static void evaluateInChunks(int count, Chunk chunk) throws ExecutionException {
+        if (count == 0) {
+            return;
+        }
+        int chunks = Math.max(1, Math.min(PARALLELISM, count / MIN_CHUNK_SIZE));
+        int chunkSize = (count + chunks - 1) / chunks;
+        // the scripts see the items and nodes the caller sees (SYSTEM in the queue maintenance)
+        Authentication auth = Jenkins.getAuthentication2();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        List<Future<?>> futures = new ArrayList<>(chunks);
+        for (int from = 0; from < count; from += chunkSize) {
+            final int start = from;
+            final int end = Math.min(count, from + chunkSize);
+            futures.add(getPool().submit(() -> {
+                try (ACLContext ignored = ACL.as2(auth)) {
+                    chunk.evaluate(start, end, cancelled);
+                }
+                return null;
+            }));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        try {
+            for (Future<?> future : futures) {
+                if (TIMEOUT_MS > 0) {
+                    future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } else {
+                    future.get();
+                }
+            }
+        } catch (TimeoutException x) {
+            throw new ExecutionException(
+                    "Resource match script did not finish within " + TIMEOUT_MS + " ms for " + count
+                            + " resource(s)",
+                    x);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException("Interrupted while evaluating resource match script", x);
+        } catch (ExecutionException x) {
+            if (x.getCause() instanceof ExecutionException) {
+                throw (ExecutionException) x.getCause();
+            }
+            throw new ExecutionException(
+                    "Cannot get boolean result out of groovy expression. See system log for more info", x.getCause());
+        } finally {
+            cancelled.set(true);
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Pool used for the evaluation, created on first use. Unlike a fork/join pool, cancelling its
+     * tasks interrupts the threads running them.
+     */
+    private static ExecutorService getPool() {
+        ExecutorService current = pool;
+        if (current == null) {
+            synchronized (ResourceMatchScripts.class) {
+                current = pool;
+                if (current == null) {
+                    AtomicInteger threadCount = new AtomicInteger();
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                            PARALLELISM, PARALLELISM, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                                Thread t = new Thread(
+                                        r, "lockable-resources-match-script-" + threadCount.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                            });
+                    executor.allowCoreThreadTimeOut(true);
+                    pool = current = executor;
+                }
+            }
+        }
+        return current;
+    }
+
+    // ---------------------------------------------------------------------------
+    private static void run(
+            Class<? extends Script> scriptClass,
+            List<LockableResource> resources,
+            @CheckForNull Map<String, Object> params,
+            boolean[] results,
+            int from,
+            int to,
+            AtomicBoolean cancelled)
+            throws ExecutionException {
+        for (int i = from; i < to && !isCancelled(cancelled); i++) {
+            Binding binding = resources.get(i).createScriptBinding(params);
+            results[i] = toBoolean(InvokerHelper.createScript(scriptClass, binding).run());
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** A script blocking in an interruptible call is stopped by the interrupt, the others here. */
+    private static boolean isCancelled(AtomicBoolean cancelled) {
+        return cancelled.get() || Thread.currentThread().isInterrupted();
+    }
+
+    // ---------------------------------------------------------------------------
+    private static Object evaluateUncompiled(SecureGroovyScript script, ClassLoader loader, Binding binding)
+            throws ExecutionException {
+        try {
+            return script.evaluate(loader, binding, null);
+        } catch (Exception x) {
+            throw new ExecutionException(
+                    "Cannot get boolean result out of groovy expression. See system log for more info", x);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private static boolean toBoolean(Object result) throws ExecutionException {
+        if (result instanceof Boolean) {
+            return (Boolean) result;
+        }
+        throw new ExecutionException(
+                "Cannot get boolean result out of groovy expression. See system log for more info",
+                new ClassCastException("Expected a boolean, but got " + result));
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Compiles given script. The script checks the interrupt flag of its thread on each loop and
+     * method start, so that cancelling a timed out evaluation stops it wherever it spins.
+     */
+    private Class<? extends Script> compile(String text, boolean sandbox, ClassLoader loader, Timings stats)
+            throws ExecutionException {
+        String key = (sandbox ? "sandbox:" : "approved:") + System.identityHashCode(loader) + ":" + hash(text);
+        return compiled.get(key, () -> {
+            long start = System.nanoTime();
+            CompilerConfiguration configuration =
+                    sandbox ? GroovySandbox.createSecureCompilerConfiguration() : new CompilerConfiguration();
+            configuration.addCompilationCustomizers(new ASTTransformationCustomizer(ThreadInterrupt.class));
+            GroovyShell shell = new GroovyShell(
+                    sandbox ? GroovySandbox.createSecureClassLoader(loader) : loader, new Binding(), configuration);
+            Class<? extends Script> scriptClass = shell.parse(text).getClass();
+            stats.compiled(System.nanoTime() - start);
+            return scriptClass;
+        });
+    }
+
+    // ---------------------------------------------------------------------------
+    private static Whitelist createInterruptChecksWhitelist() {
+        try {
+            return new StaticWhitelist(
+                    "staticMethod java.lang.Thread currentThread",
+                    "method java.lang.Thread isInterrupted",
+                    "new java.lang.InterruptedException java.lang.String");
+        } catch (IOException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private Timings getTimings(SecureGroovyScript script) {
+        return timings.asMap().computeIfAbsent(hash(script.getScript()), k -> new Timings());
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns compile and evaluation timings, by script hash. */
+    @NonNull
+    Map<String, Timings> getTimings() {
+        return Collections.unmodifiableMap(timings.asMap());
+    }
+
+    // ---------------------------------------------------------------------------
+    private static String hash(String text) {
+        return Util.getDigestOf(text);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Evaluates the resources {@code [from, to)}, stops early once cancelled. */
+    @FunctionalInterface
+    private interface Chunk {
+        void evaluate(int from, int to, AtomicBoolean cancelled) throws ExecutionException;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Compile and evaluation timings of one script. */
+    static final class Timings {
+        private final AtomicLong compilations = new AtomicLong();
+        private final AtomicLong compileNanos = new AtomicLong();
+        private final AtomicLong evaluations = new AtomicLong();
+        private final AtomicLong evaluationNanos = new AtomicLong();
+
+        void compiled(long nanos) {
+            compilations.incrementAndGet();
+            compileNanos.addAndGet(nanos);
+        }
+
+        void evaluated(int count, long nanos) {
+            evaluations.addAndGet(count);
+            evaluationNanos.addAndGet(nanos);
+        }
+
+        long getCompilations() {
+            return compilations.get();
+        }
+
+        long getEvaluations() {
+            return evaluations.get();
+        }
+
+        @Override
+        public String toString() {
+            return "compiled " + compilations.get() + " time(s) in "
+                    + TimeUnit.NANOSECONDS.toMillis(compileNanos.get()) + " ms, evaluated "
+                    + evaluations.get() + " time(s) in "
+                    + TimeUnit.NANOSECONDS.toMillis(evaluationNanos.get()) + " ms";
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * See the "LICENSE.txt" file for full copyright and license information.
+ */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Snapshot of the save counters kept by {@link LockableResourcesManager}, see {@link
+ * LockableResourcesManager#getSaveStats()}. A save writes the configuration file, the state file or
+ * both. A save is skipped when nothing changed since the last one, for example a resource was
+ * locked and unlocked again within the coalesce window.
+ */
+@ExportedBean
+@Restricted(NoExternalUse.class)
+public final class SaveStats {
+
+    private final long saves;
+    private final int savesLastMinute;
+    private final long skippedSaves;
+    private final long bytesWritten;
+    private final long writeNanos;
+    private final long maxWriteNanos;
+    private final long coalesceMillis;
+
+    private SaveStats(
+            long saves,
+            int savesLastMinute,
+            long skippedSaves,
+            long bytesWritten,
+            long writeNanos,
+            long maxWriteNanos,
+            long coalesceMillis) {
+        this.saves = saves;
+        this.savesLastMinute = savesLastMinute;
+        this.skippedSaves = skippedSaves;
+        this.bytesWritten = bytesWritten;
+        this.writeNanos = writeNanos;
+        this.maxWriteNanos = maxWriteNanos;
+        this.coalesceMillis = coalesceMillis;
+    }
+
+    /** Saves which wrote anything, since startup. */
+    @Exported
+    public long getSaves() {
+        return saves;
+    }
+
+    /** Saves which wrote anything, within the last minute. */
+    @Exported
+    public int getSavesPerMinute() {
+        return savesLastMinute;
+    }
+
+    /** Saves which had nothing to write, since startup. */
+    @Exported
+    public long getSkippedSaves() {
+        return skippedSaves;
+    }
+
+    /** Bytes written to the configuration and state files, since startup. */
+    @Exported
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** Average duration of the saves which wrote anything, serialization included. */
+    @Exported
+    public double getAverageWriteMillis() {
+        return saves == 0 ? 0 : (double) writeNanos / saves / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /** Longest duration of a save, serialization included. */
+    @Exported
+    public double getMaxWriteMillis() {
+        return (double) maxWriteNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /** Current coalesce window, see {@link org.jenkins.plugins.lockableresources.util.Constants}. */
+    @Exported
+    public long getCoalesceMillis() {
+        return coalesceMillis;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Collects the counters, thread safe. */
+    static final class Recorder {
+
+        private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+        private long saves;
+        private long skippedSaves;
+        private long bytesWritten;
+        private long writeNanos;
+        private long maxWriteNanos;
+
+        /** Start times of the saves within the last minute, oldest first. */
+        private final Deque<Long> recentSaves = new ArrayDeque<>();
+
+        synchronized void saved(long startNanos, long bytes) {
+            long duration = System.nanoTime() - startNanos;
+            saves++;
+            bytesWritten += bytes;
+            writeNanos += duration;
+            maxWriteNanos = Math.max(maxWriteNanos, duration);
+            recentSaves.addLast(startNanos);
+            prune(startNanos);
+        }
+
+        synchronized void skipped() {
+            skippedSaves++;
+        }
+
+        private void prune(long now) {
+            while (!recentSaves.isEmpty() && now - recentSaves.peekFirst() > MINUTE) {
+                recentSaves.removeFirst();
+            }
+        }
+
+        synchronized SaveStats snapshot(long coalesceMillis) {
+            prune(System.nanoTime());
+            return new SaveStats(
+                    saves, recentSaves.size(), skippedSaves, bytesWritten, writeNanos, maxWriteNanos, coalesceMillis);
+        }
+    }
+}
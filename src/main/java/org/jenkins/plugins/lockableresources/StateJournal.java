@@ -0,0 +1,381 @@
+/*
+ * The MIT License
+ *
+ * See the "LICENSE.txt" file for full copyright and license information.
+ */
+package org.jenkins.plugins.lockableresources;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.XStreamException;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+
+/**
+ * Runtime state of the {@link LockableResourcesManager}: which resources are locked, reserved or
+ * queued, the ephemeral resources and the queued contexts. It is saved in its own file next to the
+ * configuration file, so that locking does not rewrite the configuration, and configuration changes
+ * do not rewrite the state.
+ *
+ * <p>The file starts with the full state, followed by the {@link Delta}s appended by later saves.
+ * Locking, unlocking, reserving and queueing change a few resources or queue entries only, so the
+ * file is rewritten from time to time only, see {@link #start(Delta)}. On startup the state is
+ * replayed on top of the configuration, see {@link #restore(List, List, List)}.
+ *
+ * <p>Each record is written as its length followed by its XML form. A record cut off by a crash is
+ * dropped, as are the ones after it. Not thread safe, guarded by the save lock of the manager.
+ */
+final class StateJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(StateJournal.class.getName());
+
+    private static final int MAGIC = 0x4c525332; // LRS2
+
+    private static final int HEADER_LENGTH = 4;
+
+    /** Bigger records can only be garbage. */
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    private final File file;
+
+    private final XStream xstream;
+
+    /** Length of the valid part of the file, -1 as long as it is not known or not valid. */
+    private long length = -1;
+
+    StateJournal(@NonNull File file, @NonNull XStream xstream) {
+        this.file = file;
+        this.xstream = xstream;
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    File getFile() {
+        return file;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Length of the file in bytes, 0 when it has not been started. */
+    long length() {
+        return Math.max(0, length);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Reads the full state and the deltas, in order. Returns {@code null} when there is no valid
+     * state file.
+     */
+    @CheckForNull
+    List<Delta> read() {
+        List<Delta> deltas = new ArrayList<>();
+        scan(deltas);
+        return deltas.isEmpty() ? null : deltas;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Appends given delta.
+     *
+     * @throws IOException The file could not be written, or it has not been started.
+     */
+    void append(@NonNull Delta delta) throws IOException {
+        if (this.length < 0 && !scan(null)) {
+            throw new IOException(file + " has not been started");
+        }
+
+        byte[] record = toRecord(delta);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            // drops a partially written record of a previous run
+            channel.truncate(this.length);
+            channel.position(this.length);
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException x) {
+            // the valid length is not known any more
+            this.length = -1;
+            throw x;
+        }
+        this.length += record.length;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Replaces the file by one holding given full state only. The file is replaced atomically, where
+     * the file system supports it, so a crash leaves either the old or the new state.
+     */
+    void start(@NonNull Delta state) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.write(toRecord(state));
+        out.flush();
+
+        this.length = -1;
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(
+                tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException x) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        this.length = bytes.size();
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    private byte[] toRecord(@NonNull Delta delta) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] xml = xstream.toXML(delta).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(xml.length);
+        out.write(xml);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Reads the file and remembers its valid length. The records are parsed only when {@code deltas}
+     * is given. Returns {@code false} when there is no valid file.
+     */
+    private boolean scan(@CheckForNull List<Delta> deltas) {
+        this.length = -1;
+        if (!file.exists()) {
+            return false;
+        }
+        try (InputStream stream = Files.newInputStream(file.toPath());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            if (in.readInt() != MAGIC) {
+                LOGGER.warning("Ignoring " + file + ", it is not a state file");
+                return false;
+            }
+            long valid = HEADER_LENGTH;
+            int count = 0;
+            while (true) {
+                int recordLength;
+                try {
+                    recordLength = in.readInt();
+                } catch (EOFException x) {
+                    break;
+                }
+                if (recordLength < 0 || recordLength > MAX_RECORD_LENGTH) {
+                    LOGGER.warning("Corrupted record at " + valid + " in " + file + ", dropping the rest");
+                    break;
+                }
+                byte[] xml = new byte[recordLength];
+                try {
+                    in.readFully(xml);
+                } catch (EOFException x) {
+                    LOGGER.warning("Incomplete record at " + valid + " in " + file + ", dropping it");
+                    break;
+                }
+                if (deltas != null) {
+                    try {
+                        deltas.add((Delta) xstream.fromXML(new String(xml, StandardCharsets.UTF_8)));
+                    } catch (XStreamException | ClassCastException x) {
+                        LOGGER.log(
+                                Level.WARNING, "Unreadable record at " + valid + " in " + file + ", dropping the rest", x);
+                        break;
+                    }
+                }
+                valid += 4 + recordLength;
+                count++;
+            }
+            if (count == 0) {
+                // not even the full state
+                LOGGER.warning("Ignoring " + file + ", it is empty");
+                return false;
+            }
+            this.length = valid;
+            LOGGER.fine("Read " + count + " record(s) from " + file);
+            return true;
+        } catch (EOFException x) {
+            LOGGER.warning("Ignoring " + file + ", the header is incomplete");
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "Failed to read " + file, x);
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the full state of given resources and queue, to {@link #start(Delta) start} the file
+     * with. Only resources with runtime state are included, see {@link LockableResource#hasState()}.
+     * The state is stamped with given id of the configuration it belongs to.
+     */
+    @NonNull
+    static Delta fullState(
+            @CheckForNull String stateId,
+            @NonNull List<LockableResource> resources,
+            @NonNull List<QueuedContextStruct> queue) {
+        Delta state = new Delta();
+        state.stateId = stateId;
+        for (LockableResource resource : resources) {
+            if (resource.hasState()) {
+                state.resourceChanged(resource.copyForSave());
+            }
+        }
+        for (int position = 0; position < queue.size(); position++) {
+            state.queued(queue.get(position), position);
+        }
+        return state;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Restores the saved state on top of the resources loaded from the configuration file. The
+     * runtime state found in the configuration (saved by older versions) is dropped first, along with
+     * the ephemeral resources and the queue. Declared resources keep their configuration and their
+     * position, ephemeral resources are appended.
+     */
+    static void restore(
+            @NonNull List<Delta> deltas,
+            @NonNull List<LockableResource> resources,
+            @NonNull List<QueuedContextStruct> queue) {
+        Map<String, LockableResource> resourcesByName = new LinkedHashMap<>();
+        for (LockableResource resource : resources) {
+            if (!resource.isEphemeral()) {
+                resource.restoreState(null);
+                resourcesByName.put(resource.getName(), resource);
+            }
+        }
+        queue.clear();
+        for (Delta delta : deltas) {
+            delta.applyTo(resourcesByName, queue);
+        }
+        resources.clear();
+        resources.addAll(resourcesByName.values());
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Changes persisted by one save: the current state of the changed resources and the changes of
+     * the queue, or the full state. Each delta is complete on its own, so later deltas simply
+     * override earlier ones.
+     */
+    static final class Delta {
+        /** Id of the configuration the state file belongs to, set on the full state only. */
+        @CheckForNull
+        private String stateId;
+
+        /**
+         * Current state of the resources which changed or were added. Only the runtime state of
+         * declared resources is restored, ephemeral resources are restored as a whole.
+         */
+        private List<LockableResource> resources = new ArrayList<>();
+
+        /** Names of the removed resources. */
+        private List<String> removedResources = new ArrayList<>();
+
+        /** Ids of the contexts removed from the queue. */
+        private List<String> unqueued = new ArrayList<>();
+
+        /** Contexts added to the queue, in ascending order of their {@link #positions}. */
+        private List<QueuedContextStruct> queued = new ArrayList<>();
+
+        /** Position of each of {@link #queued} in the queue. */
+        private List<Integer> positions = new ArrayList<>();
+
+        void resourceChanged(@NonNull LockableResource resource) {
+            resources.add(resource);
+        }
+
+        void resourceRemoved(@NonNull String name) {
+            removedResources.add(name);
+        }
+
+        void unqueued(@NonNull String id) {
+            unqueued.add(id);
+        }
+
+        /** Must be called in ascending order of positions. */
+        void queued(@NonNull QueuedContextStruct entry, int position) {
+            queued.add(entry);
+            positions.add(position);
+        }
+
+        @CheckForNull
+        String getStateId() {
+            return stateId;
+        }
+
+        /** Resources of this delta. They must not be changed. */
+        @NonNull
+        List<LockableResource> getResources() {
+            return resources;
+        }
+
+        boolean isEmpty() {
+            return resources.isEmpty() && removedResources.isEmpty() && unqueued.isEmpty() && queued.isEmpty();
+        }
+
+        // ---------------------------------------------------------------------------
+        /** Applies this delta to given resources (by name, in order) and queue. */
+        private void applyTo(
+                @NonNull Map<String, LockableResource> resourcesByName, @NonNull List<QueuedContextStruct> queue) {
+            for (LockableResource saved : resources) {
+                LockableResource current = resourcesByName.get(saved.getName());
+                if (current != null && !current.isEphemeral()) {
+                    // declared in the configuration, which wins
+                    current.restoreState(saved);
+                } else if (current != null || saved.isEphemeral()) {
+                    resourcesByName.put(saved.getName(), saved);
+                }
+                // else removed from the configuration meanwhile
+            }
+            for (String name : removedResources) {
+                // declared resources are removed from the configuration
+                LockableResource current = resourcesByName.get(name);
+                if (current != null && current.isEphemeral()) {
+                    resourcesByName.remove(name);
+                }
+            }
+
+            // the added contexts are removed first, so each one ends up at its position
+            Set<String> removed = new HashSet<>(unqueued);
+            for (QueuedContextStruct entry : queued) {
+                removed.add(entry.getId());
+            }
+            queue.removeIf(entry -> removed.contains(entry.getId()));
+            for (int i = 0; i < queued.size(); i++) {
+                queue.add(Math.min(positions.get(i), queue.size()), queued.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * The MIT License
+ *
+ * See the "LICENSE.txt" file for full copyright and license information.
+ */
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.jenkins.plugins.lockableresources.remote.RemoteQueueEntry;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+
+/**
+ * Waiters for resources: queued pipeline contexts ({@link QueuedContextStruct}) and queued remote
+ * acquire requests ({@link RemoteQueueEntry}).
+ *
+ * <p>Both kinds are kept ordered by priority (highest first), then by arrival. Contexts with inverse
+ * precedence are put in front of the whole queue, taking over the priority of the first one, see
+ * {@link QueuedContextStruct#getQueuePriority()}. Inserts and removals are O(log n), lookups by step
+ * context, queue id, build or remote lock id are O(1). Positions are O(n), they are meant for
+ * logging and for the UI.
+ *
+ * <p>Local contexts and remote entries are kept apart, {@code proceedNextContext} decides between the
+ * next local and the next remote one. Guarded by {@link LockableResourcesManager#syncResources}.
+ *
+ * <p>Changes of the local contexts are tracked for the state journal (see {@link StateJournal}):
+ * the ids of added and removed contexts, and whether the order changed otherwise.
+ */
+final class WaitQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(WaitQueue.class.getName());
+
+    private static final Comparator<Node<?>> ORDER = (a, b) -> a.priority != b.priority
+            ? Integer.compare(b.priority, a.priority)
+            : Long.compare(a.sequence, b.sequence);
+
+    private final TreeSet<Node<QueuedContextStruct>> locals = new TreeSet<>(ORDER);
+    private final Map<StepContext, Node<QueuedContextStruct>> localsByContext = new IdentityHashMap<>();
+    private final Map<String, Node<QueuedContextStruct>> localsById = new HashMap<>();
+
+    /** Contexts by {@link QueuedContextStruct#getBuildExternalizableId()}, as known when added. */
+    private final Map<String, Set<QueuedContextStruct>> localsByBuild = new HashMap<>();
+
+    /** Contexts whose build was not known when added. */
+    private final Set<QueuedContextStruct> localsWithoutBuild = new LinkedHashSet<>();
+
+    private final TreeSet<Node<RemoteQueueEntry>> remotes = new TreeSet<>(ORDER);
+    private final Map<String, Node<RemoteQueueEntry>> remotesByLockId = new HashMap<>();
+
+    /** Sequence of the last waiter added at the end of its priority. */
+    private long lastSequence;
+
+    /** Sequence of the last waiter added in front of the queue (inverse precedence). */
+    private long firstSequence;
+
+    /** Ids of the contexts added or removed since the last {@link #clearChanges()}. */
+    private final Set<String> changedIds = new LinkedHashSet<>();
+
+    /** The order has been changed by {@link #swap} since the last {@link #clearChanges()}. */
+    private boolean reordered;
+
+    /** Restores the queue from given contexts in queue order, see {@link QueuedContextStruct#getQueuePriority()}. */
+    WaitQueue(@NonNull Collection<QueuedContextStruct> queuedContexts) {
+        for (QueuedContextStruct entry : queuedContexts) {
+            if (entry != null && !add(entry, false)) {
+                LOGGER.warning("Skip duplicated queue entry " + entry);
+            }
+        }
+        clearChanges();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Adds given context behind all contexts with the same or a higher priority. With {@code
+     * inversePrecedence} it is added in front of the whole queue instead, contexts with a higher
+     * priority added later on still go in front of it.
+     *
+     * @return {@code false} when the step context is queued already
+     */
+    boolean add(@NonNull QueuedContextStruct entry, boolean inversePrecedence) {
+        if (localsByContext.containsKey(entry.getContext())) {
+            return false;
+        }
+        long sequence;
+        if (inversePrecedence) {
+            if (!locals.isEmpty() && locals.first().priority > entry.getQueuePriority()) {
+                entry.setQueuePriority(locals.first().priority);
+            }
+            sequence = --firstSequence;
+        } else {
+            sequence = ++lastSequence;
+        }
+        Node<QueuedContextStruct> node = new Node<>(entry, entry.getQueuePriority(), sequence);
+        locals.add(node);
+        localsByContext.put(entry.getContext(), node);
+        localsById.put(entry.getId(), node);
+        String buildId = entry.getBuildExternalizableId();
+        if (buildId != null) {
+            localsByBuild.computeIfAbsent(buildId, k -> new LinkedHashSet<>()).add(entry);
+        } else {
+            localsWithoutBuild.add(entry);
+        }
+        changedIds.add(entry.getId());
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the queued entry of given step context, or {@code null}. */
+    @CheckForNull
+    QueuedContextStruct get(@CheckForNull StepContext context) {
+        Node<QueuedContextStruct> node = localsByContext.get(context);
+        return node == null ? null : node.entry;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the queued entry with given {@link QueuedContextStruct#getId()}, or {@code null}. */
+    @CheckForNull
+    QueuedContextStruct getById(@CheckForNull String id) {
+        Node<QueuedContextStruct> node = localsById.get(id);
+        return node == null ? null : node.entry;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Removes the entry of given step context. Returns the removed entry, or {@code null}. */
+    @CheckForNull
+    QueuedContextStruct remove(@CheckForNull StepContext context) {
+        Node<QueuedContextStruct> node = localsByContext.remove(context);
+        if (node == null) {
+            return null;
+        }
+        locals.remove(node);
+        localsById.remove(node.entry.getId());
+        if (!localsWithoutBuild.remove(node.entry)) {
+            // the id does not change once known
+            String buildId = node.entry.getBuildExternalizableId();
+            Set<QueuedContextStruct> ofBuild = localsByBuild.get(buildId);
+            if (ofBuild != null && ofBuild.remove(node.entry) && ofBuild.isEmpty()) {
+                localsByBuild.remove(buildId);
+            }
+        }
+        changedIds.add(node.entry.getId());
+        return node.entry;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Removes given entry. Returns {@code false} when it is not queued (any more). */
+    boolean remove(@NonNull QueuedContextStruct entry) {
+        Node<QueuedContextStruct> node = localsByContext.get(entry.getContext());
+        if (node == null || node.entry != entry) {
+            return false;
+        }
+        remove(entry.getContext());
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the queued contexts of the build with given externalizable id, as far as known, in no
+     * particular order. See {@link #getWithoutBuild()} for the others.
+     */
+    @NonNull
+    List<QueuedContextStruct> getByBuild(@NonNull String buildExternalizableId) {
+        Set<QueuedContextStruct> ofBuild = localsByBuild.get(buildExternalizableId);
+        return ofBuild == null ? new ArrayList<>() : new ArrayList<>(ofBuild);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the queued contexts whose build was not known when they were added. */
+    @NonNull
+    List<QueuedContextStruct> getWithoutBuild() {
+        return new ArrayList<>(localsWithoutBuild);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Number of queued contexts. */
+    int size() {
+        return locals.size();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the queued contexts in queue order. */
+    @NonNull
+    List<QueuedContextStruct> getAll() {
+        List<QueuedContextStruct> result = new ArrayList<>(locals.size());
+        for (Node<QueuedContextStruct> node : locals) {
+            result.add(node.entry);
+        }
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns given queued contexts in queue order. Entries which are not queued are skipped. Cheaper
+     * than walking through {@link #getAll()} when only a few contexts have to be checked.
+     */
+    @NonNull
+    List<QueuedContextStruct> inOrder(@NonNull Collection<QueuedContextStruct> entries) {
+        List<Node<QueuedContextStruct>> nodes = new ArrayList<>(entries.size());
+        for (QueuedContextStruct entry : entries) {
+            Node<QueuedContextStruct> node = localsByContext.get(entry.getContext());
+            if (node != null && node.entry == entry) {
+                nodes.add(node);
+            }
+        }
+        nodes.sort(ORDER);
+        List<QueuedContextStruct> result = new ArrayList<>(nodes.size());
+        for (Node<QueuedContextStruct> node : nodes) {
+            result.add(node.entry);
+        }
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the position (0 based) of given entry in the queue, or -1. O(n). */
+    int indexOf(@NonNull QueuedContextStruct entry) {
+        Node<QueuedContextStruct> node = localsByContext.get(entry.getContext());
+        if (node == null || node.entry != entry) {
+            return -1;
+        }
+        return locals.headSet(node).size();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Swaps the positions of given entry and of the entry at {@code position}, as requested from the
+     * UI. The moved entries take over the priority and the order of each other. The priority is kept
+     * in the entries, so the order is restored after a restart, see {@link #WaitQueue(Collection)}.
+     */
+    void swap(@NonNull QueuedContextStruct entry, int position) {
+        Node<QueuedContextStruct> node = localsByContext.get(entry.getContext());
+        if (node == null || node.entry != entry || position < 0 || position >= locals.size()) {
+            return;
+        }
+        Iterator<Node<QueuedContextStruct>> iter = locals.iterator();
+        Node<QueuedContextStruct> other = iter.next();
+        for (int i = 0; i < position; i++) {
+            other = iter.next();
+        }
+        if (other == node) {
+            return;
+        }
+        locals.remove(node);
+        locals.remove(other);
+        int priority = node.priority;
+        long sequence = node.sequence;
+        node.priority = other.priority;
+        node.sequence = other.sequence;
+        other.priority = priority;
+        other.sequence = sequence;
+        node.entry.setQueuePriority(node.priority);
+        other.entry.setQueuePriority(other.priority);
+        locals.add(node);
+        locals.add(other);
+        reordered = true;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Ids of the contexts added or removed since the last {@link #clearChanges()}, in order. */
+    @NonNull
+    Set<String> getChangedIds() {
+        return Collections.unmodifiableSet(changedIds);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** {@code true} when the order changed by other means than adding or removing contexts. */
+    boolean isReordered() {
+        return reordered;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Forgets the tracked changes, after they have been persisted. */
+    void clearChanges() {
+        changedIds.clear();
+        reordered = false;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Adds given remote entry behind all remote entries with the same or a higher priority. */
+    boolean addRemote(@NonNull RemoteQueueEntry entry) {
+        if (remotesByLockId.containsKey(entry.getLockId())) {
+            return false;
+        }
+        Node<RemoteQueueEntry> node = new Node<>(entry, entry.getPriority(), ++lastSequence);
+        remotes.add(node);
+        remotesByLockId.put(entry.getLockId(), node);
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Removes the remote entry of given lock id. Returns the removed entry, or {@code null}. */
+    @CheckForNull
+    RemoteQueueEntry removeRemote(@NonNull String lockId) {
+        Node<RemoteQueueEntry> node = remotesByLockId.remove(lockId);
+        if (node == null) {
+            return null;
+        }
+        remotes.remove(node);
+        return node.entry;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the position (0 based) of given remote entry, or -1. O(n). */
+    int indexOfRemote(@NonNull RemoteQueueEntry entry) {
+        Node<RemoteQueueEntry> node = remotesByLockId.get(entry.getLockId());
+        return node == null ? -1 : remotes.headSet(node).size();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Number of queued remote entries. */
+    int remoteSize() {
+        return remotes.size();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the queued remote entries in queue order. */
+    @NonNull
+    List<RemoteQueueEntry> getAllRemotes() {
+        List<RemoteQueueEntry> result = new ArrayList<>(remotes.size());
+        for (Node<RemoteQueueEntry> node : remotes) {
+            result.add(node.entry);
+        }
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Queued waiter with its position key. The key must not change while the node is in a set. */
+    private static final class Node<E> {
+        final E entry;
+        int priority;
+        long sequence;
+
+        Node(E entry, int priority, long sequence) {
+            this.entry = entry;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * See the "LICENSE.txt" file for full copyright and license information.
+ */
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.model.labels.LabelExpression;
+import hudson.model.labels.LabelVisitor;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+
+/**
+ * Index of the queued pipeline contexts by the resources they wait for.
+ *
+ * <p>Each queued context is registered under the names of the resources it requires and under the
+ * label atoms of its label expression. When resources become free, only the contexts registered
+ * under their names or labels can be satisfied by them, so only those have to be resolved again
+ * (see {@link #wakeUp(Collection)}). Contexts the index can not reason about (negated label
+ * expressions, resource match scripts) are returned for every wake-up.
+ *
+ * <p>Newly registered contexts are returned by the next wake-up as well, until {@link #settled()}
+ * reports that the queue has been resolved without granting anything.
+ *
+ * <p>Guarded by {@link LockableResourcesManager#syncResources}.
+ */
+final class WaitersIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(WaitersIndex.class.getName());
+
+    private final Map<String, Set<QueuedContextStruct>> waitersByName = new HashMap<>();
+    private final Map<String, Set<QueuedContextStruct>> waitersByAtom = new HashMap<>();
+    private final Set<QueuedContextStruct> wildcards = newIdentitySet();
+    private final Set<QueuedContextStruct> pending = newIdentitySet();
+    private final Map<QueuedContextStruct, Keys> keysByWaiter = new IdentityHashMap<>();
+
+    WaitersIndex(@NonNull Collection<QueuedContextStruct> waiters) {
+        for (QueuedContextStruct waiter : waiters) {
+            add(waiter);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    void add(@NonNull QueuedContextStruct waiter) {
+        if (keysByWaiter.containsKey(waiter)) {
+            return;
+        }
+        Keys keys = Keys.of(waiter);
+        keysByWaiter.put(waiter, keys);
+        if (keys.wildcard) {
+            wildcards.add(waiter);
+        } else {
+            register(waitersByName, keys.names, waiter);
+            register(waitersByAtom, keys.atoms, waiter);
+        }
+        pending.add(waiter);
+    }
+
+    // ---------------------------------------------------------------------------
+    void remove(@NonNull QueuedContextStruct waiter) {
+        Keys keys = keysByWaiter.remove(waiter);
+        if (keys == null) {
+            return;
+        }
+        wildcards.remove(waiter);
+        pending.remove(waiter);
+        unregister(waitersByName, keys.names, waiter);
+        unregister(waitersByAtom, keys.atoms, waiter);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Number of indexed contexts. */
+    int size() {
+        return keysByWaiter.size();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the contexts which might be satisfied now that given resources are free (or have been
+     * added, or got new labels). The result is an identity set, callers keep the queue order by
+     * walking the queue and skipping the contexts not contained in it.
+     */
+    @NonNull
+    Set<QueuedContextStruct> wakeUp(@NonNull Collection<LockableResource> resources) {
+        Set<QueuedContextStruct> woken = newIdentitySet();
+        woken.addAll(wildcards);
+        woken.addAll(pending);
+        for (LockableResource resource : resources) {
+            collect(waitersByName, resource.getName(), woken);
+            for (String label : resource.getLabelsAsList()) {
+                collect(waitersByAtom, label, woken);
+            }
+        }
+        return woken;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called when no indexed context could proceed, newly registered ones are not special any more. */
+    void settled() {
+        pending.clear();
+    }
+
+    // ---------------------------------------------------------------------------
+    private static void register(
+            Map<String, Set<QueuedContextStruct>> index, Set<String> keys, QueuedContextStruct waiter) {
+        for (String key : keys) {
+            index.computeIfAbsent(key, k -> newIdentitySet()).add(waiter);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private static void unregister(
+            Map<String, Set<QueuedContextStruct>> index, Set<String> keys, QueuedContextStruct waiter) {
+        for (String key : keys) {
+            Set<QueuedContextStruct> waiters = index.get(key);
+            if (waiters != null) {
+                waiters.remove(waiter);
+                if (waiters.isEmpty()) {
+                    index.remove(key);
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private static void collect(
+            Map<String, Set<QueuedContextStruct>> index, String key, Set<QueuedContextStruct> woken) {
+        Set<QueuedContextStruct> waiters = index.get(key);
+        if (waiters != null) {
+            woken.addAll(waiters);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private static Set<QueuedContextStruct> newIdentitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Resource names and label atoms a queued context waits for. */
+    private static final class Keys {
+        final Set<String> names = new HashSet<>();
+        final Set<String> atoms = new HashSet<>();
+        boolean wildcard;
+
+        static Keys of(@NonNull QueuedContextStruct waiter) {
+            Keys keys = new Keys();
+            List<LockableResourcesStruct> structs = waiter.getResources();
+            if (structs == null) {
+                keys.wildcard = true;
+                return keys;
+            }
+            for (LockableResourcesStruct struct : structs) {
+                if (struct == null || struct.getResourceMatchScriptText() != null) {
+                    keys.wildcard = true;
+                } else if (struct.label != null && !struct.label.isBlank()) {
+                    keys.addLabel(struct.label);
+                } else if (struct.required != null) {
+                    keys.names.addAll(LockableResourcesManager.getResourcesNames(struct.required));
+                } else {
+                    keys.wildcard = true;
+                }
+            }
+            return keys;
+        }
+
+        private void addLabel(@NonNull String label) {
+            label = Util.fixEmptyAndTrim(label);
+            if (label == null) {
+                return;
+            }
+            // the label index matches the whole string literally too
+            atoms.add(label);
+            try {
+                if (!Label.parseExpression(label).accept(new AtomCollector(), atoms)) {
+                    wildcard = true;
+                }
+            } catch (RuntimeException x) {
+                LOGGER.log(Level.FINE, "Cannot parse label expression " + label, x);
+                wildcard = true;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Collects the atoms of a label expression. Returns {@code false} when a resource without any of
+     * those atoms may match the expression too (negations, implications).
+     */
+    private static final class AtomCollector extends LabelVisitor<Boolean, Set<String>> {
+
+        @Override
+        public Boolean onAtom(LabelAtom a, Set<String> atoms) {
+            atoms.add(a.getName());
+            return true;
+        }
+
+        @Override
+        public Boolean onParen(LabelExpression.Paren p, Set<String> atoms) {
+            return p.base.accept(this, atoms);
+        }
+
+        @Override
+        public Boolean onNot(LabelExpression.Not p, Set<String> atoms) {
+            p.base.accept(this, atoms);
+            return false;
+        }
+
+        @Override
+        public Boolean onAnd(LabelExpression.And p, Set<String> atoms) {
+            // evaluate both sides, so every atom gets collected
+            boolean lhs = p.lhs.accept(this, atoms);
+            boolean rhs = p.rhs.accept(this, atoms);
+            return lhs || rhs;
+        }
+
+        @Override
+        public Boolean onOr(LabelExpression.Or p, Set<String> atoms) {
+            boolean lhs = p.lhs.accept(this, atoms);
+            boolean rhs = p.rhs.accept(this, atoms);
+            return lhs && rhs;
+        }
+
+        @Override
+        public Boolean onIff(LabelExpression.Iff p, Set<String> atoms) {
+            p.lhs.accept(this, atoms);
+            p.rhs.accept(this, atoms);
+            return false;
+        }
+
+        @Override
+        public Boolean onImplies(LabelExpression.Implies p, Set<String> atoms) {
+            p.lhs.accept(this, atoms);
+            p.rhs.accept(this, atoms);
+            return false;
+        }
+    }
+}
@@ -32,6 +32,9 @@ import org.jenkins.plugins.lockableresources.LockableResource;
 import org.jenkins.plugins.lockableresources.LockableResourceProperty;
 import org.jenkins.plugins.lockableresources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.Messages;
+import org.jenkins.plugins.lockableresources.QueueMaintenanceStats;
+import org.jenkins.plugins.lockableresources.ResourceCounts;
+import org.jenkins.plugins.lockableresources.SaveStats;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
 import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
 import org.jenkins.plugins.lockableresources.remote.RemoteLockManager;
@@ -162,24 +165,10 @@ public class LockableResourcesRootAction implements RootAction {
     public Summary getSummary() {
         Jenkins.get().checkPermission(VIEW);
 
-        int locked = 0;
-        int reserved = 0;
+        // Queued resources are counted as free since the queued state
+        // is transient and nearly invisible in practice.
+        ResourceCounts counts = LockableResourcesManager.get().getResourceCounts();
         int queued = 0;
-        int free = 0;
-        int total = 0;
-
-        for (LockableResource r : LockableResourcesManager.get().getReadOnlyResources()) {
-            total++;
-            if (r.getReservedBy() != null) {
-                reserved++;
-            } else if (r.isLocked()) {
-                locked++;
-            } else {
-                // Queued resources are counted as free since the queued state
-                // is transient and nearly invisible in practice.
-                free++;
-            }
-        }
 
         int queueItems = 0;
         int distinctBuildsWaiting = 0;
@@ -216,19 +205,20 @@ public class LockableResourcesRootAction implements RootAction {
             }
         }
 
-        int labelsCount = getLabelsList().size();
+        LinkedHashMap<String, LockableResourcesLabel> labels = getLabelsList(counts);
+        int labelsCount = labels.size();
 
-        List<LockableResourcesLabel> topLabels = getLabelsList().values().stream()
+        List<LockableResourcesLabel> topLabels = labels.values().stream()
                 .sorted((a, b) -> Integer.compare(b.getAssigned(), a.getAssigned()))
                 .limit(3)
                 .collect(Collectors.toList());
 
         return new Summary(
-                total,
-                locked,
-                reserved,
+                counts.getTotal(),
+                counts.getLocked(),
+                counts.getReserved(),
                 queued,
-                free,
+                counts.getFree(),
                 queueItems,
                 distinctBuildsWaiting,
                 labelsCount,
@@ -370,6 +360,22 @@ public class LockableResourcesRootAction implements RootAction {
         return LockableResourcesManager.get().getReadOnlyResources();
     }
 
+    // ---------------------------------------------------------------------------
+    /** Save counters of the resources manager, for monitoring through the API. */
+    @Exported
+    @Restricted(NoExternalUse.class)
+    public SaveStats getSaveStats() {
+        return LockableResourcesManager.get().getSaveStats();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Queue maintenances requested by freeing resources, for monitoring through the API. */
+    @Exported
+    @Restricted(NoExternalUse.class)
+    public QueueMaintenanceStats getQueueMaintenanceStats() {
+        return LockableResourcesManager.getQueueMaintenanceStats();
+    }
+
     // ---------------------------------------------------------------------------
     /**
      * Get a list of all labels
@@ -378,32 +384,15 @@ public class LockableResourcesRootAction implements RootAction {
      */
     @Restricted(NoExternalUse.class) // used by jelly
     public LinkedHashMap<String, LockableResourcesLabel> getLabelsList() {
-        LinkedHashMap<String, LockableResourcesLabel> map = new LinkedHashMap<>();
-
-        for (LockableResource r : LockableResourcesManager.get().getReadOnlyResources()) {
-            if (r == null || r.getName().isEmpty()) {
-                continue; // defensive, shall never happens, but ...
-            }
-            List<String> assignedLabels = r.getLabelsAsList();
-            if (assignedLabels.isEmpty()) {
-                continue;
-            }
-
-            for (String labelString : assignedLabels) {
-                if (labelString == null || labelString.isEmpty()) {
-                    continue; // defensive, shall never happens, but ...
-                }
-                LockableResourcesLabel label = map.get(labelString);
-                if (label == null) {
-                    label = new LockableResourcesLabel(labelString);
-                }
-
-                label.update(r);
+        return getLabelsList(LockableResourcesManager.get().getResourceCounts());
+    }
 
-                map.put(labelString, label);
-            }
+    // ---------------------------------------------------------------------------
+    private static LinkedHashMap<String, LockableResourcesLabel> getLabelsList(ResourceCounts counts) {
+        LinkedHashMap<String, LockableResourcesLabel> map = new LinkedHashMap<>();
+        for (ResourceCounts.LabelCount count : counts.getLabels().values()) {
+            map.put(count.getName(), new LockableResourcesLabel(count));
         }
-
         return map;
     }
 
@@ -420,6 +409,13 @@ public class LockableResourcesRootAction implements RootAction {
             this.assigned = 0;
         }
 
+        // -------------------------------------------------------------------------
+        LockableResourcesLabel(ResourceCounts.LabelCount count) {
+            this.name = count.getName();
+            this.free = count.getFree();
+            this.assigned = count.getAssigned();
+        }
+
         // -------------------------------------------------------------------------
         public void update(LockableResource resource) {
             this.assigned++;
@@ -466,10 +462,9 @@ public class LockableResourcesRootAction implements RootAction {
      * @return Amount of free labels.
      */
     @Restricted(NoExternalUse.class) // used by jelly
-    @Deprecated // slow down plugin execution due concurrent modification checks
     public int getFreeResourceAmount(final String labelString) {
-        this.informPerformanceIssue();
-        LockableResourcesLabel label = this.getLabelsList().get(labelString);
+        ResourceCounts.LabelCount label =
+                LockableResourcesManager.get().getResourceCounts().getLabel(labelString);
         return (label == null) ? 0 : label.getFree();
     }
 
@@ -484,11 +479,10 @@ public class LockableResourcesRootAction implements RootAction {
      * @return Percentage usages of *labelString* around all resources
      */
     @Restricted(NoExternalUse.class) // used by jelly
-    @Deprecated // slow down plugin execution due concurrent modification checks
     public int getFreeResourcePercentage(final String labelString) {
-        this.informPerformanceIssue();
-        LockableResourcesLabel label = this.getLabelsList().get(labelString);
-        return (label == null) ? 0 : label.getPercentage();
+        ResourceCounts.LabelCount label =
+                LockableResourcesManager.get().getResourceCounts().getLabel(labelString);
+        return (label == null) ? 0 : new LockableResourcesLabel(label).getPercentage();
     }
 
     // ---------------------------------------------------------------------------
@@ -511,10 +505,8 @@ public class LockableResourcesRootAction implements RootAction {
      * @return Amount of all labels.
      */
     @Restricted(NoExternalUse.class) // used by jelly
-    @Deprecated // slow down plugin execution due concurrent modification checks
     public int getNumberOfAllLabels() {
-        this.informPerformanceIssue();
-        return this.getLabelsList().size();
+        return LockableResourcesManager.get().getResourceCounts().getLabels().size();
     }
 
     // ---------------------------------------------------------------------------
@@ -527,10 +519,8 @@ public class LockableResourcesRootAction implements RootAction {
      * @return Amount of assigned resources.
      */
     @Restricted(NoExternalUse.class) // used by jelly
-    @Deprecated // slow down plugin execution due concurrent modification checks
     public int getAssignedResourceAmount(String labelString) {
-        this.informPerformanceIssue();
-        return LockableResourcesManager.get().getResourcesWithLabel(labelString).size();
+        return LockableResourcesManager.get().getAssignedResourceAmount(labelString);
     }
 
     // ---------------------------------------------------------------------------
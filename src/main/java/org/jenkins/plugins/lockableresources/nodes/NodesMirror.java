@@ -5,7 +5,8 @@ import hudson.init.InitMilestone;
 import hudson.init.Initializer;
 import hudson.model.Node;
 import hudson.slaves.ComputerListener;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import jenkins.model.Jenkins;
@@ -63,22 +64,25 @@ public class NodesMirror extends ComputerListener {
 
     // ---------------------------------------------------------------------------
     private static void deleteNotExistingNodes() {
-        Iterator<LockableResource> resourceIterator = lrm.getResources().iterator();
-        while (resourceIterator.hasNext()) {
-            LockableResource resource = resourceIterator.next();
+        List<LockableResource> toBeRemoved = new ArrayList<>();
+        for (LockableResource resource : lrm.getResources()) {
             if (!resource.isNodeResource() || (Jenkins.get().getNode(resource.getName()) != null)) {
                 continue;
             }
             if (resource.isFree()) {
                 // we can remove this resource. Is newer used currently
                 LOGGER.config("lockable-resources-plugin: remove node resource '" + resource.getName() + "'.");
-                resourceIterator.remove();
+                toBeRemoved.add(resource);
             } else {
                 LOGGER.warning("lockable-resources-plugin: can not remove node-resource '"
                         + resource.getName()
                         + "'. The resource is currently used (not free).");
             }
         }
+        if (!toBeRemoved.isEmpty()) {
+            // remove through the manager, so its indexes stay in sync
+            lrm.removeResources(toBeRemoved);
+        }
     }
 
     // ---------------------------------------------------------------------------
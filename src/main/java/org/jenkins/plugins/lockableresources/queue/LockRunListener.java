@@ -32,6 +32,9 @@ public class LockRunListener extends RunListener<Run<?, ?>> {
 
     @Override
     public void onStarted(Run<?, ?> build, TaskListener listener) {
+        // an earlier lookup of this id might have missed it
+        LockableResourcesManager.get().forgetBuild(build);
+
         // Skip locking for multiple configuration projects,
         // only the child jobs will actually lock resources.
         if (build.getClass().getName().equals("hudson.matrix.MatrixBuild")) {
@@ -41,63 +44,65 @@ public class LockRunListener extends RunListener<Run<?, ?>> {
         if (build instanceof AbstractBuild) {
             AbstractBuild<?, ?> abstractBuild = (AbstractBuild<?, ?>) build;
             LockableResourcesManager lrm = LockableResourcesManager.get();
+            Job<?, ?> proj = Utils.getProject(build);
+
+            // Resolve build parameters so that ${PARAM} references in
+            // resource names, labels, and numbers are expanded. This runs all environment
+            // contributors (SCM, nodes, disk), so it is done before taking the lock.
+            EnvVars buildEnv;
+            try {
+                buildEnv = abstractBuild.getEnvironment(listener);
+            } catch (IOException | InterruptedException e) {
+                buildEnv = new EnvVars();
+            }
+
+            LockableResourcesStruct resources = Utils.requiredResources(proj, buildEnv);
+            if (resources == null) {
+                return;
+            }
+
+            List<LockableResource> required = new ArrayList<>();
+            boolean locked;
             synchronized (LockableResourcesManager.syncResources) {
-                Job<?, ?> proj = Utils.getProject(build);
-                List<LockableResource> required = new ArrayList<>();
-
-                // Resolve build parameters so that ${PARAM} references in
-                // resource names, labels, and numbers are expanded.
-                EnvVars buildEnv;
-                try {
-                    buildEnv = abstractBuild.getEnvironment(listener);
-                } catch (IOException | InterruptedException e) {
-                    buildEnv = new EnvVars();
+                if (resources.requiredNumber != null
+                        || !resources.label.isEmpty()
+                        || resources.getResourceMatchScriptText() != null) {
+                    required.addAll(lrm.getResourcesFromProject(proj.getFullName()));
+                } else {
+                    required.addAll(resources.required);
                 }
+                locked = lrm.lock(required, build);
+            }
 
-                LockableResourcesStruct resources = Utils.requiredResources(proj, buildEnv);
+            if (locked) {
+                // build.addAction(LockedResourcesBuildAction.fromResources(required));
+                listener.getLogger().printf("%s acquired lock on %s%n", LOG_PREFIX, required);
+                LOGGER.info(build.getFullDisplayName() + " acquired lock on " + required);
+                if (resources.requiredVar != null) {
+                    List<StringParameterValue> envsToSet = new ArrayList<>();
 
-                if (resources != null) {
-                    if (resources.requiredNumber != null
-                            || !resources.label.isEmpty()
-                            || resources.getResourceMatchScriptText() != null) {
-                        required.addAll(lrm.getResourcesFromProject(proj.getFullName()));
-                    } else {
-                        required.addAll(resources.required);
-                    }
+                    // add the comma separated list of names acquired
+                    envsToSet.add(new StringParameterValue(
+                            resources.requiredVar,
+                            required.stream().map(LockableResource::getName).collect(Collectors.joining(","))));
 
-                    if (lrm.lock(required, build)) {
-                        // build.addAction(LockedResourcesBuildAction.fromResources(required));
-                        listener.getLogger().printf("%s acquired lock on %s%n", LOG_PREFIX, required);
-                        LOGGER.info(build.getFullDisplayName() + " acquired lock on " + required);
-                        if (resources.requiredVar != null) {
-                            List<StringParameterValue> envsToSet = new ArrayList<>();
-
-                            // add the comma separated list of names acquired
-                            envsToSet.add(new StringParameterValue(
-                                    resources.requiredVar,
-                                    required.stream()
-                                            .map(LockableResource::getName)
-                                            .collect(Collectors.joining(","))));
-
-                            // also add a numbered variable for each acquired lock along with properties of the lock
-                            int index = 0;
-                            for (LockableResource lr : required) {
-                                String lockEnvName = resources.requiredVar + index;
-                                envsToSet.add(new StringParameterValue(lockEnvName, lr.getName()));
-                                for (LockableResourceProperty lockProperty : lr.getProperties()) {
-                                    String propEnvName = lockEnvName + "_" + lockProperty.getName();
-                                    envsToSet.add(new StringParameterValue(propEnvName, lockProperty.getValue()));
-                                }
-                                ++index;
-                            }
-
-                            build.addAction(new ResourceVariableNameAction(envsToSet));
+                    // also add a numbered variable for each acquired lock along with properties of the lock
+                    int index = 0;
+                    for (LockableResource lr : required) {
+                        String lockEnvName = resources.requiredVar + index;
+                        envsToSet.add(new StringParameterValue(lockEnvName, lr.getName()));
+                        for (LockableResourceProperty lockProperty : lr.getProperties()) {
+                            String propEnvName = lockEnvName + "_" + lockProperty.getName();
+                            envsToSet.add(new StringParameterValue(propEnvName, lockProperty.getValue()));
                         }
-                    } else {
-                        listener.getLogger().printf("%s failed to lock %s%n", LOG_PREFIX, required);
-                        LOGGER.warning(build.getFullDisplayName() + " failed to lock " + required);
+                        ++index;
                     }
+
+                    build.addAction(new ResourceVariableNameAction(envsToSet));
                 }
+            } else {
+                listener.getLogger().printf("%s failed to lock %s%n", LOG_PREFIX, required);
+                LOGGER.warning(build.getFullDisplayName() + " failed to lock " + required);
             }
         }
     }
@@ -110,17 +115,23 @@ public class LockRunListener extends RunListener<Run<?, ?>> {
             return;
         }
         LOGGER.info(build.getFullDisplayName());
-        LockableResourcesManager.get().unlockBuild(build);
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.unqueueBuild(build);
+        lrm.unlockBuild(build);
     }
 
     @Override
     public void onDeleted(Run<?, ?> build) {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.forgetBuild(build);
+
         // Skip unlocking for multiple configuration projects,
         // only the child jobs will actually unlock resources.
         if (build.getClass().getName().equals("hudson.matrix.MatrixBuild")) {
             return;
         }
         LOGGER.info(build.getFullDisplayName());
-        LockableResourcesManager.get().unlockBuild(build);
+        lrm.unqueueBuild(build);
+        lrm.unlockBuild(build);
     }
 }
@@ -0,0 +1,32 @@
+/*
+ * The MIT License
+ *
+ * See the "LICENSE.txt" file for full copyright and license information.
+ */
+package org.jenkins.plugins.lockableresources.queue;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+
+/**
+ * Releases the resources queued by a freestyle queue item which gets cancelled. A started item
+ * locks them instead, see {@link LockRunListener}.
+ */
+@Extension
+public class LockableResourcesQueueListener extends QueueListener {
+
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        if (!li.isCancelled()) {
+            return;
+        }
+        Job<?, ?> project = Utils.getProject(li);
+        if (project == null) {
+            return;
+        }
+        LockableResourcesManager.get().unqueueItem(project.getFullName(), li.getId());
+    }
+}
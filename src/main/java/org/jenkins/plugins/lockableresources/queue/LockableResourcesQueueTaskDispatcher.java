@@ -7,6 +7,7 @@ package org.jenkins.plugins.lockableresources.queue;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.EnvVars;
 import hudson.Extension;
@@ -17,10 +18,14 @@ import hudson.model.ParametersAction;
 import hudson.model.Queue;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -41,6 +46,13 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
     /** Tracks the deadline (epoch millis) for each queue item waiting for resources. */
     private final transient ConcurrentHashMap<Long, Long> deadlines = new ConcurrentHashMap<>();
 
+    /**
+     * Requirements of the blocked queue items, by queue item id. Resolving them (parameters,
+     * variables, matrix combinations) is repeated on every queue maintenance otherwise.
+     */
+    private final transient Cache<Long, Requirement> requirements =
+            Caffeine.newBuilder().expireAfterAccess(30, TimeUnit.MINUTES).build();
+
     static final Logger LOGGER = Logger.getLogger(LockableResourcesQueueTaskDispatcher.class.getName());
 
     @Override
@@ -54,60 +66,26 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
         Job<?, ?> project = Utils.getProject(item);
         if (project == null) return null;
 
-        // Extract build parameters so that ${PARAM} references in resource
-        // names, labels, and numbers are expanded before scheduling.
-        EnvVars paramEnv = Utils.getParametersAsEnvVars(item);
-        LockableResourcesStruct resources = Utils.requiredResources(project, paramEnv);
-        if (resources == null
-                || (resources.required.isEmpty()
-                        && resources.label.isEmpty()
-                        && resources.getResourceMatchScriptText() == null)) {
+        Requirement requirement = getRequirement(item, project);
+        if (requirement == null) {
             return null;
         }
-
-        int resourceNumber;
-        try {
-            resourceNumber = Integer.parseInt(resources.requiredNumber);
-        } catch (NumberFormatException e) {
-            resourceNumber = 0;
-        }
+        LockableResourcesStruct resources = requirement.resources;
+        int resourceNumber = requirement.resourceNumber;
 
         LOGGER.finest(project.getName() + " trying to get resources with these details: " + resources);
 
         if (resourceNumber > 0 || !resources.label.isEmpty() || resources.getResourceMatchScriptText() != null) {
-            Map<String, Object> params = new HashMap<>();
-
-            // Inject Build Parameters, if possible and applicable to the "item" type
-            try {
-                List<ParametersAction> itemparams = item.getActions(ParametersAction.class);
-                for (ParametersAction actparam : itemparams) {
-                    if (actparam == null) continue;
-                    for (ParameterValue p : actparam.getParameters()) {
-                        if (p == null) continue;
-                        params.put(p.getName(), p.getValue());
-                    }
-                }
-            } catch (Exception ex) {
-                // Report the error and go on with the build -
-                // perhaps this item is not a build with args, etc.
-                // Note this is likely to fail a bit later in such case.
-                if (LOGGER.isLoggable(Level.WARNING)) {
-                    if (lastLogged.getIfPresent(item.getId()) == null) {
-                        lastLogged.put(item.getId(), new Date());
-                        String itemName = project.getFullName() + " (id=" + item.getId() + ")";
-                        LOGGER.log(Level.WARNING, "Failed to get build params from item " + itemName, ex);
-                    }
-                }
-            }
-
-            for (var ma : ExtensionList.lookup(Utils.MatrixAssist.class)) {
-                params.putAll(ma.getCombination(project));
-            }
-
             final List<LockableResource> selected;
             try {
                 selected = LockableResourcesManager.get()
-                        .tryQueue(resources, item.getId(), project.getFullName(), resourceNumber, params, LOGGER);
+                        .tryQueue(
+                                resources,
+                                item.getId(),
+                                project.getFullName(),
+                                resourceNumber,
+                                requirement.params,
+                                LOGGER);
             } catch (ExecutionException ex) {
                 Throwable toReport = ex.getCause();
                 if (toReport == null) { // We care about the cause only
@@ -127,26 +105,207 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
 
             if (selected != null) {
                 LOGGER.finest(project.getName() + " reserved resources " + selected);
-                deadlines.remove(item.getId());
+                proceeds(item);
                 return null;
             } else {
                 LOGGER.finest(project.getName() + " waiting for resources");
                 CauseOfBlockage timeout = checkFreestyleTimeout(item, project);
                 if (timeout != null) return timeout;
-                return new BecauseResourcesLocked(resources);
+                return requirement.blockage;
             }
 
         } else {
             if (LockableResourcesManager.get().queue(resources.required, item.getId(), project.getFullDisplayName())) {
                 LOGGER.finest(project.getName() + " reserved resources " + resources.required);
-                deadlines.remove(item.getId());
+                proceeds(item);
                 return null;
             } else {
                 LOGGER.finest(project.getName() + " waiting for resources " + resources.required);
                 CauseOfBlockage timeout = checkFreestyleTimeout(item, project);
                 if (timeout != null) return timeout;
-                return new BecauseResourcesLocked(resources);
+                return requirement.blockage;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns {@code false} when no blocked item checked by this dispatcher waits for any of given
+     * resources. Items selecting resources by label, number or script might take any resource.
+     */
+    @Restricted(NoExternalUse.class)
+    public boolean mightWaitFor(@NonNull Collection<LockableResource> freed) {
+        Set<String> names = null;
+        for (Requirement requirement : requirements.asMap().values()) {
+            LockableResourcesStruct resources = requirement.resources;
+            if (resources == null) {
+                continue;
+            }
+            if (requirement.resourceNumber > 0
+                    || !resources.label.isEmpty()
+                    || resources.getResourceMatchScriptText() != null) {
+                return true;
+            }
+            if (names == null) {
+                names = new HashSet<>();
+                for (LockableResource resource : freed) {
+                    names.add(resource.getName());
+                }
+            }
+            for (LockableResource resource : resources.required) {
+                if (names.contains(resource.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Forgets what is kept for given item, which got its resources. */
+    private void proceeds(@NonNull Queue.Item item) {
+        deadlines.remove(item.getId());
+        requirements.invalidate(item.getId());
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the resolved requirements of given item, or {@code null} when it does not need any
+     * resource. They are resolved again when the item parameters or the {@link
+     * RequiredResourcesProperty} of the job changed (reconfiguring a job replaces its properties).
+     */
+    @CheckForNull
+    private Requirement getRequirement(@NonNull Queue.Item item, @NonNull Job<?, ?> project) {
+        RequiredResourcesProperty property = getRequiredResourcesProperty(project);
+        if (property == null) {
+            requirements.invalidate(item.getId());
+            return null;
+        }
+        List<ParametersAction> parameters = item.getActions(ParametersAction.class);
+        Requirement requirement = requirements.getIfPresent(item.getId());
+        if (requirement != null && requirement.isResolvedFrom(project, property, parameters)) {
+            return requirement.resources != null ? requirement : null;
+        }
+
+        // Extract build parameters so that ${PARAM} references in resource
+        // names, labels, and numbers are expanded before scheduling.
+        EnvVars paramEnv = Utils.getParametersAsEnvVars(item);
+        LockableResourcesStruct resources = Utils.requiredResources(project, paramEnv);
+        if (resources == null
+                || (resources.required.isEmpty()
+                        && resources.label.isEmpty()
+                        && resources.getResourceMatchScriptText() == null)) {
+            resources = null;
+        }
+        requirement = new Requirement(
+                project, property, parameters, resources, resources != null ? getParams(item, project) : null);
+        requirements.put(item.getId(), requirement);
+        return resources != null ? requirement : null;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the property the requirements are read from, see {@link Utils#requiredResources}. */
+    @CheckForNull
+    private static RequiredResourcesProperty getRequiredResourcesProperty(@NonNull Job<?, ?> project) {
+        for (var ma : ExtensionList.lookup(Utils.MatrixAssist.class)) {
+            project = ma.getMainProject(project);
+        }
+        return project.getProperty(RequiredResourcesProperty.class);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Build parameters and matrix combination of given item, for the resource match scripts. */
+    @NonNull
+    private Map<String, Object> getParams(@NonNull Queue.Item item, @NonNull Job<?, ?> project) {
+        Map<String, Object> params = new HashMap<>();
+
+        // Inject Build Parameters, if possible and applicable to the "item" type
+        try {
+            List<ParametersAction> itemparams = item.getActions(ParametersAction.class);
+            for (ParametersAction actparam : itemparams) {
+                if (actparam == null) continue;
+                for (ParameterValue p : actparam.getParameters()) {
+                    if (p == null) continue;
+                    params.put(p.getName(), p.getValue());
+                }
             }
+        } catch (Exception ex) {
+            // Report the error and go on with the build -
+            // perhaps this item is not a build with args, etc.
+            // Note this is likely to fail a bit later in such case.
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                if (lastLogged.getIfPresent(item.getId()) == null) {
+                    lastLogged.put(item.getId(), new Date());
+                    String itemName = project.getFullName() + " (id=" + item.getId() + ")";
+                    LOGGER.log(Level.WARNING, "Failed to get build params from item " + itemName, ex);
+                }
+            }
+        }
+
+        for (var ma : ExtensionList.lookup(Utils.MatrixAssist.class)) {
+            params.putAll(ma.getCombination(project));
+        }
+        return Collections.unmodifiableMap(params);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Requirements of a queue item, as resolved by {@link #getRequirement}. */
+    private static final class Requirement {
+        private final Job<?, ?> project;
+        private final RequiredResourcesProperty property;
+        private final List<ParametersAction> parameters;
+
+        /** {@code null} when the item does not need any resource. */
+        @CheckForNull
+        private final LockableResourcesStruct resources;
+
+        private final int resourceNumber;
+
+        @CheckForNull
+        private final Map<String, Object> params;
+
+        @CheckForNull
+        private final BecauseResourcesLocked blockage;
+
+        Requirement(
+                @NonNull Job<?, ?> project,
+                @NonNull RequiredResourcesProperty property,
+                @NonNull List<ParametersAction> parameters,
+                @CheckForNull LockableResourcesStruct resources,
+                @CheckForNull Map<String, Object> params) {
+            this.project = project;
+            this.property = property;
+            this.parameters = parameters;
+            this.resources = resources;
+            this.params = params;
+            this.blockage = resources != null ? new BecauseResourcesLocked(resources) : null;
+            int number;
+            try {
+                number = resources != null ? Integer.parseInt(resources.requiredNumber) : 0;
+            } catch (NumberFormatException e) {
+                number = 0;
+            }
+            this.resourceNumber = number;
+        }
+
+        boolean isResolvedFrom(
+                @NonNull Job<?, ?> project,
+                @NonNull RequiredResourcesProperty property,
+                @NonNull List<ParametersAction> parameters) {
+            // the same instances, the parameter actions do not implement equals()
+            if (this.project != project || this.property != property || !this.parameters.equals(parameters)) {
+                return false;
+            }
+            if (resources != null && !resources.required.isEmpty()) {
+                // ephemeral resources are removed when freed, and created again when resolving
+                LockableResourcesManager lrm = LockableResourcesManager.get();
+                for (LockableResource resource : resources.required) {
+                    if (lrm.fromName(resource.getName()) != resource) {
+                        return false;
+                    }
+                }
+            }
+            return true;
         }
     }
 
@@ -54,6 +54,13 @@ public class QueuedContextStruct implements Serializable {
 
     private int priority = 0;
 
+    /*
+     * Priority the entry is ordered by in the queue, when it differs from its priority: taken over
+     * from the first entry by inverse precedence, or from another entry moved from the UI. Null when
+     * ordered by its own priority.
+     */
+    private Integer queuePriority;
+
     /*
      * Timeout for waiting to acquire the resource, in the specified timeoutUnit.
      * 0 means no timeout (wait indefinitely).
@@ -75,6 +82,25 @@ public class QueuedContextStruct implements Serializable {
     // cached candidates
     public transient List<String> candidates = null;
 
+    /*
+     * Build of the context, resolved once by getBuild(). Resolving it might load the flow execution.
+     */
+    private transient volatile Run<?, ?> build;
+
+    private transient volatile boolean buildResolved;
+
+    /*
+     * Externalizable id of the build of the context, when known without resolving the context: given
+     * by the lock step, or once resolved by getBuild(). Saved along with the entry.
+     */
+    private volatile String buildExternalizableId;
+
+    /*
+     * Set when the build completed or was deleted, see LockRunListener. Such an entry is removed
+     * from the queue without asking its context again.
+     */
+    private transient volatile boolean ended;
+
     private static final Logger LOGGER = Logger.getLogger(QueuedContextStruct.class.getName());
 
     private String id = null;
@@ -139,6 +165,17 @@ public class QueuedContextStruct implements Serializable {
         return this.priority;
     }
 
+    /** Priority the entry is ordered by in the queue. */
+    @Restricted(NoExternalUse.class)
+    public int getQueuePriority() {
+        return this.queuePriority != null ? this.queuePriority : this.priority;
+    }
+
+    @Restricted(NoExternalUse.class)
+    public void setQueuePriority(int queuePriority) {
+        this.queuePriority = queuePriority != this.priority ? queuePriority : null;
+    }
+
     @Restricted(NoExternalUse.class)
     public String getId() {
         if (this.id == null) {
@@ -159,27 +196,61 @@ public class QueuedContextStruct implements Serializable {
     @CheckForNull
     @Restricted(NoExternalUse.class)
     public Run<?, ?> getBuild() {
+        if (this.buildResolved) {
+            return this.build;
+        }
+        Run<?, ?> run = null;
         try {
-            if (this.getContext() == null) {
-                return null;
+            if (this.getContext() != null) {
+                run = this.getContext().get(Run.class);
             }
-            return this.getContext().get(Run.class);
         } catch (Exception e) {
             // for some reason there is no Run object for this context
             LOGGER.log(
                     Level.WARNING,
                     "Cannot get the build object from the context to proceed with lock. The build probably does not exists (deleted?)",
                     e);
-            return null;
         }
+        setBuild(run);
+        return run;
+    }
+
+    /** Sets the build of the context, known by the caller, so it is not resolved from the context. */
+    @Restricted(NoExternalUse.class)
+    public void setBuild(@CheckForNull Run<?, ?> build) {
+        this.build = build;
+        this.buildResolved = true;
+        if (build != null) {
+            this.buildExternalizableId = build.getExternalizableId();
+        }
+    }
+
+    /**
+     * Returns the externalizable id of the build of the context, or {@code null} when it is not known
+     * without resolving the context, see {@link #getBuild()}.
+     */
+    @CheckForNull
+    @Restricted(NoExternalUse.class)
+    public String getBuildExternalizableId() {
+        return this.buildExternalizableId;
+    }
+
+    /** Marks this entry as dead, its build completed or was deleted. */
+    @Restricted(NoExternalUse.class)
+    public void buildEnded() {
+        this.ended = true;
     }
 
     @Restricted(NoExternalUse.class)
     public boolean isValid() {
+        if (this.ended) {
+            return false;
+        }
         Run<?, ?> run = this.getBuild();
         if (run == null || run.isBuilding() == false) {
             // skip this one, for some reason there is no Run object for this context
             LOGGER.warning("The queue " + this + " will be removed, because the build does not exists");
+            this.ended = true;
             return false;
         }
         return true;
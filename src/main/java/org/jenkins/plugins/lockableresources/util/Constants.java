@@ -17,13 +17,43 @@ public class Constants {
             "org.jenkins.plugins.lockableresources.PRINT_QUEUE_INFO";
     /// Enable asynchronous save to reduce syncResources lock hold time.
     public static final String SYSTEM_PROPERTY_ASYNC_SAVE = "org.jenkins.plugins.lockableresources.ASYNC_SAVE";
-    /// Coalesce window (ms) for async saves — rapid state changes within this window are batched.
+    /// Minimum coalesce window (ms) for async saves — rapid state changes within this window are
+    /// batched. 0 saves right away.
     public static final String SYSTEM_PROPERTY_SAVE_COALESCE_MS =
             "org.jenkins.plugins.lockableresources.SAVE_COALESCE_MS";
-    /// TTL (ms) for Groovy script evaluation result cache per resource.
+    /// Maximum coalesce window (ms) for async saves. The window grows up to it while the state keeps
+    /// changing within each window, and shrinks back to the minimum when the changes calm down.
+    public static final String SYSTEM_PROPERTY_SAVE_COALESCE_MAX_MS =
+            "org.jenkins.plugins.lockableresources.SAVE_COALESCE_MAX_MS";
+    /// Window (ms) in which the Jenkins queue maintenances requested by freeing resources are merged
+    /// into one. 0 requests each one right away.
+    public static final String SYSTEM_PROPERTY_QUEUE_MAINTENANCE_DELAY_MS =
+            "org.jenkins.plugins.lockableresources.QUEUE_MAINTENANCE_DELAY_MS";
+    /// Set to 0 to disable caching of Groovy script evaluation results. Cached results are
+    /// invalidated by version (changed resource variables or LockableResourcesManager.refreshQueue())
+    /// and do not expire, other values have no effect.
     public static final String SYSTEM_PROPERTY_SCRIPT_CACHE_TTL_MS =
             "org.jenkins.plugins.lockableresources.SCRIPT_CACHE_TTL_MS";
-    /// TTL (ms) for label expression evaluation result cache per resource.
+    /// Has no effect any more. Label expressions are compiled once for the whole pool by the label
+    /// index of the manager, there are no per resource results to cache.
     public static final String SYSTEM_PROPERTY_LABEL_CACHE_TTL_MS =
             "org.jenkins.plugins.lockableresources.LABEL_CACHE_TTL_MS";
+    /// Append lock state changes to the state file instead of rewriting the whole state each time
+    /// (enabled by default). The state file is separate from the configuration file in any case.
+    public static final String SYSTEM_PROPERTY_JOURNAL = "org.jenkins.plugins.lockableresources.JOURNAL";
+    /// Size (bytes) of the state file, at which it is rewritten with the full state.
+    public static final String SYSTEM_PROPERTY_JOURNAL_COMPACT_BYTES =
+            "org.jenkins.plugins.lockableresources.JOURNAL_COMPACT_BYTES";
+    /// Maximum number of threads evaluating resource match scripts in parallel.
+    public static final String SYSTEM_PROPERTY_SCRIPT_MATCH_PARALLELISM =
+            "org.jenkins.plugins.lockableresources.SCRIPT_MATCH_PARALLELISM";
+    /// Time budget (ms) to evaluate a resource match script against all resources. A queue item
+    /// exceeding it fails instead of blocking the scheduler, and the script is interrupted. 10 seconds
+    /// by default, 0 disables the limit.
+    public static final String SYSTEM_PROPERTY_SCRIPT_MATCH_TIMEOUT_MS =
+            "org.jenkins.plugins.lockableresources.SCRIPT_MATCH_TIMEOUT_MS";
+    /// Maximum number of threads resolving the builds holding resources after a restart, to free the
+    /// resources of builds which are not running any more.
+    public static final String SYSTEM_PROPERTY_FREE_DEAD_JOBS_PARALLELISM =
+            "org.jenkins.plugins.lockableresources.FREE_DEAD_JOBS_PARALLELISM";
 }
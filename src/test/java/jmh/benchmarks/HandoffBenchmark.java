@@ -0,0 +1,140 @@
+package jmh.benchmarks;
+
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.util.Constants;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.steps.BodyInvoker;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Unlock-to-body-start latency. Every resource is held by one {@code lock()} step and waited for by
+ * another one, the body of the waiter is started before the unlock returns. The two steps take
+ * turns: the former holder queues again right after the unlock.
+ *
+ * <p>Waiting for the resource by name, it is handed over to the waiter directly. Waiting for a
+ * label matching it only, it is freed first and the waiter is picked by the walk through the queue.
+ * Compare both modes of {@code waitFor}.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandoffBenchmark {
+
+    private static final int RESOURCES = 500;
+
+    @State(Scope.Benchmark)
+    public static class ManagerState extends JmhBenchmarkState {
+
+        @Param({"name", "label"})
+        public String waitFor;
+
+        LockableResourcesManager lrm;
+        final List<LockableResource> resources = new ArrayList<>();
+        final List<Step[]> steps = new ArrayList<>();
+        int next;
+
+        @Override
+        public void setup() throws Exception {
+            System.setProperty(Constants.SYSTEM_PROPERTY_DISABLE_SAVE, "true");
+            lrm = LockableResourcesManager.get();
+
+            List<LockableResource> declared = new ArrayList<>();
+            for (int i = 0; i < RESOURCES; i++) {
+                LockableResource resource = new LockableResource("resource-" + i);
+                resource.setLabelsFromString("label-" + i);
+                declared.add(resource);
+            }
+            lrm.setDeclaredResources(declared);
+
+            for (int i = 0; i < RESOURCES; i++) {
+                LockableResource resource = lrm.fromName("resource-" + i);
+                LockableResourcesStruct struct = "name".equals(waitFor)
+                        ? new LockableResourcesStruct(Collections.singletonList(resource.getName()), null, 0)
+                        : new LockableResourcesStruct(null, "label-" + i, 1);
+                Step holder = new Step(struct);
+                Step waiter = new Step(struct);
+                synchronized (LockableResourcesManager.syncResources) {
+                    lrm.lock(Collections.singletonList(resource), holder.build);
+                }
+                waiter.queue(lrm);
+                resources.add(resource);
+                steps.add(new Step[] {holder, waiter});
+            }
+            // nothing can proceed, the queue has settled as after any unlock
+            lrm.checkTimeouts();
+        }
+    }
+
+    /** One {@code lock()} step, its body is not run. */
+    static final class Step {
+        final Run<?, ?> build = mockBuild();
+        final StepContext context = mock(StepContext.class);
+        final LockableResourcesStruct struct;
+
+        Step(LockableResourcesStruct struct) throws Exception {
+            this.struct = struct;
+            FlowNode node = mock(FlowNode.class);
+            when(node.getActions(PauseAction.class)).thenReturn(Collections.singletonList(new PauseAction("Lock")));
+            when(context.get(Run.class)).thenReturn(build);
+            when(context.get(FlowNode.class)).thenReturn(node);
+            when(context.get(TaskListener.class)).thenReturn(TaskListener.NULL);
+            when(context.newBodyInvoker()).thenAnswer(invocation -> mock(BodyInvoker.class, RETURNS_SELF));
+        }
+
+        void queue(LockableResourcesManager lrm) {
+            lrm.queueContext(context, Collections.singletonList(struct), struct.toString(), null, false, 0);
+        }
+    }
+
+    private static Run<?, ?> mockBuild() {
+        FreeStyleBuild build = mock(FreeStyleBuild.class);
+        when(build.isBuilding()).thenReturn(true);
+        when(build.getId()).thenReturn("1");
+        return build;
+    }
+
+    @Benchmark
+    public void unlockToBodyStart(ManagerState state) {
+        // walk through the pool, so we do not measure a single hot resource
+        state.next = (state.next + 1) % RESOURCES;
+        LockableResource resource = state.resources.get(state.next);
+        Step[] pair = state.steps.get(state.next);
+        Step holder = pair[0];
+        Step waiter = pair[1];
+        state.lrm.unlockResources(Collections.singletonList(resource), holder.build);
+
+        // the former holder waits for its turn again
+        holder.queue(state.lrm);
+        pair[0] = waiter;
+        pair[1] = holder;
+    }
+}
@@ -0,0 +1,151 @@
+package jmh.benchmarks;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkins.plugins.lockableresources.LockStep;
+import org.jenkins.plugins.lockableresources.LockStepExecution;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.actions.LockedResourcesBuildAction;
+import org.jenkins.plugins.lockableresources.util.Constants;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.steps.BodyInvoker;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of concurrent {@code lock()} entries. Every thread locks and releases its own
+ * resource, so the entries never wait for each other's resources, only for
+ * {@link LockableResourcesManager#syncResources}. Writing the flow node and the build console
+ * happens outside of it, so the throughput shall scale with the threads even when that I/O is slow.
+ *
+ * <p>The steps use mocked step contexts: the console is a file, persisting the flow node is
+ * simulated by {@code flowNodeSaveMicros}, and the body is not run.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class LockEntryBenchmark {
+
+    private static final int RESOURCES = 64;
+
+    @State(Scope.Benchmark)
+    public static class ManagerState extends JmhBenchmarkState {
+
+        @Param({"0", "200"})
+        public int flowNodeSaveMicros;
+
+        LockableResourcesManager lrm;
+        FreeStyleBuild build;
+        final AtomicInteger nextResource = new AtomicInteger();
+
+        @Override
+        public void setup() throws Exception {
+            System.setProperty(Constants.SYSTEM_PROPERTY_DISABLE_SAVE, "true");
+            lrm = LockableResourcesManager.get();
+
+            List<LockableResource> declared = new ArrayList<>();
+            for (int i = 0; i < RESOURCES; i++) {
+                declared.add(new LockableResource("resource-" + i));
+            }
+            lrm.setDeclaredResources(declared);
+
+            FreeStyleProject project = getJenkins().createProject(FreeStyleProject.class, "entry");
+            build = project.scheduleBuild2(0).get();
+        }
+
+        @TearDown(Level.Iteration)
+        public void dropBuildLogs() {
+            // every entry adds to the lock log of the build
+            build.removeActions(LockedResourcesBuildAction.class);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Pipeline {
+
+        LockStep step;
+        StepContext context;
+        List<String> resourceNames;
+        private StreamTaskListener listener;
+
+        @Setup
+        public void setup(ManagerState state) throws Exception {
+            String resource = "resource-" + state.nextResource.getAndIncrement() % RESOURCES;
+            step = new LockStep(resource);
+            resourceNames = Collections.singletonList(resource);
+
+            File console = File.createTempFile("lock-entry", ".log");
+            console.deleteOnExit();
+            listener = new StreamTaskListener(console, StandardCharsets.UTF_8);
+
+            // the latest pause of the node is ended when the lock is acquired
+            FlowNode node = mock(FlowNode.class);
+            List<PauseAction> pause = new ArrayList<>();
+            doAnswer(invocation -> {
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(state.flowNodeSaveMicros));
+                        pause.clear();
+                        pause.add(invocation.getArgument(0));
+                        return null;
+                    })
+                    .when(node)
+                    .addAction(any(PauseAction.class));
+            when(node.getActions(PauseAction.class)).thenReturn(pause);
+
+            context = mock(StepContext.class);
+            when(context.get(Run.class)).thenAnswer(invocation -> state.build);
+            when(context.get(TaskListener.class)).thenReturn(listener);
+            when(context.get(FlowNode.class)).thenReturn(node);
+            when(context.newBodyInvoker()).thenAnswer(invocation -> mock(BodyInvoker.class, RETURNS_SELF));
+        }
+
+        @TearDown
+        public void tearDown() {
+            listener.closeQuietly();
+        }
+    }
+
+    @Benchmark
+    public void enter(ManagerState state, Pipeline pipeline) throws Exception {
+        new LockStepExecution(pipeline.step, pipeline.context).start();
+        // release the way the body callback does
+        state.lrm.unlockNames(pipeline.resourceNames, state.build);
+    }
+}
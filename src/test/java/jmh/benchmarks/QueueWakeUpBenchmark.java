@@ -0,0 +1,134 @@
+package jmh.benchmarks;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.util.Constants;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Unlock-to-grant latency with 5k queued {@code lock()} steps waiting for 500 resources. Every
+ * resource is locked and every waiter needs exactly one of them (by name or by label), so each
+ * unlock hands the resource to the oldest waiter depending on it. The granted waiter is queued
+ * again, so the queue keeps its size.
+ *
+ * <p>The waiters use mocked step contexts: the lock is granted, and continuing the mocked pipeline
+ * fails fast.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueWakeUpBenchmark {
+
+    private static final int RESOURCES = 500;
+    private static final int WAITERS = 5000;
+    private static final int RESOURCES_PER_LABEL = 10;
+
+    @State(Scope.Benchmark)
+    public static class ManagerState extends JmhBenchmarkState {
+
+        LockableResourcesManager lrm;
+        final List<LockableResource> resources = new ArrayList<>();
+        final Map<Run<?, ?>, Waiter> waitersByBuild = new IdentityHashMap<>();
+        int next;
+
+        @Override
+        public void setup() throws Exception {
+            System.setProperty(Constants.SYSTEM_PROPERTY_DISABLE_SAVE, "true");
+            lrm = LockableResourcesManager.get();
+
+            List<LockableResource> declared = new ArrayList<>();
+            for (int i = 0; i < RESOURCES; i++) {
+                LockableResource resource = new LockableResource("resource-" + i);
+                resource.setLabelsFromString("group-" + (i / RESOURCES_PER_LABEL));
+                declared.add(resource);
+            }
+            lrm.setDeclaredResources(declared);
+            for (int i = 0; i < RESOURCES; i++) {
+                resources.add(lrm.fromName("resource-" + i));
+            }
+
+            // every resource is held by somebody
+            synchronized (LockableResourcesManager.syncResources) {
+                for (LockableResource resource : resources) {
+                    lrm.lock(Collections.singletonList(resource), mockBuild());
+                }
+            }
+
+            for (int i = 0; i < WAITERS; i++) {
+                Waiter waiter;
+                if (i % 2 == 0) {
+                    waiter = new Waiter(new LockableResourcesStruct(
+                            Collections.singletonList("resource-" + (i % RESOURCES)), null, 0));
+                } else {
+                    waiter = new Waiter(new LockableResourcesStruct(
+                            null, "group-" + (i % (RESOURCES / RESOURCES_PER_LABEL)), 1));
+                }
+                waitersByBuild.put(waiter.build, waiter);
+                waiter.queue(lrm);
+            }
+        }
+    }
+
+    /** One queued {@code lock()} step. */
+    static final class Waiter {
+        final Run<?, ?> build = mockBuild();
+        final StepContext context = mock(StepContext.class);
+        final LockableResourcesStruct struct;
+
+        Waiter(LockableResourcesStruct struct) throws Exception {
+            this.struct = struct;
+            when(context.get(Run.class)).thenReturn(build);
+        }
+
+        void queue(LockableResourcesManager lrm) {
+            lrm.queueContext(context, Collections.singletonList(struct), struct.toString(), null, false, 0);
+        }
+    }
+
+    private static Run<?, ?> mockBuild() {
+        FreeStyleBuild build = mock(FreeStyleBuild.class);
+        when(build.isBuilding()).thenReturn(true);
+        when(build.getId()).thenReturn("1");
+        return build;
+    }
+
+    @Benchmark
+    public void unlockToGrant(ManagerState state) {
+        // walk through the pool, so we do not measure a single hot resource
+        state.next = (state.next + 1) % RESOURCES;
+        LockableResource resource = state.resources.get(state.next);
+        state.lrm.unlockResources(Collections.singletonList(resource), resource.getBuild());
+
+        // keep the queue at its size
+        Waiter granted = state.waitersByBuild.get(resource.getBuild());
+        if (granted != null) {
+            granted.queue(state.lrm);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package jmh.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.util.Constants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Name lookup cost ({@link LockableResourcesManager#fromName(String)} and
+ * {@link LockableResourcesManager#fromNames(List)}) for growing resource pools. With the name index
+ * the cost per lookup shall stay flat from 100 up to 50k resources.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResourceLookupBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ManagerState extends JmhBenchmarkState {
+
+        @Param({"100", "1000", "10000", "50000"})
+        public int poolSize;
+
+        LockableResourcesManager lrm;
+        final List<String> names = new ArrayList<>();
+        final List<String> batch = new ArrayList<>();
+
+        @Override
+        public void setup() throws Exception {
+            System.setProperty(Constants.SYSTEM_PROPERTY_DISABLE_SAVE, "true");
+            lrm = LockableResourcesManager.get();
+
+            List<LockableResource> declared = new ArrayList<>();
+            for (int i = 0; i < poolSize; i++) {
+                String name = "resource-" + i;
+                names.add(name);
+                declared.add(new LockableResource(name));
+            }
+            lrm.setDeclaredResources(declared);
+
+            // unlocking a multi-resource build resolves a handful of names spread over the pool
+            for (int i = 0; i < 10; i++) {
+                batch.add(names.get((int) ((long) i * poolSize / 10)));
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public LockableResource fromName(ManagerState state, Cursor cursor) {
+        // walk through the pool, so we do not measure a single hot entry
+        cursor.next = (cursor.next + 1) % state.poolSize;
+        return state.lrm.fromName(state.names.get(cursor.next));
+    }
+
+    @Benchmark
+    public LockableResource fromNameMissing(ManagerState state) {
+        return state.lrm.fromName("does-not-exist");
+    }
+
+    @Benchmark
+    public List<LockableResource> fromNames(ManagerState state) {
+        return state.lrm.fromNames(state.batch);
+    }
+}
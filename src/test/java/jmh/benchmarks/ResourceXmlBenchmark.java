@@ -0,0 +1,127 @@
+package jmh.benchmarks;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import hudson.util.RobustReflectionConverter;
+import hudson.util.XStream2;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourceProperty;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading and saving the resources at startup and on configuration changes. Compare
+ * {@code readCompact} with {@code readReflection}: the latter is the field by field form written by
+ * older versions, which is still read, the former the one of {@code LockableResource.ConverterImpl}.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResourceXmlBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class XmlState {
+
+        @Param({"20000"})
+        public int poolSize;
+
+        XStream2 xstream;
+        XStream2 reflectionXStream;
+        List<LockableResource> resources;
+        String compactXml;
+        String reflectionXml;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            xstream = new XStream2();
+            reflectionXStream = reflectionXStream();
+
+            resources = new ArrayList<>();
+            for (int i = 0; i < poolSize; i++) {
+                LockableResource resource = new LockableResource("resource-" + i);
+                resource.setDescription("description of resource " + i);
+                resource.setLabelsFromString("label-" + (i % 10) + " pool-" + (i % 100) + " all");
+                if (i % 10 == 0) {
+                    LockableResourceProperty property = new LockableResourceProperty();
+                    property.setName("ip");
+                    property.setValue("10.0." + (i / 256 % 256) + "." + (i % 256));
+                    resource.setProperties(Collections.singletonList(property));
+                }
+                if (i % 5 == 0) {
+                    resource.setReservedBy("user-" + (i % 7));
+                }
+                resources.add(resource);
+            }
+            compactXml = xstream.toXML(resources);
+            reflectionXml = reflectionXStream.toXML(resources);
+        }
+    }
+
+    /** Writes resources the way older versions did, field by field. */
+    private static XStream2 reflectionXStream() {
+        XStream2 xstream = new XStream2();
+        RobustReflectionConverter reflection =
+                new RobustReflectionConverter(xstream.getMapper(), xstream.getReflectionProvider());
+        xstream.registerConverter(
+                new Converter() {
+                    @Override
+                    public boolean canConvert(Class type) {
+                        return type == LockableResource.class;
+                    }
+
+                    @Override
+                    public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+                        reflection.marshal(source, writer, context);
+                    }
+
+                    @Override
+                    public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+                        return reflection.unmarshal(reader, context);
+                    }
+                },
+                XStream.PRIORITY_VERY_HIGH);
+        return xstream;
+    }
+
+    @Benchmark
+    public Object readCompact(XmlState state) {
+        return state.xstream.fromXML(state.compactXml);
+    }
+
+    @Benchmark
+    public Object readReflection(XmlState state) {
+        return state.reflectionXStream.fromXML(state.reflectionXml);
+    }
+
+    @Benchmark
+    public String writeCompact(XmlState state) {
+        return state.xstream.toXML(state.resources);
+    }
+
+    @Benchmark
+    public String writeReflection(XmlState state) {
+        return state.reflectionXStream.toXML(state.resources);
+    }
+}
@@ -0,0 +1,102 @@
+package jmh.benchmarks;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.util.Constants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lock grant latency while the configuration is saved over and over. Compare the p99 of
+ * {@code grantWithSaves:grant} with {@code grantAlone}: the state is only copied under
+ * {@link LockableResourcesManager#syncResources}, serialization and disk I/O happen outside of it,
+ * so the grants shall not wait for the saves.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveContentionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ManagerState extends JmhBenchmarkState {
+
+        static {
+            // save synchronously in the saving thread, instead of coalescing on the save executor
+            System.setProperty(Constants.SYSTEM_PROPERTY_SAVE_COALESCE_MS, "0");
+        }
+
+        @Param({"1000", "10000"})
+        public int poolSize;
+
+        LockableResourcesManager lrm;
+        FreeStyleBuild build;
+        List<LockableResource> toLock;
+
+        @Override
+        public void setup() throws Exception {
+            lrm = LockableResourcesManager.get();
+
+            List<LockableResource> declared = new ArrayList<>();
+            for (int i = 0; i < poolSize; i++) {
+                LockableResource resource = new LockableResource("resource-" + i);
+                resource.setLabelsFromString("label-" + (i % 10) + " all");
+                resource.setDescription("description of resource " + i);
+                declared.add(resource);
+            }
+            lrm.setDeclaredResources(declared);
+
+            FreeStyleProject project = getJenkins().createProject(FreeStyleProject.class, "grant");
+            build = project.scheduleBuild2(0).get();
+            toLock = Collections.singletonList(lrm.fromName("resource-0"));
+        }
+    }
+
+    /** Lock and release one resource, the same way the lock step does. */
+    private static void lockAndRelease(ManagerState state) {
+        synchronized (LockableResourcesManager.syncResources) {
+            state.lrm.lock(state.toLock, state.build);
+        }
+        state.lrm.unlockResources(state.toLock, state.build);
+    }
+
+    @Benchmark
+    public void grantAlone(ManagerState state) {
+        lockAndRelease(state);
+    }
+
+    @Benchmark
+    @Group("grantWithSaves")
+    @GroupThreads(1)
+    public void grant(ManagerState state) {
+        lockAndRelease(state);
+    }
+
+    @Benchmark
+    @Group("grantWithSaves")
+    @GroupThreads(1)
+    public void save(ManagerState state) {
+        // the full configuration file, as written on configuration changes and journal compaction
+        state.lrm.save();
+    }
+}
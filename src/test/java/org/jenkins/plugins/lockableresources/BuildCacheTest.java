@@ -0,0 +1,51 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class BuildCacheTest {
+
+    @Test
+    void missingBuildIsLookedUpOnce(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("resource1");
+        FreeStyleProject project = j.createFreeStyleProject("p");
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        String id = build.getExternalizableId();
+        assertSame(build, lrm.getBuildCache().get(id));
+
+        LockableResource resource = lrm.fromName("resource1");
+        lrm.lock(Collections.singletonList(resource), build);
+        // as loaded after a restart
+        LockableResource restored = new LockableResource("resource1");
+        restored.restoreState(resource);
+        build.delete();
+        assertNull(restored.getBuild());
+
+        long misses = lrm.getBuildCacheStats().missCount();
+        assertNull(restored.getBuild());
+        assertNull(restored.getBuildName());
+        assertEquals(misses, lrm.getBuildCacheStats().missCount());
+    }
+
+    @Test
+    void startedBuildIsFound(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        FreeStyleProject project = j.createFreeStyleProject("p");
+        assertNull(lrm.getBuildCache().get("p#1"));
+
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        assertSame(build, lrm.getBuildCache().get("p#1"));
+        lrm.forgetBuild(build);
+        assertEquals(0, lrm.getBuildCache().size());
+    }
+}
@@ -0,0 +1,81 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class CandidatesCacheTest {
+
+    private final CandidatesCache cache = new CandidatesCache(5, TimeUnit.MINUTES);
+    private final LockableResource r1 = new LockableResource("r1");
+    private final LockableResource r2 = new LockableResource("r2");
+    private final LockableResource r3 = new LockableResource("r3");
+
+    @Test
+    void invalidatesDependentsOnly() {
+        cache.put(1, Arrays.asList(r1, r2), 1);
+        cache.put(2, Collections.singletonList(r3), 1);
+
+        cache.invalidate(r1);
+        assertNull(cache.get(1, 1));
+        assertNotNull(cache.get(2, 1));
+        assertEquals(1, cache.indexSize());
+
+        cache.invalidate(r3);
+        assertNull(cache.get(2, 1));
+        assertEquals(0, cache.indexSize());
+    }
+
+    @Test
+    void itemsWithoutCandidatesDependOnEverything() {
+        cache.put(1, Collections.emptyList(), 1);
+        cache.put(2, Collections.singletonList(r1), 1);
+
+        cache.invalidate(r3);
+        assertNull(cache.get(1, 1));
+        assertNotNull(cache.get(2, 1));
+        assertEquals(1, cache.indexSize());
+    }
+
+    @Test
+    void replacedEntryKeepsNewDependencies() {
+        cache.put(1, Arrays.asList(r1, r2), 1);
+        cache.put(1, Arrays.asList(r2, r3), 1);
+        assertEquals(2, cache.indexSize());
+
+        // r1 is no candidate any more
+        cache.invalidate(r1);
+        assertNotNull(cache.get(1, 1));
+
+        cache.invalidate(r2);
+        assertNull(cache.get(1, 1));
+        assertEquals(0, cache.indexSize());
+    }
+
+    @Test
+    void outdatedByNewVersion() {
+        cache.put(1, Collections.singletonList(r1), 1);
+        assertNotNull(cache.get(1, 1));
+
+        assertNull(cache.get(1, 2));
+        assertNull(cache.get(1, 1));
+        assertEquals(0, cache.indexSize());
+    }
+
+    @Test
+    void recordsStats() {
+        cache.put(1, Collections.singletonList(r1), 1);
+        cache.get(1, 1);
+        cache.get(2, 1);
+        cache.invalidateAll();
+
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(1, cache.stats().missCount());
+        assertEquals(0, cache.indexSize());
+    }
+}
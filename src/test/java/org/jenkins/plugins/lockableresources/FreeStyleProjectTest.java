@@ -485,6 +485,30 @@ class FreeStyleProjectTest {
         assertEquals(2, count, "Expected exactly 2 resources to be locked");
     }
 
+    @Test
+    void reconfiguredRequirementOfBlockedItem(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("resource1");
+        lrm.createResource("resource2");
+        lrm.reserve(List.of(lrm.fromName("resource1")), "user");
+
+        FreeStyleProject p = j.createFreeStyleProject("p");
+        p.addProperty(new RequiredResourcesProperty("resource1", null, null, null, null));
+        QueueTaskFuture<FreeStyleBuild> futureBuild = p.scheduleBuild2(0);
+        TestHelpers.waitForQueue(j.jenkins, p, Queue.BlockedItem.class);
+        Queue.BlockedItem blockedItem = (Queue.BlockedItem) j.jenkins.getQueue().getItem(p);
+        assertThat(
+                blockedItem.getCauseOfBlockage(),
+                is(instanceOf(LockableResourcesQueueTaskDispatcher.BecauseResourcesLocked.class)));
+
+        // the requirements resolved for the blocked item are outdated
+        p.removeProperty(RequiredResourcesProperty.class);
+        p.addProperty(new RequiredResourcesProperty("resource2", null, null, null, null));
+        j.jenkins.getQueue().maintain();
+        j.assertBuildStatusSuccess(futureBuild);
+        assertTrue(lrm.fromName("resource1").isReserved());
+    }
+
     public static class PrinterBuilder extends TestBuilder {
 
         @Override
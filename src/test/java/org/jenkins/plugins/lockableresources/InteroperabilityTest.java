@@ -1,10 +1,21 @@
 package org.jenkins.plugins.lockableresources;
 
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import hudson.ExtensionList;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.EnvironmentContributor;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.util.OneShotEvent;
 import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
 import org.jenkins.plugins.lockableresources.util.Constants;
@@ -15,6 +26,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 
 @WithJenkins
@@ -67,4 +79,77 @@ class InteroperabilityTest extends LockStepTestBase {
         j.assertBuildStatusSuccess(j.waitForCompletion(f1));
         j.assertBuildStatusSuccess(j.waitForCompletion(b1));
     }
+
+    @Test
+    void cancelledQueueItemUnblocksPipeline(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("resource1");
+        // the freestyle item queues the resource, then waits for an executor
+        j.jenkins.setNumExecutors(0);
+        FreeStyleProject f = j.createFreeStyleProject("f");
+        f.addProperty(new RequiredResourcesProperty("resource1", null, null, null, null));
+        f.scheduleBuild2(0);
+        Queue.Item item = j.jenkins.getQueue().getItem(f);
+        while (!lrm.fromName("resource1").isQueued()) {
+            Thread.sleep(100);
+        }
+
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("""
+                    lock('resource1') {
+                        echo 'Locked'
+                    }""", true));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("[Resource: resource1] is not free, waiting for execution ...", b1);
+
+        // no periodic check: the cancellation itself lets the pipeline proceed
+        j.jenkins.getQueue().cancel(item);
+        long deadline = System.currentTimeMillis() + 10_000L;
+        while (b1.isBuilding() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        j.assertBuildStatusSuccess(b1);
+        j.assertLogContains("Locked", b1);
+        assertFalse(lrm.fromName("resource1").isQueued());
+    }
+
+    @Test
+    void slowEnvironmentDoesNotBlockLocking(JenkinsRule j) throws Exception {
+        LockableResourcesManager.get().createResource("resource1");
+        LockableResourcesManager.get().createResource("resource2");
+        SlowEnvironment environment = ExtensionList.lookupSingleton(SlowEnvironment.class);
+
+        FreeStyleProject f = j.createFreeStyleProject("f");
+        f.addProperty(new RequiredResourcesProperty("resource1", null, null, null, null));
+        QueueTaskFuture<FreeStyleBuild> f1 = f.scheduleBuild2(0);
+        // the freestyle build resolves its environment to expand its requirements
+        environment.entered.block();
+
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("""
+                    lock('resource2') {
+                        echo 'Locked'
+                    }""", true));
+        WorkflowRun b1 = j.buildAndAssertSuccess(p);
+        j.assertLogContains("Locked", b1);
+
+        environment.release.signal();
+        j.assertLogContains("acquired lock on [resource1]", j.assertBuildStatusSuccess(f1));
+    }
+
+    @TestExtension("slowEnvironmentDoesNotBlockLocking")
+    public static class SlowEnvironment extends EnvironmentContributor {
+
+        private final OneShotEvent entered = new OneShotEvent();
+        private final OneShotEvent release = new OneShotEvent();
+
+        @Override
+        public void buildEnvironmentFor(@NonNull Run r, @NonNull EnvVars envs, @NonNull TaskListener listener)
+                throws InterruptedException {
+            if (r instanceof FreeStyleBuild && !entered.isSignaled()) {
+                entered.signal();
+                release.block();
+            }
+        }
+    }
 }
@@ -2,8 +2,10 @@ package org.jenkins.plugins.lockableresources;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.hasEntry;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 import com.google.common.collect.ImmutableMap;
 import hudson.model.Result;
@@ -45,6 +47,70 @@ class LockStepTest extends LockStepTestBase {
         assertNull(LockableResourcesManager.get().fromName("resource1"));
     }
 
+    @Test
+    void releasedResourceIsHandedOver(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("""
+                lock('resource1') {
+                    semaphore 'wait-inside'
+                }
+                echo 'Finish'""", true));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait-inside/1", b1);
+        WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("[Resource: resource1] is not free, waiting for execution ...", b2);
+        // settle the queue, as it is after any release
+        lrm.checkTimeouts();
+        LockableResource resource = lrm.fromName("resource1");
+
+        SemaphoreStep.success("wait-inside/1", null);
+        SemaphoreStep.waitForStart("wait-inside/2", b2);
+        // the ephemeral resource was not freed, removed and created again
+        assertSame(resource, lrm.fromName("resource1"));
+        assertEquals(b2, resource.getBuild());
+
+        SemaphoreStep.success("wait-inside/2", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+        assertNull(lrm.fromName("resource1"));
+    }
+
+    @Test
+    void releasedResourceIsHandedOverOnPlainUnlock(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("""
+                lock('resource1') {
+                    semaphore 'wait-inside'
+                }
+                echo 'Finish'""", true));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait-inside/1", b1);
+        WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("[Resource: resource1] is not free, waiting for execution ...", b2);
+        WorkflowRun b3 = p.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("[Resource: resource1] is not free, waiting for execution ...", b3);
+        LockableResource resource = lrm.fromName("resource1");
+
+        // nothing settles the queue but the regular lock and unlock
+        SemaphoreStep.success("wait-inside/1", null);
+        SemaphoreStep.waitForStart("wait-inside/2", b2);
+        assertSame(resource, lrm.fromName("resource1"));
+        assertEquals(b2, resource.getBuild());
+
+        SemaphoreStep.success("wait-inside/2", null);
+        SemaphoreStep.waitForStart("wait-inside/3", b3);
+        assertSame(resource, lrm.fromName("resource1"));
+        assertEquals(b3, resource.getBuild());
+
+        SemaphoreStep.success("wait-inside/3", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b3));
+        j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+        assertNull(lrm.fromName("resource1"));
+    }
+
     @Test
     void lockWithMixedParameters(JenkinsRule j) throws Exception {
         LockableResourcesManager lrm = LockableResourcesManager.get();
@@ -1,18 +1,35 @@
 package org.jenkins.plugins.lockableresources;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import hudson.Util;
 import hudson.model.AutoCompletionCandidates;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
 import hudson.model.Item;
 import hudson.model.User;
 import hudson.security.AccessDeniedException3;
 import hudson.util.FormValidation;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.MockAuthorizationStrategy;
@@ -161,6 +178,519 @@ class LockableResourceManagerTest {
         RequiredResourcesProperty.DescriptorImpl.doAutoCompleteResourceNames("", item);
     }
 
+    @Test
+    void fromNameFollowsResourceChanges(JenkinsRule j) {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "label1");
+        lrm.createResourceWithLabel("resource2", "label1");
+        LockableResource resource1 = lrm.fromName("resource1");
+        assertNotNull(resource1);
+        assertSame(resource1, lrm.fromName("resource1"));
+        assertNull(lrm.fromName("resource3"));
+
+        // removed resources must not be found any more
+        lrm.removeResources(Collections.singletonList(resource1));
+        assertNull(lrm.fromName("resource1"));
+        assertNotNull(lrm.fromName("resource2"));
+
+        // re-declaring the configuration replaces the whole list
+        LockableResource declared = new LockableResource("resource3");
+        lrm.setDeclaredResources(Arrays.asList(declared, new LockableResource("resource2")));
+        assertSame(declared, lrm.fromName("resource3"));
+        assertNotNull(lrm.fromName("resource2"));
+
+        // direct changes of the (mutable) resource list are still honored
+        LockableResource direct = new LockableResource("resource4");
+        lrm.getResources().add(direct);
+        assertSame(direct, lrm.fromName("resource4"));
+        lrm.getResources().remove(direct);
+        assertNull(lrm.fromName("resource4"));
+        // even when the size does not change
+        LockableResource replacement = new LockableResource("resource2");
+        lrm.getResources().set(1, replacement);
+        assertSame(replacement, lrm.fromName("resource2"));
+        // a duplicate name does not outdate the index for good, the first one wins
+        lrm.getResources().add(new LockableResource("resource3"));
+        assertSame(declared, lrm.fromName("resource3"));
+        assertSame(declared, lrm.fromName("resource3"));
+        lrm.getResources().remove(2);
+
+        assertEquals(
+                Arrays.asList("resource3", "resource2"),
+                LockableResourcesManager.getResourcesNames(lrm.fromNames(Arrays.asList("resource3", "resource2"))));
+    }
+
+    @Test
+    void labelIndexFollowsLabelChanges(JenkinsRule j) {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "a b");
+        lrm.createResourceWithLabel("resource2", "a");
+        lrm.createResourceWithLabel("resource3", "c");
+
+        assertEquals(Arrays.asList("resource1", "resource2"), names(lrm, "a"));
+        assertEquals(Arrays.asList("resource2"), names(lrm, "a && !b"));
+        assertEquals(Arrays.asList("resource1", "resource3"), names(lrm, "b || c"));
+        assertEquals(Arrays.asList("resource1", "resource2"), names(lrm, "(a || c) && !(c)"));
+        assertEquals(Arrays.asList("resource1", "resource3"), names(lrm, "a -> b"));
+        assertEquals(Arrays.asList("resource1", "resource3"), names(lrm, "a <-> b"));
+        assertEquals(Collections.emptyList(), names(lrm, "d"));
+        assertEquals(new TreeSet<>(Arrays.asList("a", "b", "c")), new TreeSet<>(lrm.getAllLabels()));
+
+        // label changes are reflected by the index
+        LockableResource resource3 = lrm.fromName("resource3");
+        resource3.setLabelsFromString("a d");
+        assertEquals(Arrays.asList("resource1", "resource2", "resource3"), names(lrm, "a"));
+        assertEquals(Arrays.asList("resource3"), names(lrm, "d"));
+        assertEquals(Collections.emptyList(), names(lrm, "c"));
+        assertFalse(lrm.isValidLabel("c"));
+        resource3.getLabelsAsList().add("c");
+        assertTrue(lrm.isValidLabel("c"));
+        assertEquals(Arrays.asList("resource3"), names(lrm, "c && d"));
+
+        // removed resources are not matched any more
+        lrm.removeResources(Collections.singletonList(lrm.fromName("resource1")));
+        assertEquals(Arrays.asList("resource2", "resource3"), names(lrm, "a"));
+        assertFalse(lrm.isValidLabel("b"));
+
+        // re-declaring the configuration replaces the whole list
+        LockableResource declared = new LockableResource("resource4");
+        declared.setLabelsFromString("b");
+        lrm.setDeclaredResources(Collections.singletonList(declared));
+        assertEquals(Arrays.asList("resource4"), names(lrm, "b"));
+        declared.setLabelsFromString("e");
+        assertEquals(Arrays.asList("resource4"), names(lrm, "e || b"));
+        assertEquals(new TreeSet<>(Collections.singletonList("e")), new TreeSet<>(lrm.getAllLabels()));
+    }
+
+    @Test
+    void resourceMatchesLabelThroughIndex(JenkinsRule j) {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("phone1", "android-device api33");
+        lrm.createResourceWithLabel("phone2", "api33 android-device");
+        LockableResource phone1 = lrm.fromName("phone1");
+        LockableResource phone2 = lrm.fromName("phone2");
+        assertTrue(phone1.isValidLabel("android-device && api33"));
+        assertTrue(phone2.isValidLabel("android-device && api33"));
+
+        phone2.setLabelsFromString("android-device api34");
+        assertTrue(phone1.isValidLabel("android-device && api33"));
+        assertFalse(phone2.isValidLabel("android-device && api33"));
+        assertTrue(phone2.isValidLabel("api34 || api35"));
+
+        // a resource outside of the manager evaluates the expression itself
+        LockableResource detached = new LockableResource("tablet");
+        detached.setLabelsFromString("a b");
+        assertTrue(detached.isValidLabel("a && b"));
+        assertFalse(detached.isValidLabel("a && !b"));
+        assertFalse(new LockableResource("empty").isValidLabel("a || b"));
+    }
+
+    @Test
+    void resourceCountsFollowStateChanges(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "a b");
+        lrm.createResourceWithLabel("resource2", "a");
+        lrm.createResourceWithLabel("resource3", "c");
+        assertCounts(lrm.getResourceCounts(), 3, 0, 0);
+        assertLabelCount(lrm.getResourceCounts(), "a", 2, 2);
+
+        // lock
+        FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject("p"));
+        assertTrue(lrm.lock(Collections.singletonList(lrm.fromName("resource1")), build));
+        assertCounts(lrm.getResourceCounts(), 2, 1, 0);
+        assertLabelCount(lrm.getResourceCounts(), "a", 1, 2);
+        assertLabelCount(lrm.getResourceCounts(), "b", 0, 1);
+        assertEquals(1, lrm.getFreeResourceAmount("a"));
+        assertEquals(1, lrm.getFreeResourceAmount("a || c"));
+        assertEquals(2, lrm.getFreeResourceAmount("!b"));
+        assertEquals(3, lrm.getAssignedResourceAmount("a || c"));
+
+        // reserve, reserved wins over locked
+        lrm.reserve(Collections.singletonList(lrm.fromName("resource2")), "user");
+        lrm.fromName("resource1").setReservedBy("user");
+        assertCounts(lrm.getResourceCounts(), 1, 0, 2);
+        assertLabelCount(lrm.getResourceCounts(), "a", 0, 2);
+
+        // label change of a busy resource
+        lrm.fromName("resource2").setLabelsFromString("c");
+        assertLabelCount(lrm.getResourceCounts(), "a", 0, 1);
+        assertLabelCount(lrm.getResourceCounts(), "c", 1, 2);
+
+        // unreserve and unlock
+        lrm.unreserve(Arrays.asList(lrm.fromName("resource1"), lrm.fromName("resource2")));
+        assertCounts(lrm.getResourceCounts(), 2, 1, 0);
+        lrm.unlockBuild(build);
+        assertCounts(lrm.getResourceCounts(), 3, 0, 0);
+        assertLabelCount(lrm.getResourceCounts(), "a", 1, 1);
+
+        // remove
+        lrm.removeResources(Collections.singletonList(lrm.fromName("resource1")));
+        assertCounts(lrm.getResourceCounts(), 2, 0, 0);
+        assertNull(lrm.getResourceCounts().getLabel("a"));
+        assertNull(lrm.getResourceCounts().getLabel("b"));
+    }
+
+    @Test
+    void queuedResourcesAreNotFreePerLabel(JenkinsRule j) {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "a");
+        lrm.createResourceWithLabel("resource2", "a");
+
+        lrm.fromName("resource1").setQueued(42, "p");
+        assertEquals(1, lrm.getFreeResourceAmount("a"));
+        assertEquals(2, lrm.getAssignedResourceAmount("a"));
+        assertLabelCount(lrm.getResourceCounts(), "a", 1, 2);
+        // the pool counters still count it as free
+        assertCounts(lrm.getResourceCounts(), 2, 0, 0);
+
+        lrm.fromName("resource1").unqueue();
+        assertEquals(2, lrm.getFreeResourceAmount("a"));
+        assertLabelCount(lrm.getResourceCounts(), "a", 2, 2);
+    }
+
+    @Test
+    void readOnlyAccessorsFollowSnapshot(JenkinsRule j) {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("resource1");
+        long version = lrm.getSnapshotVersion();
+        List<LockableResource> before = lrm.getReadOnlyResources();
+
+        lrm.createResourceWithLabel("resource2", "a");
+        assertTrue(lrm.getSnapshotVersion() > version);
+        assertEquals(Arrays.asList("resource1", "resource2"), lrm.getAllResourcesNames());
+        assertEquals(Arrays.asList("resource1"), LockableResourcesManager.getResourcesNames(before));
+
+        // direct changes of the (mutable) resource list are still honored
+        lrm.getResources().add(new LockableResource("resource3"));
+        assertEquals(Arrays.asList("resource1", "resource2", "resource3"), lrm.getAllResourcesNames());
+
+        lrm.removeResources(Collections.singletonList(lrm.fromName("resource1")));
+        assertEquals(
+                Arrays.asList("resource2", "resource3"),
+                LockableResourcesManager.getResourcesNames(lrm.getReadOnlyResources()));
+        assertTrue(lrm.getCurrentQueuedContext().isEmpty());
+    }
+
+    @Test
+    void resourcesFromProjectFollowQueueChanges(JenkinsRule j) {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("resource1");
+        lrm.createResource("resource2");
+        lrm.createResource("resource3");
+        assertTrue(lrm.getResourcesFromProject("project").isEmpty());
+
+        assertTrue(lrm.queue(lrm.fromNames(Arrays.asList("resource1", "resource2")), 1, "project"));
+        assertTrue(lrm.queue(lrm.fromNames(Collections.singletonList("resource3")), 2, "other"));
+        assertEquals(
+                new TreeSet<>(Arrays.asList("resource1", "resource2")),
+                new TreeSet<>(LockableResourcesManager.getResourcesNames(lrm.getResourcesFromProject("project"))));
+        assertEquals(
+                Collections.singletonList("resource3"),
+                LockableResourcesManager.getResourcesNames(lrm.getResourcesFromProject("other")));
+
+        lrm.fromName("resource1").unqueue();
+        assertEquals(
+                Collections.singletonList("resource2"),
+                LockableResourcesManager.getResourcesNames(lrm.getResourcesFromProject("project")));
+
+        // queued by another project now
+        lrm.fromName("resource2").setQueued(3, "other");
+        assertTrue(lrm.getResourcesFromProject("project").isEmpty());
+        assertEquals(2, lrm.getResourcesFromProject("other").size());
+
+        lrm.removeResources(Collections.singletonList(lrm.fromName("resource3")));
+        assertEquals(
+                Collections.singletonList("resource2"),
+                LockableResourcesManager.getResourcesNames(lrm.getResourcesFromProject("other")));
+    }
+
+    @Test
+    void matchScriptIsCompiledOnce(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "a");
+        lrm.createResourceWithLabel("resource2", "b");
+        lrm.createResourceWithLabel("resource3", "a b");
+        SecureGroovyScript script = new SecureGroovyScript("resourceLabels.contains(wanted)", true, null)
+                .configuring(ApprovalContext.create());
+
+        assertEquals(
+                Arrays.asList("resource1", "resource3"),
+                LockableResourcesManager.getResourcesNames(
+                        lrm.getResourcesMatchingScript(script, Collections.singletonMap("wanted", "a"))));
+        assertEquals(
+                Arrays.asList("resource2", "resource3"),
+                LockableResourcesManager.getResourcesNames(
+                        lrm.getResourcesMatchingScript(script, Collections.singletonMap("wanted", "b"))));
+
+        ResourceMatchScripts.Timings timings = lrm.getMatchScriptTimings().get(Util.getDigestOf(script.getScript()));
+        assertNotNull(timings);
+        assertEquals(1, timings.getCompilations());
+        assertEquals(6, timings.getEvaluations());
+
+        // the results are cached per resource
+        lrm.getResourcesMatchingScript(script, Collections.singletonMap("wanted", "a"));
+        assertEquals(6, timings.getEvaluations());
+    }
+
+    @Test
+    void matchScriptIsEvaluatedOncePerClass(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        for (int i = 0; i < 50; i++) {
+            lrm.createResourceWithLabel("phone" + i, "android-device api33");
+        }
+        lrm.createResourceWithLabel("tablet", "android-device api34");
+        SecureGroovyScript script = new SecureGroovyScript("resourceLabels.contains('api33')", true, null)
+                .configuring(ApprovalContext.create());
+
+        assertEquals(50, lrm.getResourcesMatchingScript(script, null).size());
+        ResourceMatchScripts.Timings timings = lrm.getMatchScriptTimings().get(Util.getDigestOf(script.getScript()));
+        assertNotNull(timings);
+        // the phones have the same labels, the script does not read anything else
+        assertEquals(2, timings.getEvaluations());
+
+        // reading the name makes each resource a class on its own
+        assertEquals(
+                Arrays.asList("resourceName", "resourceLabels"),
+                ResourceMatchScripts.getReadVariables("resourceName.startsWith('phone') && resourceLabels"));
+        assertEquals(5, ResourceMatchScripts.getReadVariables("binding.getVariable('resourceNote')").size());
+    }
+
+    @Test
+    void matchResultsFollowResourceChanges(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("resource1");
+        LockableResource resource = lrm.fromName("resource1");
+        assertNotNull(resource);
+        SecureGroovyScript script = new SecureGroovyScript("resourceNote == 'broken'", true, null)
+                .configuring(ApprovalContext.create());
+        assertTrue(lrm.getResourcesMatchingScript(script, null).isEmpty());
+
+        long version = lrm.getMatchVersion(script);
+        resource.setNote("broken");
+        assertTrue(lrm.getMatchVersion(script) > version);
+        // no need to wait for any expiry
+        assertEquals(Collections.singletonList(resource), lrm.getResourcesMatchingScript(script, null));
+
+        // locking does not outdate scripts not reading the lock reason, nor does an unchanged value
+        version = lrm.getMatchVersion(script);
+        resource.setLockReason("maintenance");
+        resource.setNote("broken");
+        assertEquals(version, lrm.getMatchVersion(script));
+        resource.setLockReason(null);
+
+        version = lrm.getMatchVersion();
+        resource.setLabelsFromString("label1");
+        assertTrue(lrm.getMatchVersion() > version);
+        assertTrue(resource.isValidLabel("label1 || label2"));
+    }
+
+    @Test
+    void matchScriptIsEvaluatedInChunks(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            lrm.createResourceWithLabel("resource" + i, i % 3 == 0 ? "third" : "other");
+            if (i % 3 == 0) {
+                expected.add("resource" + i);
+            }
+        }
+        SecureGroovyScript script = new SecureGroovyScript("resourceLabels.contains('third')", true, null)
+                .configuring(ApprovalContext.create());
+        // the result keeps the order of the resources, whatever chunk evaluated them
+        assertEquals(
+                expected,
+                LockableResourcesManager.getResourcesNames(lrm.getResourcesMatchingScript(script, null)));
+
+        SecureGroovyScript broken = new SecureGroovyScript("resourceName == 'resource99' ? null : true", true, null)
+                .configuring(ApprovalContext.create());
+        assertThrows(ExecutionException.class, () -> lrm.getResourcesMatchingScript(broken, null));
+    }
+
+    @Test
+    void spinningMatchScriptIsInterrupted(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("resource1");
+        SecureGroovyScript spinning = new SecureGroovyScript("while (true) {}; true", true, null)
+                .configuring(ApprovalContext.create());
+        assertThrows(ExecutionException.class, () -> lrm.getResourcesMatchingScript(spinning, null));
+
+        // the busy loop checks for the interrupt, its thread is free again
+        long deadline = System.currentTimeMillis() + 5_000L;
+        while (isScriptRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertFalse(isScriptRunning());
+    }
+
+    private static boolean isScriptRunning() {
+        for (Map.Entry<Thread, StackTraceElement[]> thread : Thread.getAllStackTraces().entrySet()) {
+            if (thread.getKey().getName().startsWith("lockable-resources-match-script-")) {
+                for (StackTraceElement frame : thread.getValue()) {
+                    if (frame.getClassName().startsWith("Script") && frame.getMethodName().equals("run")) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    @Test
+    void lockStateIsSavedApartFromConfiguration(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("declared1", "a");
+        lrm.createResourceWithLabel("declared2", "a");
+        lrm.createResource("ephemeral");
+        lrm.flushSave();
+        File config = new File(j.jenkins.getRootDir(), LockableResourcesManager.class.getName() + ".xml");
+        String configuration = Files.readString(config.toPath());
+        assertTrue(configuration.contains("<" + LockableResourcesManager.class.getName()), configuration);
+        assertTrue(configuration.contains("<name>declared2</name>"), configuration);
+        assertFalse(configuration.contains("<name>ephemeral</name>"), configuration);
+        // the configuration fields only
+        assertFalse(configuration.contains("<enableSave>"), configuration);
+
+        long stateLength = lrm.getJournal().length();
+        lrm.reserve(Arrays.asList(lrm.fromName("declared2"), lrm.fromName("ephemeral")), "user");
+        lrm.flushSave();
+        // only the change is appended, the configuration stays as it is
+        assertTrue(lrm.getJournal().length() > stateLength, "appended");
+        assertEquals(configuration, Files.readString(config.toPath()));
+
+        lrm.load();
+        assertEquals(
+                Arrays.asList("declared1", "declared2", "ephemeral"),
+                LockableResourcesManager.getResourcesNames(lrm.getResources()));
+        assertNull(lrm.fromName("declared1").getReservedBy());
+        assertEquals("user", lrm.fromName("declared2").getReservedBy());
+        assertEquals("user", lrm.fromName("ephemeral").getReservedBy());
+        assertTrue(lrm.fromName("ephemeral").isEphemeral());
+
+        // configuration changes do not touch the state
+        stateLength = lrm.getJournal().length();
+        lrm.fromName("declared1").setDescription("changed");
+        lrm.save();
+        lrm.flushSave();
+        assertEquals(stateLength, lrm.getJournal().length());
+        lrm.load();
+        assertEquals("changed", lrm.fromName("declared1").getDescription());
+        assertEquals("user", lrm.fromName("declared2").getReservedBy());
+    }
+
+    @Test
+    void stateFileOfAnotherConfigurationIsIgnored(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "a");
+        lrm.reserve(Collections.singletonList(lrm.fromName("resource1")), "user");
+        lrm.flushSave();
+        File config = new File(j.jenkins.getRootDir(), LockableResourcesManager.class.getName() + ".xml");
+        String configuration = Files.readString(config.toPath());
+        assertTrue(configuration.contains("<stateId>"), configuration);
+        lrm.load();
+        assertEquals("user", lrm.fromName("resource1").getReservedBy());
+
+        // as restored from a backup taken before the state file existed
+        Files.writeString(config.toPath(), configuration.replaceAll("<stateId>[^<]*</stateId>", ""));
+        lrm.load();
+        assertNull(lrm.fromName("resource1").getReservedBy());
+
+        // the state file is written again, before the configuration
+        lrm.save();
+        lrm.flushSave();
+        String saved = Files.readString(config.toPath());
+        assertTrue(saved.contains("<stateId>"), saved);
+        assertNotEquals(configuration, saved);
+        lrm.load();
+        assertNull(lrm.fromName("resource1").getReservedBy());
+    }
+
+    @Test
+    void savesAfterShutdownAreSynchronous(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "a");
+        lrm.flushSave();
+        LockableResourcesManager.flushPendingSave();
+
+        long stateLength = lrm.getJournal().length();
+        lrm.reserve(Collections.singletonList(lrm.fromName("resource1")), "user");
+        // no flushSave(), the save executor is gone
+        assertTrue(lrm.getJournal().length() > stateLength, "appended");
+    }
+
+    @Test
+    void unchangedStateIsNotSaved(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "a");
+        lrm.flushSave();
+        long stateLength = lrm.getJournal().length();
+        long skipped = lrm.getSaveStats().getSkippedSaves();
+
+        List<LockableResource> resources = Collections.singletonList(lrm.fromName("resource1"));
+        lrm.reserve(resources, "user");
+        lrm.unreserve(resources);
+        lrm.flushSave();
+        assertEquals(stateLength, lrm.getJournal().length());
+        assertEquals(skipped + 1, lrm.getSaveStats().getSkippedSaves());
+
+        lrm.reserve(resources, "user");
+        lrm.flushSave();
+        assertTrue(lrm.getJournal().length() > stateLength, "appended");
+        assertTrue(lrm.getSaveStats().getBytesWritten() > 0);
+    }
+
+    @Test
+    void queueMaintenanceIsSkippedWithoutWaiters(JenkinsRule j) {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("resource1");
+        List<LockableResource> resources = Collections.singletonList(lrm.fromName("resource1"));
+        QueueMaintenanceStats before = LockableResourcesManager.getQueueMaintenanceStats();
+
+        lrm.reserve(resources, "user");
+        lrm.unreserve(resources);
+        QueueMaintenanceStats after = LockableResourcesManager.getQueueMaintenanceStats();
+        assertEquals(before.getSkipped() + 1, after.getSkipped());
+        assertEquals(before.getIssued(), after.getIssued());
+    }
+
+    @Test
+    void deadOwnersAreFreed(JenkinsRule j) throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "a");
+        lrm.createResourceWithLabel("resource2", "a");
+        lrm.createResourceWithLabel("resource3", "a");
+        lrm.createResourceWithLabel("free", "a");
+        FreeStyleProject p1 = j.createFreeStyleProject("p1");
+        FreeStyleBuild build1 = j.buildAndAssertSuccess(p1);
+        FreeStyleBuild build2 = j.buildAndAssertSuccess(p1);
+        FreeStyleBuild build3 = j.buildAndAssertSuccess(j.createFreeStyleProject("p2"));
+        // as left behind by a restart
+        assertTrue(lrm.lock(Collections.singletonList(lrm.fromName("resource1")), build1));
+        assertTrue(lrm.lock(Collections.singletonList(lrm.fromName("resource2")), build2));
+        assertTrue(lrm.lock(Collections.singletonList(lrm.fromName("resource3")), build3));
+
+        assertEquals(3, FreeDeadJobs.freeDeadOwners(lrm).get(30, TimeUnit.SECONDS));
+        assertCounts(lrm.getResourceCounts(), 4, 0, 0);
+        assertEquals(0, FreeDeadJobs.freeDeadOwners(lrm).get(30, TimeUnit.SECONDS));
+    }
+
+    private static void assertCounts(ResourceCounts counts, int free, int locked, int reserved) {
+        assertEquals(free, counts.getFree(), "free");
+        assertEquals(locked, counts.getLocked(), "locked");
+        assertEquals(reserved, counts.getReserved(), "reserved");
+        assertEquals(free + locked + reserved, counts.getTotal(), "total");
+    }
+
+    private static void assertLabelCount(ResourceCounts counts, String label, int free, int assigned) {
+        ResourceCounts.LabelCount count = counts.getLabel(label);
+        assertNotNull(count, label);
+        assertEquals(free, count.getFree(), label + " free");
+        assertEquals(assigned, count.getAssigned(), label + " assigned");
+    }
+
+    private static List<String> names(LockableResourcesManager lrm, String label) {
+        return LockableResourcesManager.getResourcesNames(lrm.getResourcesWithLabel(label));
+    }
+
     private static void assertContains(AutoCompletionCandidates c, String... values) {
         assertEquals(new TreeSet<>(Arrays.asList(values)), new TreeSet<>(c.getValues()));
     }
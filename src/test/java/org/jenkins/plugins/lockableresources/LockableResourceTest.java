@@ -8,6 +8,16 @@ import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import hudson.util.RobustReflectionConverter;
+import hudson.util.XStream2;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import org.junit.jupiter.api.Test;
 
@@ -114,4 +124,129 @@ class LockableResourceTest {
         assertNotNull(detail);
         assertTrue(detail.contains("remote-lock-1"));
     }
+
+    @Test
+    void testCopyForSave() {
+        LockableResource resource = new LockableResource("r1", "description", "a b", "user", "note");
+        resource.setEphemeral(true);
+        LockableResource copy = resource.copyForSave();
+        assertEquals("r1", copy.getName());
+        assertEquals("description", copy.getDescription());
+        assertEquals("a b", copy.getLabelsAsString());
+        assertEquals("user", copy.getReservedBy());
+        assertEquals("note", copy.getNote());
+        assertTrue(copy.isEphemeral());
+
+        // changes after the copy do not show up in it
+        resource.setLabelsFromString("c");
+        resource.setReservedBy(null);
+        assertEquals("a b", copy.getLabelsAsString());
+        assertEquals("user", copy.getReservedBy());
+    }
+
+    @Test
+    void testCompactXml() {
+        XStream2 xstream = new XStream2();
+        LockableResource resource = new LockableResource("r1");
+        assertEquals(
+                "<org.jenkins.plugins.lockableresources.LockableResource>\n"
+                        + "  <name>r1</name>\n"
+                        + "</org.jenkins.plugins.lockableresources.LockableResource>",
+                xstream.toXML(resource));
+
+        resource.setLabelsFromString("a b");
+        resource.setProperties(Collections.singletonList(property("key", "value")));
+        String xml = xstream.toXML(resource);
+        assertTrue(xml.contains("<labels>a b</labels>"), xml);
+        assertTrue(xml.contains("<property name=\"key\" value=\"value\"/>"), xml);
+    }
+
+    @Test
+    void testXmlRoundTrip() {
+        LockableResource resource = fullResource();
+        XStream2 xstream = new XStream2();
+        assertSameState(resource, (LockableResource) xstream.fromXML(xstream.toXML(resource)));
+    }
+
+    @Test
+    void testReadsReflectionXml() {
+        LockableResource resource = fullResource();
+        String legacy = legacyXStream().toXML(resource);
+        assertTrue(legacy.contains("<labelsAsList>"), legacy);
+        assertSameState(resource, (LockableResource) new XStream2().fromXML(legacy));
+
+        // labels as a string, saved by very old versions
+        LockableResource old = (LockableResource) new XStream2()
+                .fromXML("<org.jenkins.plugins.lockableresources.LockableResource>"
+                        + "<name>old</name><labels>x  y</labels><queuedContexts/>"
+                        + "</org.jenkins.plugins.lockableresources.LockableResource>");
+        assertEquals(Arrays.asList("x", "y"), old.getLabelsAsList());
+        assertTrue(old.getProperties().isEmpty());
+    }
+
+    private static LockableResource fullResource() {
+        LockableResource resource = new LockableResource("r1");
+        resource.setDescription("description");
+        resource.setLabelsFromString("a b");
+        resource.setNote("note");
+        resource.setReservedBy("user");
+        resource.setReservedTimestamp(new Date(1_700_000_000_000L));
+        resource.setLockReason("reason");
+        resource.setStolen();
+        resource.setEphemeral(true);
+        resource.setProperties(Arrays.asList(property("key", "value"), property("empty", null)));
+        return resource;
+    }
+
+    private static LockableResourceProperty property(String name, String value) {
+        LockableResourceProperty property = new LockableResourceProperty();
+        property.setName(name);
+        property.setValue(value);
+        return property;
+    }
+
+    private static void assertSameState(LockableResource expected, LockableResource actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getDescription(), actual.getDescription());
+        assertEquals(expected.getLabelsAsList(), actual.getLabelsAsList());
+        assertEquals(expected.getNote(), actual.getNote());
+        assertEquals(expected.getReservedBy(), actual.getReservedBy());
+        assertEquals(expected.getReservedTimestamp(), actual.getReservedTimestamp());
+        assertEquals(expected.getLockReason(), actual.getLockReason());
+        assertEquals(expected.isStolen(), actual.isStolen());
+        assertEquals(expected.isEphemeral(), actual.isEphemeral());
+        assertEquals(expected.getProperties().size(), actual.getProperties().size());
+        for (int i = 0; i < expected.getProperties().size(); i++) {
+            assertEquals(expected.getProperties().get(i).getName(), actual.getProperties().get(i).getName());
+            assertEquals(
+                    expected.getProperties().get(i).getValue(),
+                    actual.getProperties().get(i).getValue());
+        }
+    }
+
+    /** Writes resources the way older versions did, field by field. */
+    static XStream2 legacyXStream() {
+        XStream2 xstream = new XStream2();
+        RobustReflectionConverter reflection =
+                new RobustReflectionConverter(xstream.getMapper(), xstream.getReflectionProvider());
+        xstream.registerConverter(
+                new Converter() {
+                    @Override
+                    public boolean canConvert(Class type) {
+                        return type == LockableResource.class;
+                    }
+
+                    @Override
+                    public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+                        reflection.marshal(source, writer, context);
+                    }
+
+                    @Override
+                    public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+                        return reflection.unmarshal(reader, context);
+                    }
+                },
+                XStream.PRIORITY_VERY_HIGH);
+        return xstream;
+    }
 }
@@ -0,0 +1,157 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+import hudson.util.XStream2;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StateJournalTest {
+
+    @TempDir
+    private Path dir;
+
+    private StateJournal journal() {
+        return new StateJournal(new File(dir.toFile(), "state.journal"), new XStream2());
+    }
+
+    private static StateJournal.Delta reserved(String name, String user) {
+        LockableResource resource = new LockableResource(name);
+        resource.setReservedBy(user);
+        StateJournal.Delta delta = new StateJournal.Delta();
+        delta.resourceChanged(resource);
+        return delta;
+    }
+
+    private static QueuedContextStruct entry() {
+        return new QueuedContextStruct(mock(StepContext.class), Collections.emptyList(), "resource", null, 0);
+    }
+
+    @Test
+    void readsFullStateAndDeltas() throws Exception {
+        StateJournal journal = journal();
+        assertNull(journal.read(), "not started");
+        assertThrows(IOException.class, () -> journal.append(reserved("r1", "user1")));
+
+        journal.start(new StateJournal.Delta());
+        journal.append(reserved("r1", "user1"));
+        journal.append(reserved("r1", "user2"));
+
+        List<StateJournal.Delta> deltas = journal().read();
+        assertEquals(3, deltas.size());
+        List<LockableResource> resources = new ArrayList<>(Arrays.asList(new LockableResource("r1")));
+        StateJournal.restore(deltas, resources, new ArrayList<>());
+        assertEquals("user2", resources.get(0).getReservedBy());
+    }
+
+    @Test
+    void dropsIncompleteRecord() throws Exception {
+        StateJournal journal = journal();
+        journal.start(new StateJournal.Delta());
+        journal.append(reserved("r1", "user1"));
+        journal.append(reserved("r2", "user2"));
+        try (RandomAccessFile file = new RandomAccessFile(journal.getFile(), "rw")) {
+            // crashed while writing the last record
+            file.setLength(file.length() - 10);
+        }
+
+        StateJournal reopened = journal();
+        assertEquals(2, reopened.read().size());
+        // the incomplete record is overwritten
+        reopened.append(reserved("r3", "user3"));
+        assertEquals(3, journal().read().size());
+    }
+
+    @Test
+    void startReplacesDeltas() throws Exception {
+        StateJournal journal = journal();
+        journal.start(new StateJournal.Delta());
+        journal.append(reserved("r1", "user1"));
+        journal.start(reserved("r2", "user2"));
+        List<StateJournal.Delta> deltas = journal().read();
+        assertEquals(1, deltas.size());
+
+        List<LockableResource> resources =
+                new ArrayList<>(Arrays.asList(new LockableResource("r1"), new LockableResource("r2")));
+        StateJournal.restore(deltas, resources, new ArrayList<>());
+        assertNull(resources.get(0).getReservedBy());
+        assertEquals("user2", resources.get(1).getReservedBy());
+    }
+
+    @Test
+    void restoreKeepsConfiguration() {
+        LockableResource declared = new LockableResource("declared");
+        declared.setDescription("configured");
+        // state saved in the configuration file by older versions
+        LockableResource stale = new LockableResource("stale");
+        stale.setReservedBy("somebody");
+        LockableResource staleEphemeral = new LockableResource("stale-ephemeral");
+        staleEphemeral.setEphemeral(true);
+        List<LockableResource> resources = new ArrayList<>(Arrays.asList(declared, stale, staleEphemeral));
+
+        LockableResource saved = new LockableResource("declared");
+        saved.setDescription("outdated");
+        saved.setReservedBy("user");
+        LockableResource ephemeral = new LockableResource("ephemeral");
+        ephemeral.setEphemeral(true);
+        LockableResource removed = new LockableResource("removed");
+        removed.setReservedBy("user");
+        StateJournal.Delta state = new StateJournal.Delta();
+        state.resourceChanged(saved);
+        state.resourceChanged(ephemeral);
+        state.resourceChanged(removed);
+        StateJournal.restore(Collections.singletonList(state), resources, new ArrayList<>());
+
+        assertEquals(
+                Arrays.asList("declared", "stale", "ephemeral"), LockableResourcesManager.getResourcesNames(resources));
+        assertEquals("configured", resources.get(0).getDescription());
+        assertEquals("user", resources.get(0).getReservedBy());
+        assertNull(resources.get(1).getReservedBy());
+    }
+
+    @Test
+    void restoreKeepsOrder() {
+        List<LockableResource> resources = new ArrayList<>(
+                Arrays.asList(new LockableResource("r1"), new LockableResource("r2"), new LockableResource("r3")));
+        QueuedContextStruct first = entry();
+        QueuedContextStruct second = entry();
+        QueuedContextStruct added = entry();
+        List<QueuedContextStruct> queue = new ArrayList<>();
+
+        StateJournal.Delta state = new StateJournal.Delta();
+        LockableResource ephemeral = new LockableResource("ephemeral");
+        ephemeral.setEphemeral(true);
+        state.resourceChanged(ephemeral);
+        state.queued(first, 0);
+        state.queued(second, 1);
+        StateJournal.Delta delta = reserved("r2", "user");
+        delta.resourceRemoved("r1");
+        delta.unqueued(first.getId());
+        delta.queued(added, 0);
+        StateJournal.restore(Arrays.asList(state, delta), resources, queue);
+
+        // declared resources are removed by the configuration only
+        assertEquals(
+                Arrays.asList("r1", "r2", "r3", "ephemeral"), LockableResourcesManager.getResourcesNames(resources));
+        assertEquals("user", resources.get(1).getReservedBy());
+        assertEquals(Arrays.asList(added, second), queue);
+
+        StateJournal.Delta removal = new StateJournal.Delta();
+        removal.resourceRemoved("ephemeral");
+        StateJournal.restore(Arrays.asList(state, delta, removal), resources, queue);
+        assertEquals(Arrays.asList("r1", "r2", "r3"), LockableResourcesManager.getResourcesNames(resources));
+    }
+}
@@ -0,0 +1,146 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Run;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.jupiter.api.Test;
+
+class WaitQueueTest {
+
+    private final WaitQueue queue = new WaitQueue(Collections.emptyList());
+
+    private static QueuedContextStruct entry(int priority) {
+        return new QueuedContextStruct(
+                mock(StepContext.class), Collections.emptyList(), "resource", null, priority);
+    }
+
+    @Test
+    void ordersByPriorityThenArrival() {
+        QueuedContextStruct first = entry(0);
+        QueuedContextStruct second = entry(0);
+        QueuedContextStruct urgent = entry(5);
+        QueuedContextStruct low = entry(-1);
+        queue.add(first, false);
+        queue.add(second, false);
+        queue.add(urgent, false);
+        queue.add(low, false);
+
+        assertEquals(Arrays.asList(urgent, first, second, low), queue.getAll());
+        assertEquals(0, queue.indexOf(urgent));
+        assertEquals(2, queue.indexOf(second));
+    }
+
+    @Test
+    void inversePrecedenceGoesInFrontOfQueue() {
+        QueuedContextStruct first = entry(0);
+        QueuedContextStruct urgent = entry(5);
+        QueuedContextStruct newest = entry(0);
+        queue.add(first, false);
+        queue.add(urgent, false);
+        queue.add(newest, true);
+        assertEquals(Arrays.asList(newest, urgent, first), queue.getAll());
+
+        // a higher priority added later still goes in front of it
+        QueuedContextStruct later = entry(6);
+        queue.add(later, false);
+        assertEquals(Arrays.asList(later, newest, urgent, first), queue.getAll());
+        assertEquals(queue.getAll(), new WaitQueue(queue.getAll()).getAll(), "restored");
+    }
+
+    @Test
+    void lookupAndRemove() {
+        QueuedContextStruct first = entry(0);
+        QueuedContextStruct second = entry(0);
+        queue.add(first, false);
+        queue.add(second, false);
+
+        assertFalse(queue.add(first, false), "duplicated context");
+        assertSame(second, queue.get(second.getContext()));
+        assertSame(first, queue.getById(first.getId()));
+
+        assertSame(first, queue.remove(first.getContext()));
+        assertNull(queue.get(first.getContext()));
+        assertNull(queue.getById(first.getId()));
+        assertFalse(queue.remove(first));
+        assertTrue(queue.remove(second));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void swapAndInOrder() {
+        QueuedContextStruct a = entry(0);
+        QueuedContextStruct b = entry(0);
+        QueuedContextStruct c = entry(0);
+        queue.add(a, false);
+        queue.add(b, false);
+        queue.add(c, false);
+
+        queue.swap(c, 0);
+        assertEquals(Arrays.asList(c, b, a), queue.getAll());
+
+        // a new entry still goes to the end
+        QueuedContextStruct d = entry(0);
+        queue.add(d, false);
+        List<QueuedContextStruct> subset = queue.inOrder(Arrays.asList(d, a, c));
+        assertEquals(Arrays.asList(c, a, d), subset);
+    }
+
+    @Test
+    void swapAcrossPrioritiesIsRestored() {
+        QueuedContextStruct urgent = entry(5);
+        QueuedContextStruct low = entry(-1);
+        queue.add(urgent, false);
+        queue.add(low, false);
+
+        queue.swap(low, 0);
+        assertEquals(Arrays.asList(low, urgent), queue.getAll());
+        assertEquals(5, low.getQueuePriority());
+        assertEquals(-1, urgent.getQueuePriority());
+
+        // as after a restart
+        WaitQueue restored = new WaitQueue(queue.getAll());
+        assertEquals(Arrays.asList(low, urgent), restored.getAll());
+        QueuedContextStruct normal = entry(0);
+        restored.add(normal, false);
+        assertEquals(Arrays.asList(low, normal, urgent), restored.getAll());
+    }
+
+    @Test
+    void lookupByBuild() throws Exception {
+        Run<?, ?> build = mock(Run.class);
+        when(build.getExternalizableId()).thenReturn("p#1");
+        QueuedContextStruct first = entry(0);
+        QueuedContextStruct second = entry(0);
+        QueuedContextStruct unknown = entry(0);
+        first.setBuild(build);
+        second.setBuild(build);
+        queue.add(first, false);
+        queue.add(second, false);
+        queue.add(unknown, false);
+
+        assertEquals(Arrays.asList(first, second), queue.getByBuild("p#1"));
+        assertEquals(Collections.singletonList(unknown), queue.getWithoutBuild());
+        // the context is not asked for the build
+        verify(first.getContext(), never()).get(Run.class);
+
+        queue.remove(first);
+        queue.remove(unknown);
+        assertEquals(Collections.singletonList(second), queue.getByBuild("p#1"));
+        assertTrue(queue.getWithoutBuild().isEmpty());
+        queue.remove(second);
+        assertTrue(queue.getByBuild("p#1").isEmpty());
+    }
+}
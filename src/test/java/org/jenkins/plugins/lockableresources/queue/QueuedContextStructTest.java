@@ -0,0 +1,48 @@
+package org.jenkins.plugins.lockableresources.queue;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Run;
+import java.io.IOException;
+import java.util.Collections;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.jupiter.api.Test;
+
+class QueuedContextStructTest {
+
+    @Test
+    void buildIsResolvedOnce() throws Exception {
+        StepContext context = mock(StepContext.class);
+        Run<?, ?> build = mock(Run.class);
+        when(context.get(Run.class)).thenReturn(build);
+        when(build.isBuilding()).thenReturn(true);
+        QueuedContextStruct entry = new QueuedContextStruct(context, Collections.emptyList(), "resource", null, 0);
+
+        assertTrue(entry.isValid());
+        assertTrue(entry.isValid());
+        assertSame(build, entry.getBuild());
+        verify(context, times(1)).get(Run.class);
+
+        entry.buildEnded();
+        assertFalse(entry.isValid());
+    }
+
+    @Test
+    void missingBuildIsResolvedOnce() throws Exception {
+        StepContext context = mock(StepContext.class);
+        when(context.get(Run.class)).thenThrow(new IOException("deleted"));
+        QueuedContextStruct entry = new QueuedContextStruct(context, Collections.emptyList(), "resource", null, 0);
+
+        assertFalse(entry.isValid());
+        assertFalse(entry.isValid());
+        assertNull(entry.getBuild());
+        verify(context, times(1)).get(Run.class);
+    }
+}